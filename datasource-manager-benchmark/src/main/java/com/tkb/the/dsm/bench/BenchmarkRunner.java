@@ -0,0 +1,41 @@
+package com.tkb.the.dsm.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * A runner executing the benchmarks matching an optional pattern once per
+ * thread count, given as the second argument in a comma separated list.
+ *
+ * Usage: java -jar target/benchmarks.jar [pattern] [threads]
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class BenchmarkRunner {
+
+    // Default thread counts
+    private static final String THREADS = "1,4,16,64,256";
+
+    /**
+     * A method running the benchmarks once per thread count.
+     *
+     * @param args the optional pattern and comma separated thread counts.
+     * @throws RunnerException throws errors running the benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException {
+        String pattern = args.length > 0 ? args[0] : "com.tkb.the.dsm.bench.*";
+        String threads = args.length > 1 ? args[1] : THREADS;
+
+        for (String count : threads.split(",")) {
+            Options options = new OptionsBuilder()
+                    .include(pattern)
+                    .threads(Integer.parseInt(count.trim()))
+                    .shouldDoGC(true)
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
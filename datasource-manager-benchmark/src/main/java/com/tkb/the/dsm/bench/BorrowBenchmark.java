@@ -0,0 +1,40 @@
+package com.tkb.the.dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import com.tkb.the.dsm.db.ConnectionSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A benchmark measuring the throughput of borrowing a session from the pool
+ * and giving it straight back, isolating the pooling overhead.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BorrowBenchmark {
+
+    /**
+     * A method borrowing and returning a session.
+     *
+     * @param db the embedded database state.
+     * @return the borrowed session.
+     */
+    @Benchmark
+    public ConnectionSession borrowAndReturn(EmbeddedDatabase db) {
+        ConnectionSession session = db.manager.getSession();
+
+        session.close(null, null);
+
+        return session;
+    }
+}
@@ -0,0 +1,118 @@
+package com.tkb.the.dsm.bench;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionPool;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.NativeConnectionPool;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A benchmark state holding a connection manager over an embedded in memory
+ * H2 database, seeded with a table of rows to query.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+@State(Scope.Benchmark)
+public class EmbeddedDatabase {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(EmbeddedDatabase.class);
+
+    // Embedded database driver
+    public static final String DRIVER = "org.h2.Driver";
+
+    // Embedded database url
+    public static final String URL = "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1";
+
+    // Number of seeded rows
+    public static final int ROWS = 10000;
+
+    // Connection manager implementation
+    @Param({"dbcp", "native"})
+    public String pool;
+
+    // Maximum number of active connections
+    @Param({"20"})
+    public int maxActive;
+
+    // Number of statements cached per connection
+    @Param({"0", "64"})
+    public int statementCacheSize;
+
+    // Connection manager under benchmark
+    public ConnectionManager manager;
+
+    // Number of sessions held for the whole trial
+    private int held;
+
+    /**
+     * A method creating the connection manager and seeding the database.
+     *
+     * @throws SQLException throws errors seeding the database.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        if ("native".equals(pool)) {
+            manager = new NativeConnectionPool(DRIVER, URL, "sa", "");
+        } else {
+            manager = new ConnectionPool(DRIVER, URL, "sa", "", Math.min(10, maxActive), maxActive);
+        }
+
+        manager.setMaxActive(maxActive);
+        manager.setMaxIdle(maxActive);
+        manager.setStatementCacheSize(statementCacheSize);
+        manager.prewarm();
+
+        ConnectionSession session = manager.getSession();
+
+        try {
+            PreparedStatement statement = session.getStatement("CREATE TABLE IF NOT EXISTS bench_item (id INT PRIMARY KEY, name VARCHAR(64))");
+            statement.executeUpdate();
+            statement.close();
+
+            statement = session.getStatement("MERGE INTO bench_item (id, name) KEY (id) SELECT X, CONCAT('item', X) FROM SYSTEM_RANGE(1, " + ROWS + ")");
+            statement.executeUpdate();
+            statement.close();
+        } finally {
+            session.close(null, null);
+        }
+
+        manager.getMetrics().reset();
+    }
+
+    /**
+     * A method borrowing a session held by a thread for the whole trial,
+     * growing the maximum active connections once the held sessions exceed
+     * them, so threads holding sessions never wait on each other.
+     *
+     * @return the held session.
+     */
+    public synchronized ConnectionSession holdSession() {
+        held++;
+
+        if (held > maxActive) {
+            manager.setMaxActive(held);
+            manager.setMaxIdle(held);
+        }
+
+        return manager.getSession();
+    }
+
+    /**
+     * A method logging the pool metrics and closing the connection manager.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        logger.info(manager.getMetrics());
+
+        manager.close();
+    }
+}
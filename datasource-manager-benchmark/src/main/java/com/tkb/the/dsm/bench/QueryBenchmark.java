@@ -0,0 +1,58 @@
+package com.tkb.the.dsm.bench;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import com.tkb.the.dsm.db.ConnectionSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A benchmark sampling the end to end latency of a primary key lookup, from
+ * borrowing the session to closing it, reporting latency percentiles.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+    // Query to run
+    private static final String QUERY = "SELECT id, name FROM bench_item WHERE id = ?";
+
+    /**
+     * A method looking up a random row by its primary key.
+     *
+     * @param db the embedded database state.
+     * @return the name of the row.
+     * @throws SQLException throws errors running the query.
+     */
+    @Benchmark
+    public String lookup(EmbeddedDatabase db) throws SQLException {
+        ConnectionSession session = db.manager.getSession();
+
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+
+        try {
+            statement = session.getStatement(QUERY);
+            statement.setInt(1, 1 + ThreadLocalRandom.current().nextInt(EmbeddedDatabase.ROWS));
+
+            resultSet = statement.executeQuery();
+
+            return resultSet.next() ? resultSet.getString(2) : null;
+        } finally {
+            session.close(statement, resultSet);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.tkb.the.dsm.bench;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.StatementCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A benchmark measuring the cost of preparing a statement on a session held
+ * by each thread, with and without the per connection statement cache.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementBenchmark {
+
+    // Query to prepare
+    private static final String QUERY = "SELECT id, name FROM bench_item WHERE id = ?";
+
+    /**
+     * A per thread state holding a session for the whole trial, the pool is
+     * grown to the number of threads if smaller.
+     */
+    @State(Scope.Thread)
+    public static class HeldSession {
+
+        // Session held by the thread
+        ConnectionSession session;
+
+        // Statement cache of the session, if any
+        StatementCache cache;
+
+        /**
+         * A method holding a session of the database for the trial.
+         *
+         * @param db the embedded database.
+         */
+        @Setup(Level.Trial)
+        public void setUp(EmbeddedDatabase db) {
+            session = db.holdSession();
+            cache = session.getStatementCache();
+        }
+
+        /**
+         * A method closing the held session.
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            session.close(null, null);
+        }
+    }
+
+    /**
+     * A method preparing a statement and releasing it.
+     *
+     * @param held the session held by the thread.
+     * @return the prepared statement.
+     * @throws SQLException throws errors closing the statement.
+     */
+    @Benchmark
+    public PreparedStatement prepare(HeldSession held) throws SQLException {
+        PreparedStatement statement = held.session.getStatement(QUERY);
+
+        if (held.cache == null || !held.cache.release(statement)) {
+            statement.close();
+        }
+
+        return statement;
+    }
+}
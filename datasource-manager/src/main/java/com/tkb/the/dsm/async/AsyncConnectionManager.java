@@ -0,0 +1,303 @@
+package com.tkb.the.dsm.async;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.SessionListener;
+import org.apache.log4j.Logger;
+
+/**
+ * An asynchronous connection manager wrapper, acquiring sessions without
+ * blocking the calling thread. Concurrent sessions are bounded by permits,
+ * requests exceeding them queue in arrival order without holding a thread,
+ * while the blocking JDBC work runs on virtual threads if the runtime
+ * supports them, otherwise on a pool of as many threads as permits.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class AsyncConnectionManager {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(AsyncConnectionManager.class);
+
+    // Connection manager
+    private final ConnectionManager manager;
+
+    // Number of available session permits
+    private final AtomicInteger available;
+
+    // Requests waiting for a permit in arrival order
+    private final ConcurrentLinkedQueue<CompletableFuture<ConnectionSession>> waiters = new ConcurrentLinkedQueue<CompletableFuture<ConnectionSession>>();
+
+    // Executor running the blocking JDBC work
+    private final ExecutorService executor;
+
+    // Timeout scheduler
+    private final ScheduledExecutorService scheduler;
+
+    // Session listener giving permits back
+    private final SessionListener releaser = new SessionListener() {
+        @Override
+        public void sessionClosed(ConnectionSession session) {
+            release();
+        }
+    };
+
+    /**
+     * A constructor creating an asynchronous connection manager given the
+     * underlying connection manager and the maximum number of concurrent
+     * sessions, which should match its maximum active connections.
+     *
+     * @param manager the underlying connection manager.
+     * @param maxActive the maximum number of concurrent sessions.
+     */
+    public AsyncConnectionManager(ConnectionManager manager, int maxActive) {
+        this.manager = manager;
+        this.available = new AtomicInteger(maxActive);
+
+        executor = createExecutor(maxActive);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-session-timer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A method returning a future completed with a new connection session once
+     * a permit is available, or exceptionally if the session cannot be opened
+     * or the timeout elapses. Cancelling the future gives up the request.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the time unit of the timeout.
+     * @return the future connection session.
+     */
+    public CompletableFuture<ConnectionSession> getSessionAsync(long timeout, TimeUnit unit) {
+        final CompletableFuture<ConnectionSession> future = new CompletableFuture<ConnectionSession>();
+
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException("Timed out waiting for a connection session."));
+            }
+        }, timeout, unit);
+
+        waiters.offer(future);
+
+        // Requests timed out or cancelled leave the queue right away
+        future.whenComplete(new BiConsumer<ConnectionSession, Throwable>() {
+            @Override
+            public void accept(ConnectionSession session, Throwable exc) {
+                timer.cancel(false);
+
+                if (exc != null) {
+                    waiters.remove(future);
+                }
+            }
+        });
+
+        drain();
+
+        return future;
+    }
+
+    /**
+     * A method executing a unit of work within a new connection session,
+     * closing the session once the work is done.
+     *
+     * @param callback the unit of work.
+     * @param timeout the maximum time to wait for a session.
+     * @param unit the time unit of the timeout.
+     * @return the future result of the work.
+     */
+    public <T> CompletableFuture<T> execute(final SessionCallback<T> callback, long timeout, TimeUnit unit) {
+        return getSessionAsync(timeout, unit).thenApplyAsync(new Function<ConnectionSession, T>() {
+            @Override
+            public T apply(ConnectionSession session) {
+                try {
+                    return callback.doInSession(session);
+                } catch (SQLException exc) {
+                    throw new CompletionException(exc);
+                } finally {
+                    session.close(null, null);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * A method dispatching waiting requests as long as there are permits,
+     * skipping requests already timed out or cancelled.
+     */
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            CompletableFuture<ConnectionSession> future = waiters.poll();
+
+            if (future == null || future.isDone()) {
+                available.incrementAndGet();
+
+                continue;
+            }
+
+            dispatch(future);
+        }
+    }
+
+    /**
+     * A method opening a session for a request holding a permit.
+     *
+     * @param future the request future.
+     */
+    private void dispatch(final CompletableFuture<ConnectionSession> future) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        release();
+
+                        return;
+                    }
+
+                    ConnectionSession session = null;
+
+                    try {
+                        session = manager.getSession();
+
+                        if (session == null) {
+                            release();
+
+                            future.completeExceptionally(new SQLException("Failed to open a new connection session."));
+
+                            return;
+                        }
+
+                        session.addListener(releaser);
+                    } catch (RuntimeException exc) {
+                        // Closing a session opened without its releaser
+                        if (session != null) {
+                            session.close(null, null);
+                        }
+
+                        release();
+
+                        future.completeExceptionally(exc);
+
+                        return;
+                    }
+
+                    // Closing sessions of requests given up meanwhile
+                    if (!future.complete(session)) {
+                        session.close(null, null);
+                    }
+                }
+            });
+        } catch (RuntimeException exc) {
+            release();
+
+            future.completeExceptionally(exc);
+        }
+    }
+
+    /**
+     * A method taking a permit if any is available.
+     *
+     * @return true if a permit has been taken, otherwise false.
+     */
+    private boolean tryAcquire() {
+        int permits;
+
+        do {
+            permits = available.get();
+
+            if (permits <= 0) {
+                return false;
+            }
+        } while (!available.compareAndSet(permits, permits - 1));
+
+        return true;
+    }
+
+    /**
+     * A method giving a permit back and dispatching the next waiting request.
+     */
+    private void release() {
+        available.incrementAndGet();
+
+        drain();
+    }
+
+    /**
+     * A method returning the number of requests waiting for a permit.
+     *
+     * @return the number of waiting requests.
+     */
+    public int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * A method closing the asynchronous manager, failing all the waiting
+     * requests, the underlying connection manager is left open.
+     */
+    public void close() {
+        CompletableFuture<ConnectionSession> future;
+
+        while ((future = waiters.poll()) != null) {
+            future.completeExceptionally(new SQLException("Connection manager has been already closed."));
+        }
+
+        scheduler.shutdownNow();
+        executor.shutdown();
+    }
+
+    /**
+     * A method creating a virtual thread per task executor if the runtime
+     * supports it, otherwise a fixed pool of platform threads.
+     *
+     * @param threads the number of platform threads to fall back to.
+     * @return the executor service.
+     */
+    private static ExecutorService createExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException exc) {
+            logger.info("Virtual threads not supported, falling back to a pool of " + threads + " threads.");
+        } catch (Exception exc) {
+            logger.error("An unknown error occurred creating a virtual thread executor: '" + exc.getMessage() + "'.");
+        }
+
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-session-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,428 @@
+package com.tkb.the.dsm.async;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionSession;
+import org.apache.log4j.Logger;
+
+/**
+ * A group commit writer coalescing small writes submitted by many threads
+ * into multi-row transactions. Writer threads drain the queue into groups
+ * bounded by a maximum size and the maximum time the oldest write may wait,
+ * executing consecutive writes of the same statement as a JDBC batch and
+ * committing the group at once. If a group fails its writes are retried one
+ * by one, so a bad write fails alone.
+ *
+ * Futures are completed on the writer threads, dependent work should be
+ * chained asynchronously to keep the writers draining. Drivers rewriting
+ * batches into multi-row statements, i.e. MySQL with rewriteBatchedStatements,
+ * do not report the rows updated per write, so futures of batched writes may
+ * complete with Statement.SUCCESS_NO_INFO instead of a row count.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class GroupCommitWriter {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(GroupCommitWriter.class);
+
+    // Connection manager
+    private final ConnectionManager manager;
+
+    // Writes pending to be committed
+    private final BlockingQueue<Write> queue;
+
+    // Maximum number of writes per group
+    private final int maxGroup;
+
+    // Maximum time in nanos the oldest write of a group waits
+    private final long maxLatency;
+
+    // Writer threads
+    private final Thread[] writers;
+
+    // Flag marking the writer as closed
+    private volatile boolean closed;
+
+    /**
+     * A constructor creating a group commit writer given the connection
+     * manager, the number of writer threads, the maximum writes per group, the
+     * maximum latency added to a write and the capacity of the queue, beyond
+     * which submitting threads block.
+     *
+     * @param manager the connection manager.
+     * @param threads the number of writer threads.
+     * @param maxGroup the maximum number of writes per group.
+     * @param maxLatency the maximum latency in millis.
+     * @param capacity the maximum number of pending writes.
+     */
+    public GroupCommitWriter(ConnectionManager manager, int threads, int maxGroup, long maxLatency, int capacity) {
+        if (threads < 1 || maxGroup < 1) {
+            throw new IllegalArgumentException("Writer threads and group size must be positive: '" + threads + "', '" + maxGroup + "'.");
+        }
+
+        this.manager = manager;
+        this.maxGroup = maxGroup;
+        this.maxLatency = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        this.queue = new ArrayBlockingQueue<Write>(capacity);
+
+        writers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "group-commit-writer-" + (i + 1));
+
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * A method submitting a write, blocking while the queue is full.
+     *
+     * @param query the SQL write statement.
+     * @param params the statement parameters in statement order.
+     * @return the future number of rows updated, completed once committed,
+     * Statement.SUCCESS_NO_INFO if the driver does not report the count.
+     */
+    public CompletableFuture<Integer> submit(String query, Object... params) {
+        Write write = new Write(query, params);
+
+        if (closed) {
+            write.future.completeExceptionally(new SQLException("Group commit writer has been already closed."));
+
+            return write.future;
+        }
+
+        try {
+            queue.put(write);
+
+            // Failing a write racing with closing, unless a writer took it
+            if (closed && queue.remove(write)) {
+                write.future.completeExceptionally(new SQLException("Group commit writer has been already closed."));
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+
+            write.future.completeExceptionally(exc);
+        }
+
+        return write.future;
+    }
+
+    /**
+     * A method draining the queue into groups until closed and emptied.
+     */
+    private void drain() {
+        List<Write> group = new ArrayList<Write>(maxGroup);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                collect(group);
+            } catch (InterruptedException exc) {
+                // Writing what has been collected so far before exiting
+                closed = true;
+            }
+
+            if (!group.isEmpty()) {
+                try {
+                    write(group);
+                } catch (Exception exc) {
+                    logger.error("An unknown error occurred writing a group of writes: '" + exc.getMessage() + "'.");
+
+                    fail(group, exc);
+                }
+
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * A method collecting the next group of writes, waiting for more writes
+     * until the group is full or its oldest write has waited long enough.
+     *
+     * @param group the group to collect into.
+     * @throws InterruptedException throws interruptions while waiting.
+     */
+    private void collect(List<Write> group) throws InterruptedException {
+        Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+        if (first == null) {
+            return;
+        }
+
+        group.add(first);
+
+        long deadline = first.submittedAt + maxLatency;
+
+        queue.drainTo(group, maxGroup - group.size());
+
+        while (group.size() < maxGroup && !closed) {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0) {
+                break;
+            }
+
+            Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+            if (next == null) {
+                break;
+            }
+
+            group.add(next);
+
+            queue.drainTo(group, maxGroup - group.size());
+        }
+    }
+
+    /**
+     * A method writing a group of writes in a single transaction, retrying the
+     * writes one by one if the transaction fails.
+     *
+     * @param group the group of writes.
+     */
+    private void write(List<Write> group) {
+        ConnectionSession session = manager.getSession();
+
+        if (session == null) {
+            fail(group, new SQLException("Failed to open a new connection session."));
+
+            return;
+        }
+
+        try {
+            int[] counts = new int[group.size()];
+
+            try {
+                session.setAutoCommit(false);
+
+                execute(session, group, counts);
+
+                session.commit();
+            } catch (SQLException exc) {
+                logger.warn("A group of " + group.size() + " writes failed, retrying one by one: '" + exc.getMessage() + "'.");
+
+                rollback(session);
+
+                retry(session, group);
+
+                return;
+            }
+
+            for (int i = 0; i < counts.length; i++) {
+                group.get(i).future.complete(counts[i]);
+            }
+        } finally {
+            try {
+                session.setAutoCommit(true);
+            } catch (SQLException exc) {
+                logger.error("An SQL error occurred restoring the auto commit mode: '" + exc.getMessage() + "'.");
+            }
+
+            session.close(null, null);
+        }
+    }
+
+    /**
+     * A method executing a group of writes, batching the consecutive writes
+     * of the same statement.
+     *
+     * @param session the connection session.
+     * @param group the group of writes.
+     * @param counts the update counts per write to fill in.
+     * @throws SQLException throws errors executing the writes.
+     */
+    private void execute(ConnectionSession session, List<Write> group, int[] counts) throws SQLException {
+        int start = 0;
+
+        while (start < group.size()) {
+            String query = group.get(start).query;
+
+            int end = start + 1;
+
+            while (end < group.size() && query.equals(group.get(end).query)) {
+                end++;
+            }
+
+            PreparedStatement statement = prepare(session, query);
+
+            try {
+                for (int i = start; i < end; i++) {
+                    bind(statement, group.get(i).params);
+
+                    statement.addBatch();
+                }
+
+                int[] batch = statement.executeBatch();
+
+                // Drivers rewriting the batch may report fewer or no counts
+                if (batch.length != end - start) {
+                    Arrays.fill(counts, start, end, Statement.SUCCESS_NO_INFO);
+                } else {
+                    for (int i = 0; i < batch.length; i++) {
+                        if (batch[i] == Statement.EXECUTE_FAILED) {
+                            throw new SQLException("Write " + (i + 1) + " of a batch of " + batch.length + " failed.");
+                        }
+                    }
+
+                    System.arraycopy(batch, 0, counts, start, batch.length);
+                }
+            } finally {
+                session.release(statement);
+            }
+
+            start = end;
+        }
+    }
+
+    /**
+     * A method retrying the writes of a failed group one by one, each in its
+     * own transaction.
+     *
+     * @param session the connection session.
+     * @param group the group of writes.
+     */
+    private void retry(ConnectionSession session, List<Write> group) {
+        try {
+            session.setAutoCommit(true);
+        } catch (SQLException exc) {
+            fail(group, exc);
+
+            return;
+        }
+
+        for (Write write : group) {
+            try {
+                PreparedStatement statement = prepare(session, write.query);
+
+                try {
+                    bind(statement, write.params);
+
+                    write.future.complete(statement.executeUpdate());
+                } finally {
+                    session.release(statement);
+                }
+            } catch (SQLException exc) {
+                write.future.completeExceptionally(exc);
+            }
+        }
+    }
+
+    /**
+     * A method preparing a statement failing if the session cannot.
+     *
+     * @param session the connection session.
+     * @param query the SQL statement.
+     * @return the prepared statement.
+     * @throws SQLException throws errors if the statement cannot be prepared.
+     */
+    private static PreparedStatement prepare(ConnectionSession session, String query) throws SQLException {
+        PreparedStatement statement = session.getStatement(query);
+
+        if (statement == null) {
+            throw new SQLException("Failed to prepare statement '" + query + "'.");
+        }
+
+        return statement;
+    }
+
+    private static void bind(PreparedStatement statement, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+    }
+
+    private static void rollback(ConnectionSession session) {
+        try {
+            session.rollback();
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred rolling back a group of writes: '" + exc.getMessage() + "'.");
+        }
+    }
+
+    private static void fail(List<Write> group, Throwable exc) {
+        for (Write write : group) {
+            write.future.completeExceptionally(exc);
+        }
+    }
+
+    /**
+     * A method returning the number of writes pending to be committed.
+     *
+     * @return the number of pending writes.
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * A method closing the writer, new writes are rejected while the pending
+     * ones are committed before the writer threads exit.
+     *
+     * @param timeout the maximum time in millis to wait for pending writes.
+     * @return true if all the writes have been committed, otherwise false.
+     */
+    public boolean close(long timeout) {
+        closed = true;
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            for (Thread writer : writers) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining > 0) {
+                    writer.join(remaining);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Thread writer : writers) {
+            if (writer.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A write pending to be committed along with its future.
+     */
+    private static final class Write {
+
+        // SQL write statement
+        private final String query;
+
+        // Statement parameters
+        private final Object[] params;
+
+        // Time in nanos the write has been submitted
+        private final long submittedAt = System.nanoTime();
+
+        // Future number of rows updated
+        private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+        Write(String query, Object[] params) {
+            this.query = query;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.tkb.the.dsm.async;
+
+import java.sql.SQLException;
+import com.tkb.the.dsm.db.ConnectionSession;
+
+/**
+ * A generic unit of work executed within a connection session.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface SessionCallback<T> {
+
+    public T doInSession(ConnectionSession session) throws SQLException;
+}
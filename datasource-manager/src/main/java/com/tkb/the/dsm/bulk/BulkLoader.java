@@ -0,0 +1,211 @@
+package com.tkb.the.dsm.bulk;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.Dialect;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+
+/**
+ * A bulk loader streaming rows into a table through the native bulk load
+ * path of the database, COPY FROM STDIN for PostgreSQL and LOAD DATA LOCAL
+ * INFILE fed by an in memory stream for MySQL. Data is pulled by the driver
+ * as it is sent, so the rows are produced no faster than the database takes
+ * them and memory stays flat regardless of the input size. Other databases
+ * fall back to batched inserts.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class BulkLoader {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(BulkLoader.class);
+
+    // Connection session to load within
+    private final ConnectionSession session;
+
+    // Number of bytes buffered ahead of the driver
+    private int bufferSize = 64 * 1024;
+
+    // Number of rows per batch falling back to batched inserts
+    private int batchSize = 1000;
+
+    /**
+     * A constructor creating a bulk loader given the connection session to
+     * load within, the session is left open once loaded.
+     *
+     * @param session the connection session.
+     */
+    public BulkLoader(ConnectionSession session) {
+        this.session = session;
+    }
+
+    /**
+     * A method setting up the number of bytes encoded and buffered ahead of
+     * the driver, bounding the memory taken by a load.
+     *
+     * @param bufferSize the buffer size in bytes.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * A method setting up the number of rows per batch for the databases with
+     * no native bulk load path.
+     *
+     * @param batchSize the number of rows per batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * A method loading the given rows into the table columns, rows are pulled
+     * lazily from the iterator as the database consumes them. Table and column
+     * names are written as given and must be trusted. Binary values are not
+     * supported by the MySQL load data path, failing the load.
+     *
+     * @param table the table to load into.
+     * @param columns the columns in row order.
+     * @param rows the rows to load.
+     * @return the number of rows loaded.
+     * @throws SQLException throws errors loading the rows.
+     */
+    public long load(String table, String[] columns, Iterator<Object[]> rows) throws SQLException {
+        Dialect dialect = session.getDialect();
+
+        switch (dialect) {
+            case POSTGRESQL:
+                return copy(table, columns, new RowInputStream(rows, new String[]{"t", "f"}, true, bufferSize));
+            case MYSQL:
+                return loadData(table, columns, new RowInputStream(rows, new String[]{"1", "0"}, false, bufferSize));
+            default:
+                return session.executeBatch(insert(table, columns), rows, batchSize);
+        }
+    }
+
+    /**
+     * A method loading data already encoded in the tab separated text format
+     * into the table columns, with backslash escapes and \N as null. The
+     * stream is read as the database consumes it and is left open.
+     *
+     * @param table the table to load into.
+     * @param columns the columns in field order.
+     * @param data the encoded data.
+     * @return the number of rows loaded.
+     * @throws SQLException throws errors loading the data or if the database
+     * has no native bulk load path.
+     */
+    public long load(String table, String[] columns, InputStream data) throws SQLException {
+        Dialect dialect = session.getDialect();
+
+        switch (dialect) {
+            case POSTGRESQL:
+                return copy(table, columns, data);
+            case MYSQL:
+                return loadData(table, columns, new BufferedInputStream(data, bufferSize));
+            default:
+                throw new SQLFeatureNotSupportedException("Bulk loading encoded data is not supported by the " + dialect + " dialect.");
+        }
+    }
+
+    /**
+     * A method loading data through the PostgreSQL copy manager.
+     *
+     * @param table the table to load into.
+     * @param columns the columns in field order.
+     * @param data the encoded data.
+     * @return the number of rows loaded.
+     * @throws SQLException throws errors copying the data.
+     */
+    private long copy(String table, String[] columns, InputStream data) throws SQLException {
+        String sql = "COPY " + table + " (" + join(columns) + ") FROM STDIN";
+
+        try {
+            long loaded = session.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, data, bufferSize);
+
+            logger.info("Bulk loaded " + loaded + " rows into table '" + table + "'.");
+
+            return loaded;
+        } catch (IOException exc) {
+            throw new SQLException("An I/O error occurred copying rows into table '" + table + "': '" + exc.getMessage() + "'.", exc);
+        }
+    }
+
+    /**
+     * A method loading data through a MySQL local infile statement, fed by
+     * the given stream instead of a file.
+     *
+     * @param table the table to load into.
+     * @param columns the columns in field order.
+     * @param data the encoded data.
+     * @return the number of rows loaded.
+     * @throws SQLException throws errors loading the data.
+     */
+    private long loadData(String table, String[] columns, InputStream data) throws SQLException {
+        String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table + " CHARACTER SET utf8mb4"
+                + " FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'"
+                + " (" + join(columns) + ")";
+
+        com.mysql.jdbc.Connection connection = session.unwrap(com.mysql.jdbc.Connection.class);
+
+        com.mysql.jdbc.Statement statement = (com.mysql.jdbc.Statement) connection.createStatement();
+
+        try {
+            statement.setLocalInfileInputStream(data);
+
+            long loaded = statement.executeUpdate(sql);
+
+            logger.info("Bulk loaded " + loaded + " rows into table '" + table + "'.");
+
+            return loaded;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * A method returning the insert statement of the fallback batched path.
+     *
+     * @param table the table to insert into.
+     * @param columns the columns in row order.
+     * @return the insert statement.
+     */
+    private static String insert(String table, String[] columns) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("INSERT INTO ").append(table).append(" (").append(join(columns)).append(") VALUES (");
+
+        for (int i = 0; i < columns.length; i++) {
+            sb.append(i > 0 ? ", ?" : "?");
+        }
+
+        return sb.append(")").toString();
+    }
+
+    /**
+     * A method joining the column names in a comma separated list.
+     *
+     * @param columns the column names.
+     * @return the column list.
+     */
+    private static String join(String[] columns) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+
+            sb.append(columns[i]);
+        }
+
+        return sb.toString();
+    }
+}
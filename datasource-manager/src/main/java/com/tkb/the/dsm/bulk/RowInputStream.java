@@ -0,0 +1,212 @@
+package com.tkb.the.dsm.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * An input stream lazily encoding rows in the tab separated text format
+ * understood by both PostgreSQL COPY and MySQL LOAD DATA, with backslash
+ * escapes and \N as null. Binary values are written in the PostgreSQL hex
+ * format if enabled, otherwise rejected as are other arrays. Rows are pulled from the iterator only as fast as
+ * the driver reads, encoding at most a buffer worth of rows ahead, so memory
+ * stays flat regardless of the number of rows.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+class RowInputStream extends InputStream {
+
+    // Hex digits of binary values
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Rows to encode
+    private final Iterator<Object[]> rows;
+
+    // Encoding of boolean values as true and false text
+    private final String[] booleans;
+
+    // Flag enabling binary values in the hex format
+    private final boolean hexBinary;
+
+    // Encoded rows pending to be read
+    private final StringBuilder pending;
+
+    // Minimum number of pending chars encoded ahead
+    private final int bufferSize;
+
+    // Encoded bytes pending to be read
+    private byte[] buffer = new byte[0];
+
+    // Read position within the buffer
+    private int position;
+
+    /**
+     * A constructor creating a row input stream given the rows to encode, the
+     * text of the boolean values, whether binary values are written in the
+     * hex format and the size of the encoding buffer.
+     *
+     * @param rows the rows to encode.
+     * @param booleans the text of true and false values.
+     * @param hexBinary true to write binary values in the hex format, false to reject them.
+     * @param bufferSize the number of chars to encode ahead.
+     */
+    RowInputStream(Iterator<Object[]> rows, String[] booleans, boolean hexBinary, int bufferSize) {
+        this.rows = rows;
+        this.booleans = booleans;
+        this.hexBinary = hexBinary;
+        this.bufferSize = bufferSize;
+        this.pending = new StringBuilder(bufferSize + 256);
+    }
+
+    /**
+     * A method reading the next encoded byte, encoding more rows once the
+     * buffer has been fully read.
+     *
+     * @return the next byte, -1 once all the rows have been read.
+     * @throws IOException throws errors if a value cannot be encoded.
+     */
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * A method reading up to the given number of encoded bytes, at most the
+     * rest of the buffer.
+     *
+     * @param bytes the buffer to read into.
+     * @param offset the offset within the buffer.
+     * @param length the maximum number of bytes to read.
+     * @return the number of bytes read, -1 once all the rows have been read.
+     * @throws IOException throws errors if a value cannot be encoded.
+     */
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, buffer.length - position);
+
+        System.arraycopy(buffer, position, bytes, offset, count);
+
+        position += count;
+
+        return count;
+    }
+
+    /**
+     * A method returning the number of encoded bytes left in the buffer.
+     *
+     * @return the number of bytes readable without encoding more rows.
+     */
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    /**
+     * A method encoding the next rows once the buffer has been fully read.
+     *
+     * @return true if there are bytes to read, otherwise false.
+     * @throws IOException throws errors if a value cannot be encoded.
+     */
+    private boolean fill() throws IOException {
+        if (position < buffer.length) {
+            return true;
+        }
+
+        pending.setLength(0);
+
+        while (pending.length() < bufferSize && rows.hasNext()) {
+            encode(rows.next());
+        }
+
+        buffer = pending.toString().getBytes(StandardCharsets.UTF_8);
+        position = 0;
+
+        return buffer.length > 0;
+    }
+
+    /**
+     * A method encoding a row as a tab separated line.
+     *
+     * @param row the row to encode.
+     * @throws IOException throws errors if a value cannot be encoded.
+     */
+    private void encode(Object[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                pending.append('\t');
+            }
+
+            Object value = row[i];
+
+            if (value == null) {
+                pending.append("\\N");
+            } else if (value instanceof Boolean) {
+                pending.append(((Boolean) value) ? booleans[0] : booleans[1]);
+            } else if (value instanceof byte[] && hexBinary) {
+                hex((byte[]) value);
+            } else if (value.getClass().isArray()) {
+                throw new IOException("Unsupported value of type '" + value.getClass().getSimpleName() + "' in column " + (i + 1) + ".");
+            } else {
+                escape(value.toString());
+            }
+        }
+
+        pending.append('\n');
+    }
+
+    /**
+     * A method appending a value escaping the delimiter, line breaks and the
+     * escape character itself.
+     *
+     * @param value the value to escape.
+     */
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    pending.append("\\\\");
+                    break;
+                case '\t':
+                    pending.append("\\t");
+                    break;
+                case '\n':
+                    pending.append("\\n");
+                    break;
+                case '\r':
+                    pending.append("\\r");
+                    break;
+                default:
+                    pending.append(c);
+            }
+        }
+    }
+
+    /**
+     * A method appending a binary value in the hex format, its leading
+     * backslash escaped.
+     *
+     * @param value the value to append.
+     */
+    private void hex(byte[] value) {
+        pending.append("\\\\x");
+
+        for (byte b : value) {
+            pending.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.tkb.the.dsm.cache;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.SessionListener;
+import com.tkb.the.dsm.db.StatementInterceptor;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * A caching connection manager decorator, memoizing the materialized rows of
+ * read queries and invalidating every cached result touching a table once a
+ * write statement for that table is prepared within any of its sessions. The
+ * written tables are invalidated again once the writing session is closed,
+ * so results read before the write commits are not kept.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class CachingConnectionManager implements ConnectionManager {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(CachingConnectionManager.class);
+
+    // Underlying connection manager
+    private final ConnectionManager manager;
+
+    // Query result cache
+    private final QueryResultCache cache;
+
+    // Tables written per open session
+    private final Map<ConnectionSession, Set<String>> written = new ConcurrentHashMap<ConnectionSession, Set<String>>();
+
+    // Write tracker invalidating the tables written within the sessions
+    private final WriteTracker tracker = new WriteTracker();
+
+    /**
+     * A constructor creating a caching connection manager given the underlying
+     * connection manager and the maximum number of cached results.
+     *
+     * @param manager the underlying connection manager.
+     * @param maxEntries the maximum number of cached results.
+     * @throws IllegalArgumentException throws errors if the maximum number of cached results is not positive.
+     */
+    public CachingConnectionManager(ConnectionManager manager, int maxEntries) {
+        this.manager = manager;
+        this.cache = new QueryResultCache(maxEntries);
+    }
+
+    /**
+     * A method setting up the number of minimum idle connections of the
+     * underlying manager.
+     *
+     * @param minIdle the number of minimum idle connections.
+     */
+    @Override
+    public void setMinIdle(int minIdle) {
+        manager.setMinIdle(minIdle);
+    }
+
+    /**
+     * A method setting up the number of maximum idle connections of the
+     * underlying manager.
+     *
+     * @param maxIdle the number of maximum idle connections.
+     */
+    @Override
+    public void setMaxIdle(int maxIdle) {
+        manager.setMaxIdle(maxIdle);
+    }
+
+    /**
+     * A method setting up the number of maximum active connections of the
+     * underlying manager.
+     *
+     * @param maxActive the number of maximum active connections.
+     */
+    @Override
+    public void setMaxActive(int maxActive) {
+        manager.setMaxActive(maxActive);
+    }
+
+    /**
+     * A method setting up the number of maximum prepared statements cached per
+     * physical connection of the underlying manager, zero disables caching.
+     *
+     * @param statementCacheSize the number of maximum cached statements.
+     */
+    @Override
+    public void setStatementCacheSize(int statementCacheSize) {
+        manager.setStatementCacheSize(statementCacheSize);
+    }
+
+    /**
+     * A method setting up the time a session of the underlying manager can be
+     * held before reported as a possible leak.
+     *
+     * @param threshold the threshold in millis, zero disables leak detection.
+     */
+    @Override
+    public void setLeakDetectionThreshold(long threshold) {
+        manager.setLeakDetectionThreshold(threshold);
+    }
+
+    /**
+     * A method setting up the interval of the background evictor of the
+     * underlying manager.
+     *
+     * @param interval the validation interval in millis, zero disables it.
+     */
+    @Override
+    public void setValidationInterval(long interval) {
+        manager.setValidationInterval(interval);
+    }
+
+    /**
+     * A method setting up the maximum lifetime of a connection of the
+     * underlying manager.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     */
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        manager.setMaxLifetime(maxLifetime);
+    }
+
+    /**
+     * A method adding an interceptor of the statements prepared within every
+     * session opened from now on by the underlying manager.
+     *
+     * @param interceptor the statement interceptor.
+     */
+    @Override
+    public void addInterceptor(StatementInterceptor interceptor) {
+        manager.addInterceptor(interceptor);
+    }
+
+    /**
+     * A method opening as many idle connections as missing to reach the number
+     * of minimum idle connections of the underlying manager.
+     */
+    @Override
+    public void prewarm() {
+        manager.prewarm();
+    }
+
+    /**
+     * A method returning a new connection session, tracking the tables its
+     * statements write to.
+     *
+     * @return the connection session to return.
+     */
+    @Override
+    public ConnectionSession getSession() {
+        ConnectionSession session = manager.getSession();
+
+        if (session != null) {
+            session.addInterceptor(tracker);
+            session.addListener(tracker);
+        }
+
+        return session;
+    }
+
+    /**
+     * A method returning the rows of a read query, served from the cache if
+     * already cached and not expired, otherwise read from the database and
+     * cached for the given time to live.
+     *
+     * @param query the SQL query.
+     * @param ttl the time to live in millis.
+     * @param params the query parameters in statement order.
+     * @return the unmodifiable list of rows owned by the caller, null if the
+     * query failed.
+     */
+    public List<Object[]> query(String query, long ttl, Object... params) {
+        QueryResultCache.Key key = new QueryResultCache.Key(query, params);
+
+        List<Object[]> rows = cache.get(key);
+
+        if (rows != null) {
+            return rows;
+        }
+
+        // Taking the table versions before reading to detect concurrent writes
+        Map<String, Long> versions = cache.versionsOf(SqlTables.of(query));
+
+        ConnectionSession session = manager.getSession();
+
+        if (session == null) {
+            return null;
+        }
+
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+
+        try {
+            statement = session.getStatement(query);
+
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+
+            resultSet = statement.executeQuery();
+
+            int columns = resultSet.getMetaData().getColumnCount();
+
+            List<Object[]> result = new ArrayList<Object[]>();
+
+            while (resultSet.next()) {
+                Object[] row = new Object[columns];
+
+                for (int i = 0; i < columns; i++) {
+                    row[i] = resultSet.getObject(i + 1);
+                }
+
+                result.add(row);
+            }
+
+            rows = Collections.unmodifiableList(result);
+
+            cache.put(key, rows, ttl, versions);
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred reading a cacheable query: '" + exc.getMessage() + "'.");
+        } catch (NullPointerException exc) {
+            logger.error("An error occurred reading a cacheable query using a null flavored statement: '" + exc.getMessage() + "'.");
+        } finally {
+            session.close(statement, resultSet);
+        }
+
+        return rows;
+    }
+
+    /**
+     * A method returning the query result cache.
+     *
+     * @return the query result cache.
+     */
+    public QueryResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * A method returning the metrics of the underlying connection manager.
+     *
+     * @return the pool metrics.
+     */
+    @Override
+    public PoolMetrics getMetrics() {
+        return manager.getMetrics();
+    }
+
+    /**
+     * A method resetting the connection manager, clearing the cached results.
+     */
+    @Override
+    public void reset() {
+        cache.clear();
+
+        manager.reset();
+    }
+
+    /**
+     * A method closing the connection manager, clearing the cached results.
+     */
+    @Override
+    public void close() {
+        cache.clear();
+
+        manager.close();
+    }
+
+    @Override
+    public String toString() {
+        return "[CachingConnectionManager " + manager + ", " + cache + "]";
+    }
+
+    /**
+     * A tracker invalidating the tables of the write statements prepared
+     * within a session, both upfront and once the session is closed.
+     */
+    private class WriteTracker implements StatementInterceptor, SessionListener {
+
+        @Override
+        public PreparedStatement intercept(ConnectionSession session, String query, PreparedStatement statement) throws SQLException {
+            if (SqlTables.isWrite(query)) {
+                Set<String> tables = SqlTables.of(query);
+
+                for (String table : tables) {
+                    cache.invalidate(table);
+                }
+
+                Set<String> previous = written.get(session);
+
+                if (previous == null) {
+                    written.put(session, tables);
+                } else {
+                    previous.addAll(tables);
+                }
+            }
+
+            return statement;
+        }
+
+        @Override
+        public void sessionClosed(ConnectionSession session) {
+            Set<String> tables = written.remove(session);
+
+            if (tables != null) {
+                for (String table : tables) {
+                    cache.invalidate(table);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.tkb.the.dsm.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache of materialized query results keyed by the SQL query
+ * plus its bound parameters. Entries expire after a per query time to live
+ * and are invalidated along with any table they have been read from. The
+ * least recently used entry is the eviction victim, while a TinyLFU frequency
+ * sketch admits a new entry only if it is accessed more often than the victim,
+ * so one-off queries cannot flush frequently used results. Rows are copied in
+ * and out of the cache, so callers cannot alter the results of each other.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class QueryResultCache {
+
+    // Maximum number of entries
+    private final int maxEntries;
+
+    // Cached entries in access order
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    // Cached entries keys per table
+    private final Map<String, Set<Key>> tables = new HashMap<String, Set<Key>>();
+
+    // Invalidation versions per table
+    private final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+    // Access frequency sketch
+    private final FrequencySketch sketch;
+
+    // Number of cache hits
+    private long hits;
+
+    // Number of cache misses
+    private long misses;
+
+    /**
+     * A constructor creating a query result cache given the maximum number of
+     * cached results.
+     *
+     * @param maxEntries the maximum number of entries.
+     * @throws IllegalArgumentException throws errors if the maximum number of entries is not positive.
+     */
+    public QueryResultCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum number of entries must be positive: '" + maxEntries + "'.");
+        }
+
+        this.maxEntries = maxEntries;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * A method returning a copy of the cached rows of a query, if not expired.
+     *
+     * @param key the query key.
+     * @return the unmodifiable list of copied rows, null on a miss.
+     */
+    public synchronized List<Object[]> get(Key key) {
+        sketch.increment(key.hashCode());
+
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses++;
+
+            return null;
+        }
+
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            remove(key, entry);
+
+            misses++;
+
+            return null;
+        }
+
+        hits++;
+
+        return copyOf(entry.rows);
+    }
+
+    /**
+     * A method caching the rows of a query read from the given tables, unless
+     * any of the tables has been invalidated since the given versions were
+     * taken or the entry is not admitted over the eviction victim.
+     *
+     * @param key the query key.
+     * @param rows the materialized rows.
+     * @param ttl the time to live in millis.
+     * @param versions the versions of the tables taken before the query run.
+     */
+    public synchronized void put(Key key, List<Object[]> rows, long ttl, Map<String, Long> versions) {
+        // Dropping results possibly read before a concurrent write
+        for (Map.Entry<String, Long> version : versions.entrySet()) {
+            if (versionOf(version.getKey()) != version.getValue()) {
+                return;
+            }
+        }
+
+        Entry previous = entries.get(key);
+
+        if (previous != null) {
+            remove(key, previous);
+        } else if (entries.size() >= maxEntries) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+
+            Map.Entry<Key, Entry> victim = it.next();
+
+            if (sketch.frequency(key.hashCode()) <= sketch.frequency(victim.getKey().hashCode())) {
+                return;
+            }
+
+            remove(victim.getKey(), victim.getValue());
+        }
+
+        Entry entry = new Entry(copyOf(rows), System.currentTimeMillis() + ttl, versions.keySet());
+
+        entries.put(key, entry);
+
+        for (String table : entry.tables) {
+            Set<Key> keys = tables.get(table);
+
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                tables.put(table, keys);
+            }
+
+            keys.add(key);
+        }
+    }
+
+    /**
+     * A method returning the current versions of the given tables, to be taken
+     * before running a query whose results are going to be cached.
+     *
+     * @param names the table names.
+     * @return the versions per table.
+     */
+    public Map<String, Long> versionsOf(Collection<String> names) {
+        Map<String, Long> result = new HashMap<String, Long>();
+
+        for (String name : names) {
+            result.put(name, versionOf(name));
+        }
+
+        return result;
+    }
+
+    /**
+     * A method invalidating all the cached results read from the given table.
+     *
+     * @param table the normalized table name.
+     */
+    public synchronized void invalidate(String table) {
+        AtomicLong version = versions.get(table);
+
+        if (version == null) {
+            versions.putIfAbsent(table, new AtomicLong());
+
+            version = versions.get(table);
+        }
+
+        version.incrementAndGet();
+
+        Set<Key> keys = tables.remove(table);
+
+        if (keys != null) {
+            for (Key key : keys) {
+                Entry entry = entries.get(key);
+
+                if (entry != null) {
+                    remove(key, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * A method invalidating all the cached results.
+     */
+    public synchronized void clear() {
+        for (String table : tables.keySet()) {
+            AtomicLong version = versions.get(table);
+
+            if (version != null) {
+                version.incrementAndGet();
+            }
+        }
+
+        entries.clear();
+        tables.clear();
+    }
+
+    /**
+     * A method returning the number of cached results.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * A method returning the number of lookups served from the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * A method returning the number of lookups missing or expired in the
+     * cache.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * A method copying the given rows, the column values are shared.
+     *
+     * @param rows the rows to copy.
+     * @return the unmodifiable list of copied rows.
+     */
+    private static List<Object[]> copyOf(List<Object[]> rows) {
+        List<Object[]> copy = new ArrayList<Object[]>(rows.size());
+
+        for (Object[] row : rows) {
+            copy.add(row.clone());
+        }
+
+        return Collections.unmodifiableList(copy);
+    }
+
+    private long versionOf(String table) {
+        AtomicLong version = versions.get(table);
+
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * A method removing an entry along with its table references.
+     *
+     * @param key the entry key.
+     * @param entry the entry to remove.
+     */
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+
+        for (String table : entry.tables) {
+            Set<Key> keys = tables.get(table);
+
+            if (keys != null) {
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    tables.remove(table);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[QueryResultCache ")
+          .append("SIZE: '").append(entries.size()).append("', ")
+          .append("HITS: '").append(hits).append("', ")
+          .append("MISSES: '").append(misses).append("'")
+          .append("]");
+
+        return sb.toString();
+    }
+
+    /**
+     * A cache key made of the SQL query and its bound parameters.
+     */
+    public static final class Key {
+
+        // SQL query
+        private final String query;
+
+        // Bound parameters
+        private final Object[] params;
+
+        // Precomputed hash code
+        private final int hash;
+
+        /**
+         * A constructor creating a query key given the SQL query and its
+         * parameters, copied so later changes to the array do not alter it.
+         *
+         * @param query the SQL query.
+         * @param params the query parameters in statement order.
+         */
+        public Key(String query, Object... params) {
+            this.query = query;
+            this.params = params.clone();
+            this.hash = 31 * query.hashCode() + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return hash == other.hash && query.equals(other.query) && Arrays.deepEquals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached result along with its expiration time and source tables.
+     */
+    private static final class Entry {
+
+        // Materialized rows
+        private final List<Object[]> rows;
+
+        // Expiration time in millis
+        private final long expiresAt;
+
+        // Source tables
+        private final Set<String> tables;
+
+        Entry(List<Object[]> rows, long expiresAt, Set<String> tables) {
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+            this.tables = new HashSet<String>(tables);
+        }
+    }
+
+    /**
+     * A count-min sketch estimating access frequencies in four bit counters,
+     * halved periodically so the estimates favor recent accesses.
+     */
+    private static final class FrequencySketch {
+
+        // Hash seeds of the four rows
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        // Counters, sixteen four bit counters per long
+        private final long[] table;
+
+        // Mask of the counter index
+        private final int mask;
+
+        // Number of increments before halving the counters
+        private final int sampleSize;
+
+        // Number of increments since the last halving
+        private int size;
+
+        FrequencySketch(int maxEntries) {
+            int counters = Integer.highestOneBit(Math.max(4 * maxEntries, 64) - 1) << 1;
+
+            table = new long[counters / 16];
+            mask = counters - 1;
+            sampleSize = 10 * Math.max(maxEntries, 1);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int shift = (index & 15) << 2;
+
+                long value = (table[index >>> 4] >>> shift) & 0xfL;
+
+                if (value < 15) {
+                    table[index >>> 4] += 1L << shift;
+
+                    added = true;
+                }
+            }
+
+            if (added && ++size >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+
+                size /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+
+                min = Math.min(min, (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL));
+            }
+
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+
+            h ^= h >>> 32;
+
+            return (int) h & mask;
+        }
+    }
+}
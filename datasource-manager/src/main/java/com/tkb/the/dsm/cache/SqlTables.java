@@ -0,0 +1,106 @@
+package com.tkb.the.dsm.cache;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A lightweight SQL scanner resolving the tables a statement touches and
+ * whether it writes to them, erring on the side of reporting more tables.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+final class SqlTables {
+
+    // Tables following a single table keyword
+    private static final Pattern TABLE = Pattern.compile("(?i)\\b(?:INTO|UPDATE|TABLE)\\s+(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?([\\w.`\"\\[\\]]+)");
+
+    // From clauses up to the next clause keyword
+    private static final Pattern FROM = Pattern.compile("(?is)\\bFROM\\s+(.+?)(?=\\bWHERE\\b|\\bGROUP\\b|\\bORDER\\b|\\bHAVING\\b|\\bLIMIT\\b|\\bUNION\\b|\\bSET\\b|\\)|;|$)");
+
+    // Separators of the tables in a from clause
+    private static final Pattern SEPARATOR = Pattern.compile("(?i),|\\bJOIN\\b");
+
+    // Leading keyword of a statement
+    private static final Pattern KEYWORD = Pattern.compile("^\\s*(\\w+)");
+
+    // Leading keywords of write statements
+    private static final Set<String> WRITES = new HashSet<String>();
+
+    static {
+        String[] keywords = {"INSERT", "UPDATE", "DELETE", "REPLACE", "MERGE", "UPSERT", "TRUNCATE", "ALTER", "DROP", "CREATE"};
+
+        for (String keyword : keywords) {
+            WRITES.add(keyword);
+        }
+    }
+
+    private SqlTables() {
+    }
+
+    /**
+     * A method returning whether the given statement writes to its tables.
+     *
+     * @param sql the SQL statement.
+     * @return true if the statement is a write statement, otherwise false.
+     */
+    static boolean isWrite(String sql) {
+        Matcher matcher = KEYWORD.matcher(sql);
+
+        return matcher.find() && WRITES.contains(matcher.group(1).toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * A method returning the normalized names of the tables the given
+     * statement touches, lower cased without quotes and schema.
+     *
+     * @param sql the SQL statement.
+     * @return the set of table names.
+     */
+    static Set<String> of(String sql) {
+        Set<String> tables = new HashSet<String>();
+
+        Matcher matcher = TABLE.matcher(sql);
+
+        while (matcher.find()) {
+            add(tables, matcher.group(1));
+        }
+
+        matcher = FROM.matcher(sql);
+
+        while (matcher.find()) {
+            for (String part : SEPARATOR.split(matcher.group(1))) {
+                String trimmed = part.trim();
+
+                // Skipping sub queries, scanned by their own from clauses
+                if (!trimmed.isEmpty() && trimmed.charAt(0) != '(') {
+                    add(tables, trimmed.split("\\s+")[0]);
+                }
+            }
+        }
+
+        return tables;
+    }
+
+    /**
+     * A method adding the normalized form of a table name.
+     *
+     * @param tables the set of table names.
+     * @param name the raw table name.
+     */
+    private static void add(Set<String> tables, String name) {
+        String normalized = name.replaceAll("[`\"\\[\\]]", "").toLowerCase(Locale.ROOT);
+
+        int dot = normalized.lastIndexOf('.');
+
+        if (dot >= 0) {
+            normalized = normalized.substring(dot + 1);
+        }
+
+        if (!normalized.isEmpty()) {
+            tables.add(normalized);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.tkb.the.dsm.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.tkb.the.dsm.metrics.LatencyHistogram;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * An adaptive pool sizing controller, periodically deriving the idle target
+ * of a connection manager from the observed borrow rate and hold times by
+ * Little's law plus the threads queued on the exhausted pool, growing it
+ * fast while borrowers wait too long and shrinking it gradually, always
+ * within the configured bounds.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class AdaptivePoolSizer {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(AdaptivePoolSizer.class);
+
+    // Connection manager to size
+    private final ConnectionManager manager;
+
+    // Lower bound of the idle target
+    private final int minBound;
+
+    // Upper bound of the idle target
+    private final int maxBound;
+
+    // Sampling scheduler
+    private final ScheduledExecutorService scheduler;
+
+    // Headroom factor applied over the estimated demand
+    private volatile double headroom = 1.2;
+
+    // Mean borrow wait time in nanos considered too long
+    private volatile long maxWait = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // Current idle target
+    private int target;
+
+    // Previous sample of borrowings
+    private long borrowed;
+
+    // Previous sample of hold times count and sum
+    private long holdCount;
+    private double holdSum;
+
+    // Previous sample of wait times count and sum
+    private long waitCount;
+    private double waitSum;
+
+    // Time in nanos of the previous sample
+    private long sampledAt;
+
+    /**
+     * A constructor creating an adaptive sizing controller given the manager
+     * to size, the bounds of the idle target and the sampling interval.
+     *
+     * @param manager the connection manager to size.
+     * @param minBound the lower bound of the idle target.
+     * @param maxBound the upper bound of the idle target.
+     * @param interval the sampling interval in millis.
+     */
+    public AdaptivePoolSizer(ConnectionManager manager, int minBound, int maxBound, long interval) {
+        this.manager = manager;
+        this.minBound = minBound;
+        this.maxBound = maxBound;
+        this.target = minBound;
+
+        sample(manager.getMetrics());
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "adaptive-pool-sizer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust();
+                } catch (Exception exc) {
+                    logger.error("An unknown error occurred adjusting the pool size: '" + exc.getMessage() + "'.");
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A method setting up the headroom factor applied over the demand.
+     *
+     * @param headroom the headroom factor, at least one.
+     */
+    public void setHeadroom(double headroom) {
+        this.headroom = Math.max(1.0, headroom);
+    }
+
+    /**
+     * A method setting up the mean borrow wait time considered too long,
+     * growing the pool regardless of the estimated demand.
+     *
+     * @param maxWait the maximum mean wait time in millis.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * A method adjusting the idle target to the demand observed since the
+     * previous sample.
+     */
+    synchronized void adjust() {
+        PoolMetrics metrics = manager.getMetrics();
+
+        long lastBorrowed = borrowed;
+        long lastHoldCount = holdCount;
+        double lastHoldSum = holdSum;
+        long lastWaitCount = waitCount;
+        double lastWaitSum = waitSum;
+        long lastSampledAt = sampledAt;
+
+        sample(metrics);
+
+        long borrowings = borrowed - lastBorrowed;
+        long holds = holdCount - lastHoldCount;
+        long waits = waitCount - lastWaitCount;
+
+        // Skipping samples spanning a metrics reset
+        if (borrowings < 0 || holds < 0 || waits < 0) {
+            return;
+        }
+
+        double seconds = (sampledAt - lastSampledAt) / 1e9;
+        double rate = seconds > 0 ? borrowings / seconds : 0.0;
+        double meanHold = holds > 0 ? (holdSum - lastHoldSum) / holds : 0.0;
+        double meanWait = waits > 0 ? (waitSum - lastWaitSum) / waits : 0.0;
+
+        // Connections held concurrently on average, by Little's law
+        double demand = rate * meanHold / 1e9;
+
+        // Threads blocked on the exhausted pool, not yet part of the demand
+        int queued = metrics.getWaiting();
+
+        int next = (int) Math.ceil(demand * headroom) + queued;
+
+        if (meanWait > maxWait) {
+            next = Math.max(next, target + Math.max(1, target / 4));
+        } else if (next < target) {
+            next = Math.max(next, target - Math.max(1, target / 8));
+        }
+
+        next = Math.max(minBound, Math.min(maxBound, next));
+
+        if (next != target) {
+            logger.info("Resizing idle connections from " + target + " to " + next + " [RATE: '" + Math.round(rate)
+                    + "/s', HOLD: '" + Math.round(meanHold / 1e6) + "ms', WAIT: '" + Math.round(meanWait / 1e6) + "ms', QUEUED: '" + queued + "'].");
+
+            if (next > target) {
+                manager.setMaxIdle(next);
+                manager.setMinIdle(next);
+                manager.prewarm();
+            } else {
+                manager.setMinIdle(next);
+                manager.setMaxIdle(next);
+            }
+
+            target = next;
+        }
+    }
+
+    /**
+     * A method taking a sample of the cumulative metrics.
+     *
+     * @param metrics the pool metrics.
+     */
+    private void sample(PoolMetrics metrics) {
+        LatencyHistogram hold = metrics.getHoldTimes();
+        LatencyHistogram wait = metrics.getWaitTimes();
+
+        borrowed = metrics.getBorrowed();
+        holdCount = hold.getCount();
+        holdSum = hold.getMean() * holdCount;
+        waitCount = wait.getCount();
+        waitSum = wait.getMean() * waitCount;
+        sampledAt = System.nanoTime();
+    }
+
+    /**
+     * A method returning the current idle target, kept within the bounds.
+     *
+     * @return the number of idle connections targeted.
+     */
+    public synchronized int getTarget() {
+        return target;
+    }
+
+    /**
+     * A method stopping the controller, the last idle target is kept.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
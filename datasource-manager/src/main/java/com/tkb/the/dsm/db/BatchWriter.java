@@ -0,0 +1,163 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.apache.log4j.Logger;
+
+/**
+ * A batch writer chunking parameter rows into JDBC batches of a fixed size,
+ * committing each chunk in its own transaction. If the session is already
+ * within a transaction chunks are executed but committing is left to the
+ * caller.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class BatchWriter implements AutoCloseable {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(BatchWriter.class);
+
+    // Owner connection session
+    private final ConnectionSession session;
+
+    // Datasource connection
+    private final Connection connection;
+
+    // Batch statement
+    private final PreparedStatement statement;
+
+    // Number of rows per chunk
+    private final int batchSize;
+
+    // Auto commit mode before the writer took over
+    private final boolean autoCommit;
+
+    // Number of rows added in the current chunk
+    private int pending;
+
+    // Number of rows written
+    private long written;
+
+    /**
+     * A constructor creating a batch writer given the session, the SQL query
+     * and the number of rows per chunk.
+     *
+     * @param session the owner connection session.
+     * @param connection the session connection.
+     * @param query the SQL query to batch.
+     * @param batchSize the number of rows per chunk.
+     * @throws SQLException throws errors preparing the statement.
+     */
+    BatchWriter(ConnectionSession session, Connection connection, String query, int batchSize) throws SQLException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: '" + batchSize + "'.");
+        }
+
+        this.session = session;
+        this.connection = connection;
+        this.batchSize = batchSize;
+
+        statement = session.prepare(query);
+
+        autoCommit = connection.getAutoCommit();
+
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * A method adding a parameter row to the batch, executing the chunk once
+     * the batch size is reached.
+     *
+     * @param params the row parameters in statement order.
+     * @throws SQLException throws errors executing the chunk.
+     */
+    public void add(Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+
+        statement.addBatch();
+
+        if (++pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * A method executing and committing the rows added so far, rolling the
+     * chunk back on errors.
+     *
+     * @throws SQLException throws errors executing the chunk.
+     */
+    public void flush() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+
+        try {
+            statement.executeBatch();
+
+            if (autoCommit) {
+                connection.commit();
+            }
+
+            written += pending;
+        } catch (SQLException exc) {
+            rollback();
+
+            throw exc;
+        } finally {
+            pending = 0;
+        }
+    }
+
+    /**
+     * A method flushing the remaining rows and restoring the auto commit mode
+     * of the session.
+     *
+     * @throws SQLException throws errors executing the last chunk.
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            try {
+                statement.clearBatch();
+
+                if (autoCommit) {
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                session.release(statement);
+            }
+        }
+    }
+
+    /**
+     * A method returning the number of rows written in committed chunks.
+     *
+     * @return the number of rows written.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * A method rolling back the current chunk quietly.
+     */
+    private void rollback() {
+        try {
+            statement.clearBatch();
+
+            if (autoCommit) {
+                connection.rollback();
+            }
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred rolling back a batch chunk: '" + exc.getMessage() + "'.");
+        }
+    }
+}
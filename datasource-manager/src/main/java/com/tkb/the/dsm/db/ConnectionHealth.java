@@ -0,0 +1,95 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A health record of a physical connection, expiring it a little before its
+ * maximum lifetime by a random jitter of up to a tenth of the lifetime, so
+ * connections opened together are not all reconnected at once.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+class ConnectionHealth {
+
+    // Maximum fraction of the lifetime taken off as jitter
+    private static final double MAX_JITTER = 0.1;
+
+    // Creation time in millis
+    private final long createdAt;
+
+    // Fraction of the lifetime taken off this connection
+    private final double jitter;
+
+    /**
+     * A constructor creating the health record of a connection just opened.
+     */
+    ConnectionHealth() {
+        this.createdAt = System.currentTimeMillis();
+        this.jitter = ThreadLocalRandom.current().nextDouble(MAX_JITTER);
+    }
+
+    /**
+     * A method returning whether the connection has outlived the given
+     * maximum lifetime, reduced by the jitter of the connection.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     * @return true if the connection has expired, otherwise false.
+     */
+    boolean isExpired(long maxLifetime) {
+        if (maxLifetime <= 0) {
+            return false;
+        }
+
+        return System.currentTimeMillis() - createdAt >= (long) (maxLifetime * (1.0 - jitter));
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * A method validating a connection against the database, falling back to
+     * a trivial query for drivers not supporting the validity check.
+     *
+     * @param connection the connection to validate.
+     * @param timeout the validation timeout in seconds.
+     * @return true if the connection is alive, otherwise false.
+     */
+    static boolean isValid(Connection connection, int timeout) {
+        try {
+            try {
+                return connection.isValid(timeout);
+            } catch (SQLFeatureNotSupportedException exc) {
+                return query(connection, timeout);
+            } catch (AbstractMethodError exc) {
+                return query(connection, timeout);
+            }
+        } catch (SQLException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * A method validating a connection running a trivial query.
+     *
+     * @param connection the connection to validate.
+     * @param timeout the query timeout in seconds.
+     * @return true if the query succeeded, otherwise false.
+     * @throws SQLException throws errors running the query.
+     */
+    private static boolean query(Connection connection, int timeout) throws SQLException {
+        Statement statement = connection.createStatement();
+
+        try {
+            statement.setQueryTimeout(timeout);
+
+            return statement.execute("SELECT 1");
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.tkb.the.dsm.db;
 
+import com.tkb.the.dsm.metrics.PoolMetrics;
+
 /**
  * An abstract data source connection manager.
  *
@@ -12,8 +14,22 @@ public interface ConnectionManager {
     public void setMaxIdle(int maxIdle);
 
     public void setMaxActive(int maxActive);
+    
+    public void setStatementCacheSize(int statementCacheSize);
+
+    public void setLeakDetectionThreshold(long threshold);
+    
+    public void setValidationInterval(long interval);
+    
+    public void setMaxLifetime(long maxLifetime);
+    
+    public void addInterceptor(StatementInterceptor interceptor);
+    
+    public void prewarm();
 
     public ConnectionSession getSession();
+    
+    public PoolMetrics getMetrics();
 
     public void reset();
     
@@ -1,8 +1,16 @@
 package com.tkb.the.dsm.db;
 
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.sql.DataSource;
+import com.tkb.the.dsm.metrics.LeakDetector;
+import com.tkb.the.dsm.metrics.PoolMetrics;
 import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
@@ -24,9 +32,48 @@ public class ConnectionPool implements ConnectionManager {
     
     // Connections pool
     private GenericObjectPool pool;
+    
+    // Prepared statements caches per physical connection
+    private final ConcurrentHashMap<Connection, StatementCache> caches = new ConcurrentHashMap<Connection, StatementCache>();
+    
+    // Maximum number of cached statements per connection
+    private volatile int statementCacheSize;
+
+    // Health records per physical connection
+    private final ConcurrentHashMap<Connection, ConnectionHealth> healths = new ConcurrentHashMap<Connection, ConnectionHealth>();
+
+    // Maximum lifetime in millis of a connection, zero for unlimited
+    private volatile long maxLifetime = 1800000;
+
+    // Validation timeout in seconds
+    private volatile int validationTimeout = 5;
+
+    // Connection pool metrics
+    private final PoolMetrics metrics = new PoolMetrics();
+    
+    // Statement interceptors added to every session
+    private final List<StatementInterceptor> interceptors = new CopyOnWriteArrayList<StatementInterceptor>();
+    
+    // Leak detector, null if disabled
+    private volatile LeakDetector leakDetector;
+    
+    // Session tracker recording hold times and releasing leak traces
+    private final SessionListener tracker = new SessionListener() {
+        @Override
+        public void sessionClosed(ConnectionSession session) {
+            metrics.recordHold(System.nanoTime() - session.getOpenedAt());
+
+            LeakDetector detector = leakDetector;
+
+            if (detector != null) {
+                detector.untrack(session);
+            }
+        }
+    };
 
     /**
-     * A constructor creating a poolable connection manager.
+     * A constructor creating a poolable connection manager, keeping at least
+     * 10 idle and at most 20 active connections.
      *
      * @param jdbcDriver the JDBC driver to load.
      * @param url the database URL to connect.
@@ -34,6 +81,21 @@ public class ConnectionPool implements ConnectionManager {
      * @param password the database password.
      */
     public ConnectionPool(String jdbcDriver, String url, String username, String password) {
+        this(jdbcDriver, url, username, password, 10, 20);
+    }
+
+    /**
+     * A constructor creating a poolable connection manager given the sizing
+     * of the pool, opening the minimum idle connections in parallel upfront.
+     *
+     * @param jdbcDriver the JDBC driver to load.
+     * @param url the database URL to connect.
+     * @param username the database username.
+     * @param password the database password.
+     * @param minIdle the number of minimum idle connections.
+     * @param maxActive the number of maximum active connections.
+     */
+    public ConnectionPool(String jdbcDriver, String url, String username, String password, int minIdle, int maxActive) {
         try {
             // Loading the JDBC driver
             Class.forName(jdbcDriver);
@@ -42,17 +104,74 @@ public class ConnectionPool implements ConnectionManager {
             pool = new GenericObjectPool(null);
 
             // Setting minimum number of idle connections
-            pool.setMinIdle(10);
-            pool.setMaxActive(20);
+            pool.setMinIdle(minIdle);
+            pool.setMaxIdle(Math.max(minIdle, maxActive));
+            pool.setMaxActive(maxActive);
 
             // Creating a poolable data source
-            ConnectionFactory cf = new DriverManagerConnectionFactory(url, username, password);
+            ConnectionFactory cf = new DriverManagerConnectionFactory(url, Dialect.fromUrl(url).getConnectionProperties(username, password));
+
+            PoolableConnectionFactory pcf = new PoolableConnectionFactory(cf, pool, null, null, false, true) {
+                @Override
+                public Object makeObject() throws Exception {
+                    Object obj = super.makeObject();
+
+                    metrics.connectionCreated();
+
+                    if (obj instanceof DelegatingConnection) {
+                        healths.put(((DelegatingConnection) obj).getInnermostDelegate(), new ConnectionHealth());
+                    }
+
+                    return obj;
+                }
+
+                @Override
+                public void destroyObject(Object obj) throws Exception {
+                    metrics.connectionDestroyed();
+
+                    // Dropping the statements cache along with the physical connection
+                    if (obj instanceof DelegatingConnection) {
+                        Connection physical = ((DelegatingConnection) obj).getInnermostDelegate();
+
+                        caches.remove(physical);
+                        healths.remove(physical);
+                    }
+
+                    super.destroyObject(obj);
+                }
+
+                @Override
+                public boolean validateObject(Object obj) {
+                    if (!(obj instanceof DelegatingConnection)) {
+                        return false;
+                    }
+
+                    Connection physical = ((DelegatingConnection) obj).getInnermostDelegate();
+
+                    return !isExpired(physical) && ConnectionHealth.isValid(physical, validationTimeout);
+                }
+
+                @Override
+                public void passivateObject(Object obj) throws Exception {
+                    // Failing passivation gets an expired connection destroyed once given back
+                    if (obj instanceof DelegatingConnection && isExpired(((DelegatingConnection) obj).getInnermostDelegate())) {
+                        throw new SQLException("Connection has exceeded its maximum lifetime.");
+                    }
 
-            PoolableConnectionFactory pcf = new PoolableConnectionFactory(cf, pool, null, null, false, true);
+                    super.passivateObject(obj);
+                }
+            };
 
-            datasource = new PoolingDataSource(pool);
+            PoolingDataSource pds = new PoolingDataSource(pool);
+            pds.setAccessToUnderlyingConnectionAllowed(true);
+
+            datasource = pds;
+
+            setValidationInterval(30000);
             
             logger.info("Connection manager loaded successfully linked to database '" + url + "'.");
+
+            prewarm();
         } catch (ClassNotFoundException exc) {
             logger.error("An error occurred loading the JDBC driver: '" + exc.getMessage() + "'.");
         } catch (Exception exc) {
@@ -60,6 +179,30 @@ public class ConnectionPool implements ConnectionManager {
         }
     }
 
+    /**
+     * A method opening in parallel as many idle connections as missing to
+     * reach the number of minimum idle connections.
+     */
+    @Override
+    public void prewarm() {
+        if (pool == null || pool.isClosed()) {
+            return;
+        }
+
+        int opened = ConnectionWarmer.warm(pool.getMinIdle() - pool.getNumIdle(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                pool.addObject();
+
+                return null;
+            }
+        });
+
+        if (opened > 0) {
+            logger.info("Connection manager warmed up with " + opened + " idle connections.");
+        }
+    }
+
     /**
      * A method setting up the number of minimum idle connections.
      *
@@ -90,6 +233,96 @@ public class ConnectionPool implements ConnectionManager {
         pool.setMaxActive(maxActive);
     }
 
+    /**
+     * A method setting up the number of maximum prepared statements cached per
+     * physical connection, zero disables caching.
+     *
+     * @param statementCacheSize the number of maximum cached statements.
+     */
+    @Override
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+
+        for (StatementCache cache : caches.values()) {
+            cache.setMaxSize(statementCacheSize);
+        }
+    }
+
+    /**
+     * A method setting up the time a session can be held before reported as
+     * a possible leak along with the stack it has been acquired from.
+     *
+     * @param threshold the threshold in millis, zero disables leak detection.
+     */
+    @Override
+    public synchronized void setLeakDetectionThreshold(long threshold) {
+        if (leakDetector != null) {
+            leakDetector.close();
+        }
+
+        leakDetector = threshold > 0 ? new LeakDetector(threshold) : null;
+    }
+
+    /**
+     * A method setting up the interval of the background evictor, validating
+     * the idle connections, destroying the broken or expired ones and opening
+     * their replacements off the borrowing path.
+     *
+     * @param interval the validation interval in millis, zero disables it.
+     */
+    @Override
+    public void setValidationInterval(long interval) {
+        pool.setTestOnBorrow(false);
+        pool.setTestWhileIdle(interval > 0);
+        pool.setNumTestsPerEvictionRun(-1);
+        pool.setTimeBetweenEvictionRunsMillis(interval > 0 ? interval : -1);
+    }
+
+    /**
+     * A method setting up the maximum lifetime of a connection, each one is
+     * retired up to a tenth of the lifetime earlier at random so connections
+     * opened together are not reconnected all at once.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     */
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * A method setting up the time to wait for a connection to be validated.
+     *
+     * @param validationTimeout the validation timeout in seconds.
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * A method returning whether a physical connection has outlived the
+     * maximum lifetime.
+     *
+     * @param physical the physical connection.
+     * @return true if the connection has expired, otherwise false.
+     */
+    private boolean isExpired(Connection physical) {
+        ConnectionHealth health = healths.get(physical);
+
+        return health != null && health.isExpired(maxLifetime);
+    }
+
+    /**
+     * A method adding an interceptor of the statements prepared within every
+     * session opened from now on.
+     *
+     * @param interceptor the statement interceptor.
+     */
+    @Override
+    public void addInterceptor(StatementInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
     /**
      * A method returning a new connection session.
      *
@@ -99,19 +332,114 @@ public class ConnectionPool implements ConnectionManager {
     public ConnectionSession getSession() {
         ConnectionSession session = null;
 
+        long start = metrics.beginWait();
+
         try {
-            session = new ConnectionSession(datasource.getConnection());
+            Connection connection = borrow();
+
+            session = new ConnectionSession(connection, getStatementCache(connection));
+
+            track(session);
         } catch (SQLException exc) {
             logger.error("An SQL error occurred getting a new connection session: '" + exc.getMessage() + "'.");
         } catch (NullPointerException exc) {
             logger.error("An error occurred getting a new connection session from an null flavored connection manager: '" + exc.getMessage() + "'.");
         } catch (Exception exc) {
             logger.error("An unknown error occurred getting a new connection session: '" + exc.getMessage() + "'.");
+        } finally {
+            metrics.endWait(start, session != null);
         }
 
         return session;
     }
 
+    /**
+     * A method borrowing a connection from the data source, counting the
+     * calling thread as queued only if the pool is exhausted and it blocks.
+     *
+     * @return the pooled connection.
+     * @throws SQLException throws errors borrowing the connection.
+     */
+    private Connection borrow() throws SQLException {
+        int maxActive = pool.getMaxActive();
+
+        if (maxActive < 0 || pool.getNumIdle() > 0 || pool.getNumActive() < maxActive) {
+            return datasource.getConnection();
+        }
+
+        metrics.enterQueue();
+
+        try {
+            return datasource.getConnection();
+        } finally {
+            metrics.leaveQueue();
+        }
+    }
+
+    /**
+     * A method returning the metrics of the connection manager.
+     *
+     * @return the pool metrics.
+     */
+    @Override
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * A method starting tracking a new session.
+     *
+     * @param session the session to track.
+     */
+    private void track(ConnectionSession session) {
+        session.addListener(tracker);
+
+        for (StatementInterceptor interceptor : interceptors) {
+            session.addInterceptor(interceptor);
+        }
+
+        LeakDetector detector = leakDetector;
+
+        if (detector != null) {
+            detector.track(session);
+        }
+    }
+
+    /**
+     * A method returning the statements cache of the physical connection
+     * behind the given pooled connection, statements are prepared on the
+     * physical connection so they survive giving the connection back.
+     *
+     * @param connection the pooled connection.
+     * @return the statements cache, null if caching is disabled.
+     */
+    private StatementCache getStatementCache(Connection connection) {
+        int size = statementCacheSize;
+
+        if (size <= 0) {
+            return null;
+        }
+
+        Connection physical = ((DelegatingConnection) connection).getInnermostDelegate();
+
+        StatementCache cache = caches.get(physical);
+
+        if (cache == null) {
+            cache = new StatementCache(physical, size);
+
+            StatementCache previous = caches.putIfAbsent(physical, cache);
+
+            if (previous != null) {
+                cache = previous;
+            }
+        } else {
+            // Checking in statements the previous borrower has not released
+            cache.releaseAll();
+        }
+
+        return cache;
+    }
+
     /**
      * A method resetting the connection manager.
      */
@@ -127,6 +455,8 @@ public class ConnectionPool implements ConnectionManager {
      */
     @Override
     public void close() {
+        setLeakDetectionThreshold(0);
+
         if (pool != null && !pool.isClosed()) {
             try {
                 pool.close();
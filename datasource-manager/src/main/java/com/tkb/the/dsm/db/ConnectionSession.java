@@ -1,9 +1,17 @@
 package com.tkb.the.dsm.db;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import com.tkb.the.dsm.mapping.RowMappers;
 import org.apache.log4j.Logger;
 
 /**
@@ -18,6 +26,27 @@ public class ConnectionSession {
     
     // Datasource connection
     private Connection connection;
+    
+    // Prepared statements cache of the physical connection
+    private StatementCache cache;
+    
+    // Database dialect, resolved on first use
+    private Dialect dialect;
+    
+    // Time in nanos the session opened
+    private final long openedAt = System.nanoTime();
+    
+    // Session lifecycle listeners
+    private List<SessionListener> listeners;
+    
+    // Statement interceptors
+    private List<StatementInterceptor> interceptors;
+    
+    // Original statements per statement replaced by the interceptors
+    private Map<PreparedStatement, PreparedStatement> originals;
+    
+    // Flag marking the session as released to its listeners
+    private boolean released;
 
     /**
      * A constructor creating a connection session given a JDBC connection.
@@ -27,9 +56,22 @@ public class ConnectionSession {
     public ConnectionSession(Connection connection) {
         this.connection = connection;
     }
+    
+    /**
+     * A constructor creating a connection session given a JDBC connection and
+     * the prepared statements cache of the underlying physical connection.
+     *
+     * @param connection the database connection.
+     * @param cache the prepared statements cache, null to disable caching.
+     */
+    public ConnectionSession(Connection connection, StatementCache cache) {
+        this.connection = connection;
+        this.cache = cache;
+    }
 
     /**
-     * A method returning prepared statement given the SQL query.
+     * A method returning prepared statement given the SQL query, served from
+     * the statements cache if the session is linked to one.
      *
      * @return the prepared statement.
      */
@@ -37,7 +79,7 @@ public class ConnectionSession {
         PreparedStatement statement = null;
 
         try {
-            statement = connection.prepareStatement(query);
+            statement = prepare(query);
         } catch (SQLException exc) {
             logger.error("An SQL error occurred creating a statement: '" + exc.getMessage() + "'.");
         } catch (NullPointerException exc) {
@@ -49,9 +91,218 @@ public class ConnectionSession {
         return statement;
     }
 
+    /**
+     * A method preparing a statement given the SQL query, served from the
+     * statements cache if the session is linked to one.
+     *
+     * @param query the SQL query.
+     * @return the prepared statement.
+     * @throws SQLException throws errors preparing the statement.
+     */
+    PreparedStatement prepare(String query) throws SQLException {
+        PreparedStatement statement;
+        
+        if (cache != null) {
+            statement = cache.prepare(query);
+        } else {
+            statement = connection.prepareStatement(query);
+        }
+
+        PreparedStatement intercepted = intercept(query, statement);
+
+        // Remembering the original so a cached statement is given back on release
+        if (intercepted != statement) {
+            if (originals == null) {
+                originals = new IdentityHashMap<PreparedStatement, PreparedStatement>();
+            }
+
+            originals.put(intercepted, statement);
+        }
+
+        return intercepted;
+    }
+    
+    /**
+     * A method passing a prepared statement through the session interceptors.
+     *
+     * @param query the SQL query of the statement.
+     * @param statement the prepared statement.
+     * @return the statement returned by the last interceptor.
+     * @throws SQLException throws errors raised by the interceptors.
+     */
+    PreparedStatement intercept(String query, PreparedStatement statement) throws SQLException {
+        if (interceptors != null) {
+            for (StatementInterceptor interceptor : interceptors) {
+                statement = interceptor.intercept(this, query, statement);
+            }
+        }
+        
+        return statement;
+    }
+    
+    /**
+     * A method releasing a statement, giving it back to the statements cache
+     * if cached otherwise closing it.
+     *
+     * @param statement the statement to release.
+     * @throws SQLException throws errors closing the statement.
+     */
+    public void release(PreparedStatement statement) throws SQLException {
+        if (originals != null && statement != null) {
+            PreparedStatement original = originals.remove(statement);
+
+            if (original != null) {
+                statement = original;
+            }
+        }
+
+        if (statement != null && !statement.isClosed() && (cache == null || !cache.release(statement))) {
+            statement.close();
+        }
+    }
+    
+    /**
+     * A method returning a batch writer given the SQL query and the number of
+     * rows per batch, each batch is committed in its own transaction.
+     *
+     * @param query the SQL query to batch.
+     * @param batchSize the number of rows per batch.
+     * @return the batch writer.
+     * @throws SQLException throws errors preparing the statement.
+     */
+    public BatchWriter getBatchWriter(String query, int batchSize) throws SQLException {
+        return new BatchWriter(this, connection, query, batchSize);
+    }
+    
+    /**
+     * A method executing the SQL query for every given parameter row, chunked
+     * in batches of the given size each committed in its own transaction.
+     *
+     * @param query the SQL query to batch.
+     * @param rows the parameter rows.
+     * @param batchSize the number of rows per batch.
+     * @return the number of rows written.
+     * @throws SQLException throws errors executing a batch, rows of previous
+     * batches remain committed.
+     */
+    public long executeBatch(String query, Iterator<Object[]> rows, int batchSize) throws SQLException {
+        BatchWriter writer = getBatchWriter(query, batchSize);
+        
+        try {
+            while (rows.hasNext()) {
+                writer.add(rows.next());
+            }
+        } finally {
+            writer.close();
+        }
+        
+        return writer.getWritten();
+    }
+    
+    /**
+     * A method executing the SQL query for every given parameter row, chunked
+     * in batches of the given size each committed in its own transaction.
+     *
+     * @param query the SQL query to batch.
+     * @param rows the stream of parameter rows.
+     * @param batchSize the number of rows per batch.
+     * @return the number of rows written.
+     * @throws SQLException throws errors executing a batch, rows of previous
+     * batches remain committed.
+     */
+    public long executeBatch(String query, Stream<Object[]> rows, int batchSize) throws SQLException {
+        return executeBatch(query, rows.iterator(), batchSize);
+    }
+
+    /**
+     * A method opening a cursor streaming the results of the SQL query in
+     * chunks of the given fetch size, instead of buffering the whole result
+     * set in memory. The cursor owns the session, closing the cursor or
+     * reaching its end closes the session as well.
+     *
+     * @param query the SQL query.
+     * @param mapper the row mapper.
+     * @param fetchSize the number of rows per fetch.
+     * @param params the query parameters in statement order.
+     * @return the result cursor.
+     * @throws SQLException throws errors executing the query.
+     */
+    public <T> ResultCursor<T> openCursor(String query, RowMapper<T> mapper, int fetchSize, Object... params) throws SQLException {
+        return new ResultCursor<T>(this, connection, query, mapper, fetchSize, params);
+    }
+    
+    /**
+     * A method returning a lazily evaluated stream over the results of the SQL
+     * query, streamed in chunks of the given fetch size. Closing the stream
+     * closes the session as well.
+     *
+     * @param query the SQL query.
+     * @param mapper the row mapper.
+     * @param fetchSize the number of rows per fetch.
+     * @param params the query parameters in statement order.
+     * @return the stream of mapped rows.
+     * @throws SQLException throws errors executing the query.
+     */
+    public <T> Stream<T> stream(String query, RowMapper<T> mapper, int fetchSize, Object... params) throws SQLException {
+        return openCursor(query, mapper, fetchSize, params).stream();
+    }
+
+    /**
+     * A method executing the SQL query mapping every row of the results, the
+     * session is left open once the results have been read.
+     *
+     * @param query the SQL query.
+     * @param mapper the row mapper.
+     * @param params the query parameters in statement order.
+     * @return the list of mapped rows.
+     * @throws SQLException throws errors executing the query or mapping a row.
+     */
+    public <T> List<T> query(String query, RowMapper<T> mapper, Object... params) throws SQLException {
+        PreparedStatement statement = prepare(query);
+
+        ResultSet resultSet = null;
+
+        try {
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+
+            resultSet = statement.executeQuery();
+
+            List<T> rows = new ArrayList<T>();
+
+            while (resultSet.next()) {
+                rows.add(mapper.map(resultSet, rows.size()));
+            }
+
+            return rows;
+        } finally {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+
+            release(statement);
+        }
+    }
+
+    /**
+     * A method executing the SQL query mapping every row of the results into
+     * a bean of the given class, using the precompiled mapper of the query.
+     *
+     * @param query the SQL query.
+     * @param type the bean class.
+     * @param params the query parameters in statement order.
+     * @return the list of mapped beans.
+     * @throws SQLException throws errors executing the query or mapping a row.
+     */
+    public <T> List<T> query(String query, Class<T> type, Object... params) throws SQLException {
+        return query(query, RowMappers.of(query, type), params);
+    }
+
     /**
      * A method closing an open connection session given the related statement
-     * and result set resources.
+     * and result set resources, cached statements are given back to the cache
+     * instead of being closed.
      *
      * @param statement the prepared statement resource.
      * @param resultSet the result set resource.
@@ -62,9 +313,7 @@ public class ConnectionSession {
                 resultSet.close();
             }
 
-            if (statement != null && !statement.isClosed()) {
-                statement.close();
-            }
+            release(statement);
 
             if (connection != null && !connection.isClosed()) {
                 connection.close();
@@ -73,7 +322,44 @@ public class ConnectionSession {
             logger.error("An SQL error occured closing a connection session: '" + exc.getMessage() + "'.");
         } catch (Exception exc) {
             logger.error("An unknown error occured closing a connection session: '" + exc.getMessage() + "'.");
+        } finally {
+            originals = null;
+
+            notifyClosed();
+        }
+    }
+    
+    /**
+     * A method notifying the session listeners the session has been closed,
+     * listeners are notified only once.
+     */
+    private void notifyClosed() {
+        if (released || listeners == null) {
+            return;
+        }
+        
+        released = true;
+        
+        for (SessionListener listener : listeners) {
+            try {
+                listener.sessionClosed(this);
+            } catch (Exception exc) {
+                logger.error("An unknown error occured notifying a session listener: '" + exc.getMessage() + "'.");
+            }
+        }
+    }
+    
+    /**
+     * A method adding a listener to be notified once the session is closed.
+     * 
+     * @param listener the session listener.
+     */
+    public void addListener(SessionListener listener) {
+        if (listeners == null) {
+            listeners = new ArrayList<SessionListener>(2);
         }
+        
+        listeners.add(listener);
     }
     
     /**
@@ -96,4 +382,131 @@ public class ConnectionSession {
         
         return closed;
     }
+    
+    /**
+     * A method adding an interceptor of the statements prepared within the
+     * session.
+     * 
+     * @param interceptor the statement interceptor.
+     */
+    public void addInterceptor(StatementInterceptor interceptor) {
+        if (interceptors == null) {
+            interceptors = new ArrayList<StatementInterceptor>(2);
+        }
+        
+        interceptors.add(interceptor);
+    }
+    
+    /**
+     * A method returning the prepared statements cache of the session.
+     * 
+     * @return the statements cache, null if caching is disabled.
+     */
+    public StatementCache getStatementCache() {
+        return cache;
+    }
+    
+    /**
+     * A method returning the time the session opened, as given by the nano
+     * time of the system.
+     * 
+     * @return the opening time in nanos.
+     */
+    public long getOpenedAt() {
+        return openedAt;
+    }
+    
+    /**
+     * A method setting the session connection in read only mode, as a hint
+     * for the driver and the database to optimize the session.
+     * 
+     * @param readOnly true to enable read only mode, otherwise false.
+     */
+    public void setReadOnly(boolean readOnly) {
+        try {
+            connection.setReadOnly(readOnly);
+        } catch (SQLException exc) {
+            logger.error("An SQL error occured setting a connection session read only: '" + exc.getMessage() + "'.");
+        } catch (NullPointerException exc) {
+            logger.error("An error occured setting a null flavored connection session read only: '" + exc.getMessage() + "'.");
+        } catch (Exception exc) {
+            logger.error("An unknown error occured setting a connection session read only: '" + exc.getMessage() + "'.");
+        }
+    }
+    
+    /**
+     * A method setting up the auto commit mode of the session, turning it off
+     * starts a transaction ended by commit or rollback.
+     * 
+     * @param autoCommit true to commit every statement, otherwise false.
+     * @throws SQLException throws errors setting the mode.
+     */
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        connection.setAutoCommit(autoCommit);
+    }
+    
+    /**
+     * A method returning the auto commit mode of the session.
+     * 
+     * @return true if every statement is committed, otherwise false.
+     * @throws SQLException throws errors reading the mode.
+     */
+    public boolean getAutoCommit() throws SQLException {
+        return connection.getAutoCommit();
+    }
+    
+    /**
+     * A method committing the current transaction of the session.
+     * 
+     * @throws SQLException throws errors committing the transaction.
+     */
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+    
+    /**
+     * A method rolling back the current transaction of the session.
+     * 
+     * @throws SQLException throws errors rolling back the transaction.
+     */
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+    
+    /**
+     * A method returning the driver specific connection behind the session,
+     * to reach vendor extensions the JDBC API does not cover.
+     * 
+     * @param iface the driver interface to unwrap.
+     * @return the connection implementing the interface.
+     * @throws SQLException throws errors if the connection is not a wrapper for it.
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return connection.unwrap(iface);
+    }
+    
+    /**
+     * A method returning the meta data of the database the session is linked
+     * to, such as its URL and server version.
+     * 
+     * @return the database meta data.
+     * @throws SQLException throws errors reading the connection meta data.
+     */
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return connection.getMetaData();
+    }
+    
+    /**
+     * A method returning the dialect of the database the session is linked to.
+     * 
+     * @return the database dialect.
+     * @throws SQLException throws errors reading the connection meta data.
+     */
+    public Dialect getDialect() throws SQLException {
+        if (dialect == null) {
+            dialect = Dialect.fromUrl(connection.getMetaData().getURL());
+        }
+        
+        return dialect;
+    }
 }
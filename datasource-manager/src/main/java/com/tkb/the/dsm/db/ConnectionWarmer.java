@@ -0,0 +1,87 @@
+package com.tkb.the.dsm.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * A connection warmer opening idle connections in parallel, so the network,
+ * TLS and authentication round trips of each connection overlap.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+final class ConnectionWarmer {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(ConnectionWarmer.class);
+
+    // Maximum number of connections opened in parallel
+    private static final int MAX_PARALLELISM = 8;
+
+    private ConnectionWarmer() {
+    }
+
+    /**
+     * A method running the given connection opening task the given number of
+     * times in parallel, waiting for all of them to complete.
+     *
+     * @param count the number of connections to open.
+     * @param task the task opening an idle connection.
+     * @return the number of connections opened successfully.
+     */
+    static int warm(int count, Callable<Void> task) {
+        if (count <= 0) {
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, MAX_PARALLELISM), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connection-warmer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        int opened = 0;
+
+        String error = null;
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(count);
+
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(task));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+
+                    opened++;
+                } catch (ExecutionException exc) {
+                    error = exc.getCause().getMessage();
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+
+            error = "interrupted";
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (error != null) {
+            logger.error("An error occurred warming up " + (count - opened) + " of " + count + " connections: '" + error + "'.");
+        }
+
+        return opened;
+    }
+}
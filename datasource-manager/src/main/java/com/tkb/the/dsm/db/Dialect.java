@@ -0,0 +1,151 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An enumeration of the database dialects with driver specific tunings.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public enum Dialect {
+
+    MYSQL("jdbc:mysql:"),
+    POSTGRESQL("jdbc:postgresql:"),
+    GENERIC("jdbc:");
+
+    // Server version pattern capturing the major, minor and patch numbers
+    private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+
+    // Database URL prefix
+    private final String prefix;
+
+    private Dialect(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * A method returning the dialect of a database URL.
+     *
+     * @param url the database URL.
+     * @return the dialect of the URL.
+     */
+    public static Dialect fromUrl(String url) {
+        if (url != null) {
+            for (Dialect dialect : values()) {
+                if (url.startsWith(dialect.prefix)) {
+                    return dialect;
+                }
+            }
+        }
+
+        return GENERIC;
+    }
+
+    /**
+     * A method returning the connection properties given the credentials,
+     * enabling the driver fast path rewriting batches into multi-row
+     * statements, properties set in the URL take precedence.
+     *
+     * @param username the database username.
+     * @param password the database password.
+     * @return the connection properties.
+     */
+    public Properties getConnectionProperties(String username, String password) {
+        Properties properties = new Properties();
+
+        if (username != null) {
+            properties.setProperty("user", username);
+        }
+
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+
+        switch (this) {
+            case MYSQL:
+                properties.setProperty("rewriteBatchedStatements", "true");
+                break;
+            case POSTGRESQL:
+                properties.setProperty("reWriteBatchedInserts", "true");
+                break;
+            default:
+                break;
+        }
+
+        return properties;
+    }
+
+    /**
+     * A method returning the fetch size making the driver stream a result set
+     * instead of buffering it in memory, MySQL streams rows one by one only
+     * given the minimum integer as fetch size.
+     *
+     * @param fetchSize the requested number of rows per fetch.
+     * @return the driver specific fetch size.
+     */
+    public int getStreamingFetchSize(int fetchSize) {
+        return this == MYSQL ? Integer.MIN_VALUE : fetchSize;
+    }
+
+    /**
+     * A method returning whether the driver honors the fetch size only within
+     * a transaction, as PostgreSQL does using server side cursors.
+     *
+     * @return true if streaming requires auto commit off, otherwise false.
+     */
+    public boolean isStreamingTransactional() {
+        return this == POSTGRESQL;
+    }
+
+    /**
+     * A method returning the query measuring the replication lag of a replica
+     * in seconds given the server meta data. MySQL reports it in the
+     * 'Seconds_Behind_Source' column of the replica status since 8.0.22 and
+     * in the 'Seconds_Behind_Master' column of the slave status before, while
+     * PostgreSQL reports it in the first column, zero once fully replayed,
+     * using the WAL functions since 10 and the xlog functions before.
+     *
+     * @param metaData the meta data of the replica.
+     * @return the replication lag query, null if not supported.
+     * @throws SQLException throws errors reading the server version.
+     */
+    public String getReplicationLagQuery(DatabaseMetaData metaData) throws SQLException {
+        switch (this) {
+            case MYSQL:
+                int major = metaData.getDatabaseMajorVersion();
+                int minor = metaData.getDatabaseMinorVersion();
+
+                if (major > 8 || (major == 8 && (minor > 0 || patchOf(metaData.getDatabaseProductVersion()) >= 22))) {
+                    return "SHOW REPLICA STATUS";
+                }
+
+                return "SHOW SLAVE STATUS";
+            case POSTGRESQL:
+                if (metaData.getDatabaseMajorVersion() >= 10) {
+                    return "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+                            + "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+                }
+
+                return "SELECT CASE WHEN pg_last_xlog_receive_location() = pg_last_xlog_replay_location() THEN 0 "
+                        + "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A method returning the patch number of a server version string.
+     *
+     * @param version the server version, such as '8.0.35-log'.
+     * @return the patch number, zero if missing.
+     */
+    private static int patchOf(String version) {
+        Matcher matcher = VERSION.matcher(version != null ? version : "");
+
+        return matcher.find() ? Integer.parseInt(matcher.group(3)) : 0;
+    }
+}
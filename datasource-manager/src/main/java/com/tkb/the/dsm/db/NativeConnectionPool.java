@@ -0,0 +1,628 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import com.tkb.the.dsm.metrics.LeakDetector;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * A native poolable JDBC connection manager implementation, keeping idle
+ * connections in a lock-free queue, handing the last used connection back to
+ * the same thread on a fast path and bounding the active connections with a
+ * fair wait once the pool is exhausted. A background evictor validates the
+ * idle connections and retires the expired ones, so borrowing never pays for
+ * health checks.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class NativeConnectionPool implements ConnectionManager {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(NativeConnectionPool.class);
+
+    // Database URL
+    private final String url;
+
+    // Connection properties
+    private final Properties properties;
+
+    // Idle connections, most recently used first
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+
+    // Last used connection per thread
+    private final ThreadLocal<PooledConnection> lastUsed = new ThreadLocal<PooledConnection>();
+
+    // Number of idle connections
+    private final AtomicInteger numIdle = new AtomicInteger();
+
+    // Number of physical connections, both idle and active
+    private final AtomicInteger numTotal = new AtomicInteger();
+
+    // Active connection permits
+    private final Permits permits;
+
+    // Minimum number of idle connections
+    private volatile int minIdle = 10;
+
+    // Maximum number of idle connections
+    private volatile int maxIdle = 20;
+
+    // Maximum number of active connections
+    private int maxActive = 20;
+
+    // Maximum time in millis to wait for a connection
+    private volatile long maxWait = 30000;
+
+    // Maximum number of cached statements per connection
+    private volatile int statementCacheSize;
+
+    // Maximum lifetime in millis of a connection, zero for unlimited
+    private volatile long maxLifetime = 1800000;
+
+    // Validation timeout in seconds
+    private volatile int validationTimeout = 5;
+
+    // Background evictor
+    private final ScheduledExecutorService evictor;
+
+    // Scheduled eviction runs, null if disabled
+    private ScheduledFuture<?> evictions;
+
+    // Flag marking the manager as closed
+    private volatile boolean closed;
+
+    // Connection pool metrics
+    private final PoolMetrics metrics = new PoolMetrics();
+    
+    // Statement interceptors added to every session
+    private final List<StatementInterceptor> interceptors = new CopyOnWriteArrayList<StatementInterceptor>();
+    
+    // Leak detector, null if disabled
+    private volatile LeakDetector leakDetector;
+    
+    // Session tracker recording hold times and releasing leak traces
+    private final SessionListener tracker = new SessionListener() {
+        @Override
+        public void sessionClosed(ConnectionSession session) {
+            metrics.recordHold(System.nanoTime() - session.getOpenedAt());
+
+            LeakDetector detector = leakDetector;
+
+            if (detector != null) {
+                detector.untrack(session);
+            }
+        }
+    };
+
+    /**
+     * A constructor creating a native poolable connection manager.
+     *
+     * @param jdbcDriver the JDBC driver to load.
+     * @param url the database URL to connect.
+     * @param username the database username.
+     * @param password the database password.
+     */
+    public NativeConnectionPool(String jdbcDriver, String url, String username, String password) {
+        this.url = url;
+        this.properties = Dialect.fromUrl(url).getConnectionProperties(username, password);
+
+        permits = new Permits(maxActive);
+
+        metrics.setQueueDepth(new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return permits.getQueueLength();
+            }
+        });
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connection-evictor");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        setValidationInterval(30000);
+
+        try {
+            // Loading the JDBC driver
+            Class.forName(jdbcDriver);
+
+            logger.info("Connection manager loaded successfully linked to database '" + url + "'.");
+        } catch (ClassNotFoundException exc) {
+            logger.error("An error occurred loading the JDBC driver: '" + exc.getMessage() + "'.");
+        }
+    }
+
+    /**
+     * A method setting up the number of minimum idle connections, kept open
+     * even if the number of maximum idle connections is exceeded.
+     *
+     * @param minIdle the number of minimum idle connections.
+     */
+    @Override
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * A method setting up the number of maximum idle connections.
+     *
+     * @param maxIdle the number of maximum idle connections.
+     */
+    @Override
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * A method setting up the number of maximum active connections.
+     *
+     * @param maxActive the number of maximum active connections.
+     */
+    @Override
+    public synchronized void setMaxActive(int maxActive) {
+        int delta = maxActive - this.maxActive;
+
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * A method setting up the maximum time to wait for a connection once the
+     * pool is exhausted.
+     *
+     * @param maxWait the maximum time to wait in millis.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * A method setting up the number of maximum prepared statements cached per
+     * physical connection, zero disables caching.
+     *
+     * @param statementCacheSize the number of maximum cached statements.
+     */
+    @Override
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * A method setting up the time a session can be held before reported as
+     * a possible leak along with the stack it has been acquired from.
+     *
+     * @param threshold the threshold in millis, zero disables leak detection.
+     */
+    @Override
+    public synchronized void setLeakDetectionThreshold(long threshold) {
+        if (leakDetector != null) {
+            leakDetector.close();
+        }
+
+        leakDetector = threshold > 0 ? new LeakDetector(threshold) : null;
+    }
+
+    /**
+     * A method setting up the interval of the background evictor, validating
+     * the idle connections, destroying the broken or expired ones and opening
+     * their replacements off the borrowing path.
+     *
+     * @param interval the validation interval in millis, zero disables it.
+     */
+    @Override
+    public synchronized void setValidationInterval(long interval) {
+        if (evictions != null) {
+            evictions.cancel(false);
+            evictions = null;
+        }
+
+        if (interval > 0 && !closed) {
+            evictions = evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evict();
+                    } catch (Exception exc) {
+                        logger.error("An unknown error occurred evicting idle connections: '" + exc.getMessage() + "'.");
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A method setting up the maximum lifetime of a connection, each one is
+     * retired up to a tenth of the lifetime earlier at random so connections
+     * opened together are not reconnected all at once.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     */
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * A method setting up the time to wait for a connection to be validated.
+     *
+     * @param validationTimeout the validation timeout in seconds.
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * A method validating every idle connection not borrowed meanwhile,
+     * destroying the broken or expired ones and opening replacements up to
+     * the number of minimum idle connections.
+     */
+    void evict() {
+        int evicted = 0;
+
+        for (PooledConnection pc : idle) {
+            // Reserving the connection keeps borrowers off while validating
+            if (!pc.reserve()) {
+                continue;
+            }
+
+            numIdle.decrementAndGet();
+
+            if (pc.isExpired(maxLifetime) || !ConnectionHealth.isValid(pc.getConnection(), validationTimeout)) {
+                if (pc.remove(PooledConnection.IN_USE)) {
+                    idle.remove(pc);
+
+                    destroy(pc);
+
+                    evicted++;
+                }
+            } else if (pc.unreserve()) {
+                numIdle.incrementAndGet();
+
+                if (pc.enqueue()) {
+                    idle.offerLast(pc);
+                }
+            }
+        }
+
+        if (evicted > 0) {
+            logger.info("Connection manager evicted " + evicted + " broken or expired idle connections.");
+        }
+
+        prewarm();
+    }
+
+    /**
+     * A method opening in parallel as many idle connections as missing to
+     * reach the number of minimum idle connections.
+     */
+    @Override
+    public void prewarm() {
+        if (closed) {
+            return;
+        }
+
+        ConnectionWarmer.warm(minIdle - numIdle.get(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                PooledConnection pc = create();
+
+                if (closed || !pc.unreserve()) {
+                    if (pc.remove(PooledConnection.IN_USE)) {
+                        destroy(pc);
+                    }
+                } else {
+                    numIdle.incrementAndGet();
+
+                    if (pc.enqueue()) {
+                        idle.offerLast(pc);
+                    }
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A method adding an interceptor of the statements prepared within every
+     * session opened from now on.
+     *
+     * @param interceptor the statement interceptor.
+     */
+    @Override
+    public void addInterceptor(StatementInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * A method returning a new connection session.
+     *
+     * @return the connection session to return.
+     */
+    @Override
+    public ConnectionSession getSession() {
+        ConnectionSession session = null;
+
+        long start = metrics.beginWait();
+
+        try {
+            PooledConnection pc = borrow();
+
+            session = new ConnectionSession(pc.open(), pc.getStatementCache(statementCacheSize));
+
+            track(session);
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred getting a new connection session: '" + exc.getMessage() + "'.");
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+
+            logger.error("An interruption occurred waiting for a new connection session: '" + exc.getMessage() + "'.");
+        } catch (Exception exc) {
+            logger.error("An unknown error occurred getting a new connection session: '" + exc.getMessage() + "'.");
+        } finally {
+            metrics.endWait(start, session != null);
+        }
+
+        return session;
+    }
+
+    /**
+     * A method returning the metrics of the connection manager.
+     *
+     * @return the pool metrics.
+     */
+    @Override
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * A method starting tracking a new session.
+     *
+     * @param session the session to track.
+     */
+    private void track(ConnectionSession session) {
+        session.addListener(tracker);
+
+        for (StatementInterceptor interceptor : interceptors) {
+            session.addInterceptor(interceptor);
+        }
+
+        LeakDetector detector = leakDetector;
+
+        if (detector != null) {
+            detector.track(session);
+        }
+    }
+
+    /**
+     * A method borrowing a connection, trying first the last connection used
+     * by the calling thread, then the idle queue and finally opening a new one.
+     *
+     * @return the pooled connection in use.
+     * @throws SQLException throws errors opening a new connection.
+     * @throws InterruptedException throws interruptions while waiting.
+     */
+    private PooledConnection borrow() throws SQLException, InterruptedException {
+        if (closed) {
+            throw new SQLException("Connection manager has been already closed.");
+        }
+
+        if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+            throw new SQLException("Timed out waiting " + maxWait + "ms for an available connection.");
+        }
+
+        try {
+            // Trying the connection last used by this thread
+            PooledConnection pc = lastUsed.get();
+
+            if (pc != null && pc.reserve()) {
+                numIdle.decrementAndGet();
+
+                return pc;
+            }
+
+            // Polling the idle queue, skipping connections already reserved
+            while ((pc = idle.pollFirst()) != null) {
+                pc.dequeue();
+
+                if (pc.reserve()) {
+                    numIdle.decrementAndGet();
+
+                    return pc;
+                }
+            }
+
+            return create();
+        } catch (SQLException exc) {
+            permits.release();
+
+            throw exc;
+        } catch (RuntimeException exc) {
+            permits.release();
+
+            throw exc;
+        }
+    }
+
+    /**
+     * A method opening a new physical connection in use.
+     *
+     * @return the new pooled connection.
+     * @throws SQLException throws errors opening the connection.
+     */
+    private PooledConnection create() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, properties);
+
+        numTotal.incrementAndGet();
+
+        metrics.connectionCreated();
+
+        return new PooledConnection(this, connection);
+    }
+
+    /**
+     * A method giving a borrowed connection back to the pool, destroying it
+     * if the pool has been closed, its state is broken or enough connections
+     * are already idle.
+     *
+     * @param pc the pooled connection to release.
+     */
+    void release(PooledConnection pc) {
+        try {
+            if (closed || numIdle.get() >= Math.max(maxIdle, minIdle) || pc.isExpired(maxLifetime) || !passivate(pc.getConnection())) {
+                if (pc.remove(PooledConnection.IN_USE)) {
+                    destroy(pc);
+                }
+            } else if (pc.unreserve()) {
+                numIdle.incrementAndGet();
+
+                lastUsed.set(pc);
+
+                if (pc.enqueue()) {
+                    idle.offerFirst(pc);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * A method restoring the default state of a connection before it gets idle.
+     *
+     * @param connection the connection to passivate.
+     * @return true if the connection is reusable, otherwise false.
+     */
+    private boolean passivate(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+
+            connection.clearWarnings();
+
+            return true;
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred passivating a connection: '" + exc.getMessage() + "'.");
+
+            return false;
+        }
+    }
+
+    /**
+     * A method destroying a removed pooled connection.
+     *
+     * @param pc the pooled connection to destroy.
+     */
+    private void destroy(PooledConnection pc) {
+        numTotal.decrementAndGet();
+
+        metrics.connectionDestroyed();
+
+        pc.destroy();
+    }
+
+    /**
+     * A method resetting the connection manager destroying all the idle
+     * connections.
+     */
+    @Override
+    public void reset() {
+        PooledConnection pc;
+
+        while ((pc = idle.pollFirst()) != null) {
+            pc.dequeue();
+
+            if (pc.remove(PooledConnection.IDLE)) {
+                numIdle.decrementAndGet();
+
+                destroy(pc);
+            }
+        }
+    }
+
+    /**
+     * A method closing the connection manager, active connections are
+     * destroyed once given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        setLeakDetectionThreshold(0);
+
+        evictor.shutdownNow();
+
+        reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[ConnectionManager ");
+
+        int nic = numIdle.get();
+
+        sb.append("NIC: '").append(nic).append("', ")
+          .append("NAC: '").append(numTotal.get() - nic).append("'");
+
+        sb.append("]");
+
+        return sb.toString();
+    }
+
+    /**
+     * A fair semaphore bounding the active connections, able to shrink its
+     * permits when the maximum number of active connections is lowered.
+     */
+    private static class Permits extends Semaphore {
+
+        // Serialization version
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
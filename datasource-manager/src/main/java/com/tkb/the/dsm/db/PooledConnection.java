@@ -0,0 +1,232 @@
+package com.tkb.the.dsm.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A physical JDBC connection owned by a native connection pool, tracking its
+ * borrowing state through lock-free transitions.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+class PooledConnection {
+
+    // Connection states
+    static final int IDLE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = 2;
+
+    // Owner connection pool
+    private final NativeConnectionPool pool;
+
+    // Physical connection
+    private final Connection connection;
+
+    // Borrowing state
+    private final AtomicInteger state = new AtomicInteger(IN_USE);
+
+    // Flag marking the connection as linked in the idle queue
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    // Health record
+    private final ConnectionHealth health = new ConnectionHealth();
+
+    // Last borrowing time in millis
+    private volatile long borrowedAt;
+
+    // Prepared statements cache, accessed only by the borrowing thread
+    private StatementCache cache;
+
+    /**
+     * A constructor creating a pooled connection given the owner pool and the
+     * physical connection.
+     *
+     * @param pool the owner connection pool.
+     * @param connection the physical connection.
+     */
+    PooledConnection(NativeConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.borrowedAt = health.getCreatedAt();
+    }
+
+    /**
+     * A method reserving an idle connection for the calling thread.
+     *
+     * @return true if the connection was idle and is now in use, otherwise false.
+     */
+    boolean reserve() {
+        if (state.compareAndSet(IDLE, IN_USE)) {
+            borrowedAt = System.currentTimeMillis();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * A method marking an in use connection as idle again.
+     *
+     * @return true if the connection was in use, otherwise false.
+     */
+    boolean unreserve() {
+        return state.compareAndSet(IN_USE, IDLE);
+    }
+
+    /**
+     * A method marking the connection as removed from the pool.
+     *
+     * @param expected the state the connection is expected to be in.
+     * @return true if the connection was in the expected state, otherwise false.
+     */
+    boolean remove(int expected) {
+        return state.compareAndSet(expected, REMOVED);
+    }
+
+    /**
+     * A method flagging the connection as linked in the idle queue.
+     *
+     * @return true if the connection was not already linked, otherwise false.
+     */
+    boolean enqueue() {
+        return queued.compareAndSet(false, true);
+    }
+
+    /**
+     * A method clearing the idle queue link flag after a poll.
+     */
+    void dequeue() {
+        queued.set(false);
+    }
+
+    /**
+     * A method returning a new logical connection handle, closing which gives
+     * the physical connection back to the pool.
+     *
+     * @return the logical connection handle.
+     */
+    Connection open() {
+        return (Connection) Proxy.newProxyInstance(
+                PooledConnection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Handle());
+    }
+
+    /**
+     * A method returning the prepared statements cache of the connection,
+     * resized to the given size and dropped once caching is disabled.
+     *
+     * @param size the maximum number of cached statements.
+     * @return the statements cache, null if caching is disabled.
+     */
+    StatementCache getStatementCache(int size) {
+        if (size <= 0) {
+            if (cache != null) {
+                cache.clear();
+                cache = null;
+            }
+        } else if (cache == null) {
+            cache = new StatementCache(connection, size);
+        } else {
+            cache.setMaxSize(size);
+        }
+
+        return cache;
+    }
+
+    /**
+     * A method closing the physical connection quietly.
+     */
+    void destroy() {
+        try {
+            connection.close();
+        } catch (SQLException exc) {
+            // Nothing to do, the connection is discarded anyway
+        }
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * A method returning whether the connection has outlived the given
+     * maximum lifetime, reduced by its jitter.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     * @return true if the connection has expired, otherwise false.
+     */
+    boolean isExpired(long maxLifetime) {
+        return health.isExpired(maxLifetime);
+    }
+
+    long getCreatedAt() {
+        return health.getCreatedAt();
+    }
+
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    /**
+     * A logical connection handle routing calls to the physical connection
+     * until closed.
+     */
+    private class Handle implements InvocationHandler {
+
+        // Flag marking the handle as closed
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if ("close".equals(name)) {
+                if (closed.compareAndSet(false, true)) {
+                    // Statements not released by the session are checked in
+                    if (cache != null) {
+                        cache.releaseAll();
+                    }
+
+                    pool.release(PooledConnection.this);
+                }
+
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed.get() || connection.isClosed();
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "[PooledConnection " + connection + "]";
+            } else if (closed.get()) {
+                throw new SQLException("Connection handle has been already closed.");
+            }
+
+            // Unwrapping the physical connection regardless of driver support
+            if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(connection)) {
+                return connection;
+            } else if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(connection)) {
+                return true;
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException exc) {
+                throw exc.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * A forward only cursor lazily mapping the rows of a streamed result set.
+ * The cursor owns its session, closing the cursor or reaching its end closes
+ * the result set, the statement and the session.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class ResultCursor<T> implements Iterator<T>, AutoCloseable {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(ResultCursor.class);
+
+    // Owner connection session
+    private final ConnectionSession session;
+
+    // Datasource connection
+    private final Connection connection;
+
+    // Row mapper
+    private final RowMapper<T> mapper;
+
+    // Cursor statement
+    private PreparedStatement statement;
+
+    // Streamed result set
+    private ResultSet resultSet;
+
+    // Flag marking auto commit has been turned off for streaming
+    private boolean autoCommitOff;
+
+    // Number of rows mapped
+    private int rowNum;
+
+    // Flag marking the current row as fetched but not consumed
+    private boolean fetched;
+
+    // Flag marking the cursor as closed
+    private boolean closed;
+
+    /**
+     * A constructor opening a cursor given the session, the SQL query, the
+     * row mapper, the number of rows per fetch and the query parameters.
+     *
+     * @param session the owner connection session.
+     * @param connection the session connection.
+     * @param query the SQL query.
+     * @param mapper the row mapper.
+     * @param fetchSize the number of rows per fetch.
+     * @param params the query parameters in statement order.
+     * @throws SQLException throws errors executing the query.
+     */
+    ResultCursor(ConnectionSession session, Connection connection, String query, RowMapper<T> mapper, int fetchSize, Object... params) throws SQLException {
+        this.session = session;
+        this.connection = connection;
+        this.mapper = mapper;
+
+        Dialect dialect = session.getDialect();
+
+        try {
+            if (dialect.isStreamingTransactional() && connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+
+                autoCommitOff = true;
+            }
+
+            statement = session.intercept(query, connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+            statement.setFetchSize(dialect.getStreamingFetchSize(fetchSize));
+
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+
+            resultSet = statement.executeQuery();
+        } catch (SQLException exc) {
+            close();
+
+            throw exc;
+        }
+    }
+
+    /**
+     * A method fetching the next row if the current one has been consumed.
+     *
+     * @return true if there is a row to map, otherwise false.
+     * @throws IllegalStateException throws SQL errors fetching the row.
+     */
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+
+        if (!fetched) {
+            try {
+                fetched = resultSet.next();
+            } catch (SQLException exc) {
+                close();
+
+                throw new IllegalStateException("An SQL error occurred fetching a cursor row: '" + exc.getMessage() + "'.", exc);
+            }
+
+            if (!fetched) {
+                close();
+            }
+        }
+
+        return fetched;
+    }
+
+    /**
+     * A method mapping and returning the next row.
+     *
+     * @return the mapped row.
+     * @throws IllegalStateException throws SQL errors mapping the row.
+     */
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        fetched = false;
+
+        try {
+            return mapper.map(resultSet, rowNum++);
+        } catch (SQLException exc) {
+            close();
+
+            throw new IllegalStateException("An SQL error occurred mapping a cursor row: '" + exc.getMessage() + "'.", exc);
+        }
+    }
+
+    /**
+     * A method returning a sequential stream over the remaining rows, closing
+     * the stream closes the cursor.
+     *
+     * @return the stream of mapped rows.
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED);
+
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * A method closing the cursor, ending the streaming transaction and
+     * closing the session.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+
+            if (statement != null) {
+                statement.close();
+            }
+
+            if (autoCommitOff) {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred closing a cursor: '" + exc.getMessage() + "'.");
+        } finally {
+            session.close(null, null);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A generic result set row mapper interface.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface RowMapper<T> {
+
+    public T map(ResultSet resultSet, int rowNum) throws SQLException;
+}
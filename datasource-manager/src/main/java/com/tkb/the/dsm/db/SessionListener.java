@@ -0,0 +1,11 @@
+package com.tkb.the.dsm.db;
+
+/**
+ * A listener of connection session lifecycle events.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface SessionListener {
+
+    public void sessionClosed(ConnectionSession session);
+}
@@ -0,0 +1,251 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of prepared statements keyed by the SQL text,
+ * bound to a physical connection and living across the sessions borrowing it.
+ * Statements are checked out of the cache until released, a query prepared
+ * again while its cached statement is in use gets an uncached statement.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class StatementCache {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(StatementCache.class);
+
+    // Physical connection
+    private final Connection connection;
+
+    // Cached statements in access order
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+
+    // Cached statements reverse index
+    private final Map<PreparedStatement, String> queries = new IdentityHashMap<PreparedStatement, String>();
+
+    // Cached statements checked out and not released yet
+    private final Set<PreparedStatement> inUse = Collections.newSetFromMap(new IdentityHashMap<PreparedStatement, Boolean>());
+
+    // Maximum number of cached statements
+    private int maxSize;
+
+    // Number of cache hits
+    private long hits;
+
+    // Number of cache misses
+    private long misses;
+
+    /**
+     * A constructor creating a statement cache given the physical connection
+     * and the maximum number of statements to cache.
+     *
+     * @param connection the physical connection to prepare statements on.
+     * @param maxSize the maximum number of cached statements.
+     */
+    public StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * A method checking out the cached prepared statement of the given SQL
+     * query, preparing and caching a new one on a miss. If the cached one is
+     * already in use an uncached statement is prepared, which is not owned by
+     * the cache and has to be closed once released.
+     *
+     * @param query the SQL query.
+     * @return the prepared statement.
+     * @throws SQLException throws errors preparing the statement.
+     */
+    public synchronized PreparedStatement prepare(String query) throws SQLException {
+        PreparedStatement statement = statements.get(query);
+
+        if (statement != null && inUse.contains(statement)) {
+            misses++;
+
+            return connection.prepareStatement(query);
+        }
+
+        if (statement != null && !statement.isClosed()) {
+            hits++;
+
+            inUse.add(statement);
+
+            return statement;
+        }
+
+        misses++;
+
+        if (statement != null) {
+            queries.remove(statement);
+        }
+
+        statement = connection.prepareStatement(query);
+
+        statements.put(query, statement);
+        queries.put(statement, query);
+        inUse.add(statement);
+
+        trim();
+
+        return statement;
+    }
+
+    /**
+     * A method giving a cached statement back to the cache clearing its
+     * parameters, statements not owned by the cache are left untouched.
+     *
+     * @param statement the statement to give back.
+     * @return true if the statement is owned by the cache, otherwise false.
+     */
+    public synchronized boolean release(PreparedStatement statement) {
+        if (!queries.containsKey(statement)) {
+            return false;
+        }
+
+        inUse.remove(statement);
+
+        try {
+            statement.clearParameters();
+        } catch (SQLException exc) {
+            // Discarding a statement which cannot be reused
+            evict(queries.get(statement));
+        }
+
+        return true;
+    }
+
+    /**
+     * A method giving back every statement still checked out, once the
+     * physical connection returns to the pool.
+     */
+    public synchronized void releaseAll() {
+        for (PreparedStatement statement : inUse.toArray(new PreparedStatement[inUse.size()])) {
+            release(statement);
+        }
+    }
+
+    /**
+     * A method setting up the maximum number of cached statements, closing the
+     * least recently used ones exceeding the new size.
+     *
+     * @param maxSize the maximum number of cached statements.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+
+        trim();
+    }
+
+    /**
+     * A method closing and removing all the cached statements.
+     */
+    public synchronized void clear() {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+
+        statements.clear();
+        queries.clear();
+        inUse.clear();
+    }
+
+    /**
+     * A method returning the number of cached statements.
+     *
+     * @return the number of cached statements.
+     */
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * A method returning the number of statements served from the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * A method returning the number of statements prepared on the connection.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * A method removing the least recently used statements exceeding the
+     * maximum size of the cache, statements in use are left open and get
+     * closed by the session once released.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+
+        while (statements.size() > maxSize && it.hasNext()) {
+            PreparedStatement statement = it.next().getValue();
+
+            it.remove();
+            queries.remove(statement);
+
+            if (!inUse.remove(statement)) {
+                close(statement);
+            }
+        }
+    }
+
+    /**
+     * A method closing and removing the cached statement of the given query.
+     *
+     * @param query the SQL query.
+     */
+    private void evict(String query) {
+        PreparedStatement statement = statements.remove(query);
+
+        if (statement != null) {
+            queries.remove(statement);
+            inUse.remove(statement);
+
+            close(statement);
+        }
+    }
+
+    /**
+     * A method closing a statement quietly.
+     *
+     * @param statement the statement to close.
+     */
+    private void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException exc) {
+            logger.error("An SQL error occurred closing a cached statement: '" + exc.getMessage() + "'.");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[StatementCache ")
+          .append("SIZE: '").append(statements.size()).append("', ")
+          .append("HITS: '").append(hits).append("', ")
+          .append("MISSES: '").append(misses).append("'")
+          .append("]");
+
+        return sb.toString();
+    }
+}
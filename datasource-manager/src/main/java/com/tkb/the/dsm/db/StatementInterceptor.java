@@ -0,0 +1,15 @@
+package com.tkb.the.dsm.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A generic interceptor of the statements prepared within a connection
+ * session, able to observe or decorate them.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface StatementInterceptor {
+
+    public PreparedStatement intercept(ConnectionSession session, String query, PreparedStatement statement) throws SQLException;
+}
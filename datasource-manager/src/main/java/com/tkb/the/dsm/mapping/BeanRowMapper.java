@@ -0,0 +1,609 @@
+package com.tkb.the.dsm.mapping;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import com.tkb.the.dsm.db.RowMapper;
+
+/**
+ * A row mapper materializing rows into beans of a given class. The columns
+ * are matched to the bean setters or fields by name, ignoring case and
+ * underscores, once on the first row. Setters are bound into generated
+ * lambdas, typed per column to skip boxing primitives, so every further row
+ * is mapped by column index with no reflection and no name lookups.
+ *
+ * A mapper is bound to the columns of a single query, use one mapper per
+ * query, as cached by the row mappers registry.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class BeanRowMapper<T> implements RowMapper<T> {
+
+    // Bean class
+    private final Class<T> type;
+
+    // Bean factory
+    private final Supplier<T> factory;
+
+    // Column readers in column order, resolved on the first row
+    private volatile Column<T>[] columns;
+
+    /**
+     * A constructor creating a bean row mapper given the bean class, which
+     * must have a no arguments constructor.
+     *
+     * @param type the bean class.
+     * @throws IllegalArgumentException throws errors if the class cannot be instantiated.
+     */
+    public BeanRowMapper(Class<T> type) {
+        this.type = type;
+        this.factory = Accessors.factory(type);
+    }
+
+    /**
+     * A method mapping a row into a new bean.
+     *
+     * @param resultSet the result set positioned on the row.
+     * @param rowNum the row number.
+     * @return the mapped bean.
+     * @throws SQLException throws errors reading the columns.
+     */
+    @Override
+    public T map(ResultSet resultSet, int rowNum) throws SQLException {
+        Column<T>[] readers = columns;
+
+        if (readers == null) {
+            readers = resolve(resultSet.getMetaData());
+
+            columns = readers;
+        }
+
+        T bean = factory.get();
+
+        for (Column<T> reader : readers) {
+            reader.read(resultSet, bean);
+        }
+
+        return bean;
+    }
+
+    /**
+     * A method resolving the readers of the columns matching a bean property,
+     * other columns are ignored.
+     *
+     * @param metaData the result set meta data.
+     * @return the column readers.
+     * @throws SQLException throws errors reading the meta data.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Column<T>[] resolve(ResultSetMetaData metaData) throws SQLException {
+        Map<String, Property> properties = Property.of(type);
+
+        int count = metaData.getColumnCount();
+
+        Column<T>[] readers = new Column[count];
+
+        int resolved = 0;
+
+        for (int i = 1; i <= count; i++) {
+            Property property = properties.get(Property.key(metaData.getColumnLabel(i)));
+
+            if (property != null) {
+                readers[resolved++] = Column.of(i, property);
+            }
+        }
+
+        Column<T>[] result = new Column[resolved];
+
+        System.arraycopy(readers, 0, result, 0, resolved);
+
+        return result;
+    }
+
+    /**
+     * A writable bean property, either a setter or a field.
+     */
+    static final class Property {
+
+        // Property type
+        final Class<?> type;
+
+        // Setter method, null if a field
+        final Method setter;
+
+        // Writable field, null if a setter
+        final Field field;
+
+        Property(Class<?> type, Method setter, Field field) {
+            this.type = type;
+            this.setter = setter;
+            this.field = field;
+        }
+
+        /**
+         * A method returning the writable properties of a class by matching
+         * key, setters taking precedence over fields.
+         *
+         * @param type the bean class.
+         * @return the properties by key.
+         */
+        static Map<String, Property> of(Class<?> type) {
+            Map<String, Property> properties = new HashMap<String, Property>();
+
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) && !properties.containsKey(key(field.getName()))) {
+                        properties.put(key(field.getName()), new Property(field.getType(), null, field));
+                    }
+                }
+            }
+
+            for (Method method : type.getMethods()) {
+                String name = method.getName();
+
+                if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1 && !Modifier.isStatic(method.getModifiers())) {
+                    properties.put(key(name.substring(3)), new Property(method.getParameterTypes()[0], method, null));
+                }
+            }
+
+            return properties;
+        }
+
+        /**
+         * A method returning the matching key of a column or property name.
+         *
+         * @param name the column or property name.
+         * @return the lower cased name without underscores.
+         */
+        static String key(String name) {
+            return name.replace("_", "").toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * A reader of a column into a bean property.
+     */
+    abstract static class Column<T> {
+
+        // Column index
+        final int index;
+
+        Column(int index) {
+            this.index = index;
+        }
+
+        abstract void read(ResultSet resultSet, T bean) throws SQLException;
+
+        /**
+         * A method creating the reader of a column given the property it maps
+         * into, reading the column by the getter matching the property type.
+         *
+         * @param index the column index.
+         * @param property the bean property.
+         * @return the column reader.
+         */
+        @SuppressWarnings("unchecked")
+        static <T> Column<T> of(final int index, Property property) {
+            final Class<?> type = property.type;
+
+            if (type == int.class) {
+                final ObjIntConsumer<T> setter = Accessors.intSetter(property);
+
+                return new Column<T>(index) {
+                    @Override
+                    void read(ResultSet resultSet, T bean) throws SQLException {
+                        setter.accept(bean, resultSet.getInt(index));
+                    }
+                };
+            } else if (type == long.class) {
+                final ObjLongConsumer<T> setter = Accessors.longSetter(property);
+
+                return new Column<T>(index) {
+                    @Override
+                    void read(ResultSet resultSet, T bean) throws SQLException {
+                        setter.accept(bean, resultSet.getLong(index));
+                    }
+                };
+            } else if (type == double.class) {
+                final ObjDoubleConsumer<T> setter = Accessors.doubleSetter(property);
+
+                return new Column<T>(index) {
+                    @Override
+                    void read(ResultSet resultSet, T bean) throws SQLException {
+                        setter.accept(bean, resultSet.getDouble(index));
+                    }
+                };
+            }
+
+            final BiConsumer<T, Object> setter = Accessors.setter(property);
+            final Getter getter = Getter.of(type);
+
+            return new Column<T>(index) {
+                @Override
+                void read(ResultSet resultSet, T bean) throws SQLException {
+                    Object value = getter.get(resultSet, index);
+
+                    // Leaving primitives to their defaults on nulls
+                    if (value != null || !type.isPrimitive()) {
+                        setter.accept(bean, value);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * A typed getter of a column value, null on SQL nulls.
+     */
+    abstract static class Getter {
+
+        abstract Object get(ResultSet resultSet, int index) throws SQLException;
+
+        /**
+         * A method returning the getter reading a column as the given type.
+         *
+         * @param type the property type.
+         * @return the column getter.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static Getter of(final Class<?> type) {
+            if (type == String.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getString(index);
+                    }
+                };
+            } else if (type == Integer.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        int value = resultSet.getInt(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == Long.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        long value = resultSet.getLong(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == Double.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        double value = resultSet.getDouble(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == boolean.class || type == Boolean.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        boolean value = resultSet.getBoolean(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == float.class || type == Float.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        float value = resultSet.getFloat(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == short.class || type == Short.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        short value = resultSet.getShort(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == byte.class || type == Byte.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        byte value = resultSet.getByte(index);
+
+                        return resultSet.wasNull() ? null : value;
+                    }
+                };
+            } else if (type == BigDecimal.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getBigDecimal(index);
+                    }
+                };
+            } else if (type == Timestamp.class || type == java.util.Date.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getTimestamp(index);
+                    }
+                };
+            } else if (type == Date.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getDate(index);
+                    }
+                };
+            } else if (type == Time.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getTime(index);
+                    }
+                };
+            } else if (type == LocalDate.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        Date value = resultSet.getDate(index);
+
+                        return value == null ? null : value.toLocalDate();
+                    }
+                };
+            } else if (type == LocalDateTime.class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        Timestamp value = resultSet.getTimestamp(index);
+
+                        return value == null ? null : value.toLocalDateTime();
+                    }
+                };
+            } else if (type == byte[].class) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        return resultSet.getBytes(index);
+                    }
+                };
+            } else if (type.isEnum()) {
+                return new Getter() {
+                    @Override
+                    Object get(ResultSet resultSet, int index) throws SQLException {
+                        String value = resultSet.getString(index);
+
+                        return value == null ? null : Enum.valueOf((Class<? extends Enum>) type, value);
+                    }
+                };
+            }
+
+            return new Getter() {
+                @Override
+                Object get(ResultSet resultSet, int index) throws SQLException {
+                    return resultSet.getObject(index);
+                }
+            };
+        }
+    }
+
+    /**
+     * A factory of the bean constructor and property setters, generating
+     * lambdas through the lambda meta factory where the bean class is
+     * accessible, falling back to plain method handles otherwise.
+     */
+    static final class Accessors {
+
+        // Lookup of this package, hosting the generated lambdas
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        private Accessors() {
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Supplier<T> factory(Class<T> type) {
+            try {
+                final MethodHandle constructor = handleOf(type.getDeclaredConstructor());
+
+                if (isLinkable(type, constructor)) {
+                    return (Supplier<T>) generate(Supplier.class, "get", MethodType.methodType(Object.class), constructor, MethodType.methodType(type));
+                }
+
+                return new Supplier<T>() {
+                    @Override
+                    public T get() {
+                        try {
+                            return (T) constructor.invoke();
+                        } catch (Throwable exc) {
+                            throw new IllegalStateException("An error occurred instantiating a bean: '" + exc.getMessage() + "'.", exc);
+                        }
+                    }
+                };
+            } catch (NoSuchMethodException exc) {
+                throw new IllegalArgumentException("Bean class '" + type.getName() + "' has no constructor without arguments.", exc);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> ObjIntConsumer<T> intSetter(Property property) {
+            final MethodHandle handle = handleOf(property);
+
+            if (isLinkable(property, handle)) {
+                return (ObjIntConsumer<T>) generate(ObjIntConsumer.class, "accept", MethodType.methodType(void.class, Object.class, int.class),
+                        handle, MethodType.methodType(void.class, handle.type().parameterType(0), int.class));
+            }
+
+            return new ObjIntConsumer<T>() {
+                @Override
+                public void accept(T bean, int value) {
+                    invoke(handle, bean, value);
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> ObjLongConsumer<T> longSetter(Property property) {
+            final MethodHandle handle = handleOf(property);
+
+            if (isLinkable(property, handle)) {
+                return (ObjLongConsumer<T>) generate(ObjLongConsumer.class, "accept", MethodType.methodType(void.class, Object.class, long.class),
+                        handle, MethodType.methodType(void.class, handle.type().parameterType(0), long.class));
+            }
+
+            return new ObjLongConsumer<T>() {
+                @Override
+                public void accept(T bean, long value) {
+                    invoke(handle, bean, value);
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> ObjDoubleConsumer<T> doubleSetter(Property property) {
+            final MethodHandle handle = handleOf(property);
+
+            if (isLinkable(property, handle)) {
+                return (ObjDoubleConsumer<T>) generate(ObjDoubleConsumer.class, "accept", MethodType.methodType(void.class, Object.class, double.class),
+                        handle, MethodType.methodType(void.class, handle.type().parameterType(0), double.class));
+            }
+
+            return new ObjDoubleConsumer<T>() {
+                @Override
+                public void accept(T bean, double value) {
+                    invoke(handle, bean, value);
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> BiConsumer<T, Object> setter(Property property) {
+            final MethodHandle handle = handleOf(property);
+
+            if (isLinkable(property, handle)) {
+                Class<?> boxed = MethodType.methodType(property.type).wrap().returnType();
+
+                return (BiConsumer<T, Object>) generate(BiConsumer.class, "accept", MethodType.methodType(void.class, Object.class, Object.class),
+                        handle, MethodType.methodType(void.class, handle.type().parameterType(0), boxed));
+            }
+
+            return new BiConsumer<T, Object>() {
+                @Override
+                public void accept(T bean, Object value) {
+                    invoke(handle, bean, value);
+                }
+            };
+        }
+
+        /**
+         * A method generating a functional interface instance calling the
+         * given method handle, as a lambda expression would.
+         *
+         * @param face the functional interface.
+         * @param name the name of the interface method.
+         * @param erased the erased type of the interface method.
+         * @param handle the implementation method handle.
+         * @param instantiated the type of the interface method as instantiated.
+         * @return the functional interface instance.
+         */
+        private static Object generate(Class<?> face, String name, MethodType erased, MethodHandle handle, MethodType instantiated) {
+            try {
+                CallSite site = LambdaMetafactory.metafactory(LOOKUP, name, MethodType.methodType(face), erased, handle, instantiated);
+
+                return site.getTarget().invoke();
+            } catch (Throwable exc) {
+                throw new IllegalStateException("An error occurred generating a bean accessor: '" + exc.getMessage() + "'.", exc);
+            }
+        }
+
+        private static MethodHandle handleOf(java.lang.reflect.Constructor<?> constructor) {
+            try {
+                constructor.setAccessible(true);
+
+                return LOOKUP.unreflectConstructor(constructor);
+            } catch (Exception exc) {
+                throw new IllegalArgumentException("Constructor of '" + constructor.getDeclaringClass().getName() + "' is not accessible.", exc);
+            }
+        }
+
+        private static MethodHandle handleOf(Property property) {
+            try {
+                if (property.setter != null) {
+                    property.setter.setAccessible(true);
+
+                    return LOOKUP.unreflect(property.setter);
+                }
+
+                property.field.setAccessible(true);
+
+                return LOOKUP.unreflectSetter(property.field);
+            } catch (Exception exc) {
+                throw new IllegalArgumentException("Property of type '" + property.type.getName() + "' is not accessible.", exc);
+            }
+        }
+
+        /**
+         * A method returning whether a lambda can be generated for a setter, as
+         * long as the setter and its bean class are public and visible to the
+         * class loader of this package.
+         *
+         * @param property the bean property.
+         * @param handle the setter handle.
+         * @return true if a lambda can be generated, otherwise false.
+         */
+        private static boolean isLinkable(Property property, MethodHandle handle) {
+            return property.setter != null && Modifier.isPublic(property.setter.getModifiers())
+                    && isLinkable(property.setter.getDeclaringClass(), handle);
+        }
+
+        private static boolean isLinkable(Class<?> type, MethodHandle handle) {
+            if (!Modifier.isPublic(type.getModifiers()) || (type.getEnclosingClass() != null && !Modifier.isStatic(type.getModifiers()))) {
+                return false;
+            }
+
+            if (handle.type().returnType() != void.class && handle.type().returnType() != type) {
+                return false;
+            }
+
+            try {
+                return Class.forName(type.getName(), false, BeanRowMapper.class.getClassLoader()) == type;
+            } catch (ClassNotFoundException exc) {
+                return false;
+            }
+        }
+
+        private static void invoke(MethodHandle handle, Object bean, Object value) {
+            try {
+                handle.invoke(bean, value);
+            } catch (Throwable exc) {
+                throw new IllegalStateException("An error occurred setting a bean property: '" + exc.getMessage() + "'.", exc);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.tkb.the.dsm.mapping;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import com.tkb.the.dsm.db.RowMapper;
+
+/**
+ * A registry of bean row mappers built once per query and bean class, so
+ * the column resolution and the generated setters are shared by every
+ * execution of the same query. Mappers are attached to their bean class,
+ * so they never keep the class loader of a redeployed application alive,
+ * and up to 256 queries per class are kept, the least recently used query
+ * being evicted first.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public final class RowMappers {
+
+    // Maximum number of cached mappers per bean class
+    private static final int MAX_MAPPERS = 256;
+
+    // Mappers per query attached to each bean class
+    private static final ClassValue<Mappers> mappers = new ClassValue<Mappers>() {
+        @Override
+        protected Mappers computeValue(Class<?> type) {
+            return new Mappers();
+        }
+    };
+
+    // Generation of the registry, advanced once cleared
+    private static volatile int generation;
+
+    private RowMappers() {
+    }
+
+    /**
+     * A method returning the row mapper of the given query into beans of the
+     * given class, building it on first use.
+     *
+     * @param query the SQL query.
+     * @param type the bean class.
+     * @return the bean row mapper.
+     * @throws IllegalArgumentException throws errors if the class cannot be instantiated.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(String query, Class<T> type) {
+        Mappers cached = mappers.get(type);
+
+        synchronized (cached) {
+            // Dropping the mappers built before the registry was cleared
+            if (cached.generation != generation) {
+                cached.byQuery.clear();
+                cached.generation = generation;
+            }
+
+            RowMapper<T> mapper = (RowMapper<T>) cached.byQuery.get(query);
+
+            if (mapper == null) {
+                mapper = new BeanRowMapper<T>(type);
+
+                cached.byQuery.put(query, mapper);
+
+                if (cached.byQuery.size() > MAX_MAPPERS) {
+                    Iterator<RowMapper<?>> it = cached.byQuery.values().iterator();
+
+                    it.next();
+                    it.remove();
+                }
+            }
+
+            return mapper;
+        }
+    }
+
+    /**
+     * A method clearing the cached mappers, i.e. once the schema changes.
+     */
+    public static synchronized void clear() {
+        generation++;
+    }
+
+    /**
+     * The mappers of a bean class per query in access order.
+     */
+    private static final class Mappers {
+
+        // Mappers per query
+        private final LinkedHashMap<String, RowMapper<?>> byQuery = new LinkedHashMap<String, RowMapper<?>>(16, 0.75f, true);
+
+        // Generation of the registry the mappers have been built in
+        private int generation = RowMappers.generation;
+    }
+}
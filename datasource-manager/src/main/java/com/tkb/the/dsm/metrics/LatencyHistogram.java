@@ -0,0 +1,188 @@
+package com.tkb.the.dsm.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear latency histogram, splitting every power of two
+ * range into equal sub buckets so values are recorded with a bounded relative
+ * error of about three percent at a constant cost.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class LatencyHistogram {
+
+    // Number of bits resolving the sub buckets
+    private static final int SUB_BITS = 5;
+
+    // Number of sub buckets per power of two
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Number of buckets covering all positive long values
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    // Counts per bucket
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // Total number of recorded values
+    private final AtomicLong count = new AtomicLong();
+
+    // Sum of recorded values
+    private final AtomicLong sum = new AtomicLong();
+
+    // Maximum recorded value
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * A method recording a value, negative values are recorded as zero.
+     *
+     * @param value the value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * A method returning the value at the given percentile, as the upper bound
+     * of the bucket the percentile falls into.
+     *
+     * @param percentile the percentile in the range of [0, 100].
+     * @return the value at the percentile, zero if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total);
+
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * A method returning the number of recorded values.
+     *
+     * @return the number of values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * A method returning the highest recorded value.
+     *
+     * @return the maximum value, zero if nothing has been recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * A method returning the exact mean of the recorded values.
+     *
+     * @return the mean value, zero if nothing has been recorded.
+     */
+    public double getMean() {
+        long total = count.get();
+
+        return total == 0 ? 0.0 : (double) sum.get() / total;
+    }
+
+    /**
+     * A method clearing all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * A method returning the bucket index of a value.
+     *
+     * @param value the non negative value.
+     * @return the bucket index.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * A method returning the highest value falling into a bucket.
+     *
+     * @param index the bucket index.
+     * @return the highest value of the bucket.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_COUNT - 1;
+        long mantissa = index % SUB_COUNT + SUB_COUNT;
+
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * A method returning a summary of the recorded values, considered as
+     * nanoseconds and printed in millis.
+     *
+     * @return the summary of the histogram.
+     */
+    public String toMillisString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("N: '").append(getCount()).append("', ")
+          .append("MEAN: '").append(toMillis((long) getMean())).append("', ")
+          .append("P50: '").append(toMillis(getValueAtPercentile(50))).append("', ")
+          .append("P99: '").append(toMillis(getValueAtPercentile(99))).append("', ")
+          .append("MAX: '").append(toMillis(getMax())).append("'");
+
+        return sb.toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
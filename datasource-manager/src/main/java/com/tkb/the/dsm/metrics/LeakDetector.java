@@ -0,0 +1,135 @@
+package com.tkb.the.dsm.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A resource leak detector, reporting the acquisition stack of any tracked
+ * resource held longer than a threshold.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class LeakDetector {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(LeakDetector.class);
+
+    // Threshold in millis
+    private final long threshold;
+
+    // Acquisition traces of the tracked resources
+    private final Map<Object, Trace> traces = new ConcurrentHashMap<Object, Trace>();
+
+    // Scanning scheduler
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * A constructor creating a leak detector given the threshold a resource is
+     * considered leaked after.
+     *
+     * @param threshold the threshold in millis.
+     */
+    public LeakDetector(long threshold) {
+        this.threshold = threshold;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "leak-detector");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        long period = Math.max(threshold / 2, 1);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A method starting tracking a resource, capturing the current stack.
+     *
+     * @param resource the resource acquired.
+     */
+    public void track(Object resource) {
+        traces.put(resource, new Trace(Thread.currentThread().getName()));
+    }
+
+    /**
+     * A method stopping tracking a released resource.
+     *
+     * @param resource the resource released.
+     */
+    public void untrack(Object resource) {
+        traces.remove(resource);
+    }
+
+    /**
+     * A method reporting and dropping the resources held past the threshold,
+     * each leak is reported once.
+     */
+    private void scan() {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<Object, Trace>> it = traces.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Object, Trace> entry = it.next();
+
+            long held = now - entry.getValue().acquiredAt;
+
+            if (held > threshold) {
+                it.remove();
+
+                logger.warn("A possible leak detected, resource '" + entry.getKey() + "' held for " + held + "ms.", entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A method shutting down the leak detector.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+
+        traces.clear();
+    }
+
+    /**
+     * A method returning the time a resource can be held before reported as a
+     * possible leak.
+     *
+     * @return the threshold in millis.
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * An acquisition stack trace of a tracked resource.
+     */
+    private static class Trace extends Throwable {
+
+        // Serialization version
+        private static final long serialVersionUID = 1L;
+
+        // Acquisition time in millis
+        private final long acquiredAt = System.currentTimeMillis();
+
+        Trace(String thread) {
+            super("Resource acquired by thread '" + thread + "'");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.tkb.the.dsm.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * A connection pool metrics collector, recording the borrow wait and hold
+ * times, the depth of the wait queue and the rates connections get created
+ * and destroyed.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class PoolMetrics {
+
+    // Borrow wait times in nanos
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    // Hold times in nanos
+    private final LatencyHistogram holdTimes = new LatencyHistogram();
+
+    // Number of threads queued for a connection
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    // Wait queue depth reported by the pool, null to count queued threads
+    private volatile IntSupplier queueDepth;
+
+    // Number of borrowings
+    private final AtomicLong borrowed = new AtomicLong();
+
+    // Number of connections created
+    private final AtomicLong created = new AtomicLong();
+
+    // Number of connections destroyed
+    private final AtomicLong destroyed = new AtomicLong();
+
+    // Time in nanos the metrics started being collected
+    private volatile long startedAt = System.nanoTime();
+
+    /**
+     * A method setting up the source of the wait queue depth, for pools able
+     * to tell the number of threads blocked on them.
+     *
+     * @param queueDepth the wait queue depth source, null to count the threads
+     * marked as queued.
+     */
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * A method marking a thread starting to borrow a connection.
+     *
+     * @return the time in nanos the borrowing started.
+     */
+    public long beginWait() {
+        return System.nanoTime();
+    }
+
+    /**
+     * A method marking a thread done borrowing a connection.
+     *
+     * @param startedAt the time in nanos the borrowing started.
+     * @param acquired true if a connection has been acquired, otherwise false.
+     */
+    public void endWait(long startedAt, boolean acquired) {
+        waitTimes.record(System.nanoTime() - startedAt);
+
+        if (acquired) {
+            borrowed.incrementAndGet();
+        }
+    }
+
+    /**
+     * A method marking a thread blocked waiting for a connection to be given
+     * back to an exhausted pool.
+     */
+    public void enterQueue() {
+        waiting.incrementAndGet();
+    }
+
+    /**
+     * A method marking a queued thread leaving the wait queue.
+     */
+    public void leaveQueue() {
+        waiting.decrementAndGet();
+    }
+
+    /**
+     * A method recording the time a connection has been held.
+     *
+     * @param nanos the hold time in nanos.
+     */
+    public void recordHold(long nanos) {
+        holdTimes.record(nanos);
+    }
+
+    /**
+     * A method counting a physical connection opened by the pool.
+     */
+    public void connectionCreated() {
+        created.incrementAndGet();
+    }
+
+    /**
+     * A method counting a physical connection closed by the pool.
+     */
+    public void connectionDestroyed() {
+        destroyed.incrementAndGet();
+    }
+
+    /**
+     * A method returning the histogram of the borrow wait times.
+     *
+     * @return the wait times in nanos.
+     */
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    /**
+     * A method returning the histogram of the connection hold times.
+     *
+     * @return the hold times in nanos.
+     */
+    public LatencyHistogram getHoldTimes() {
+        return holdTimes;
+    }
+
+    /**
+     * A method returning the number of threads queued for a connection of an
+     * exhausted pool, excluding the borrowings served without blocking.
+     *
+     * @return the wait queue depth.
+     */
+    public int getWaiting() {
+        IntSupplier depth = queueDepth;
+
+        return depth != null ? depth.getAsInt() : waiting.get();
+    }
+
+    /**
+     * A method returning the number of connections borrowed.
+     *
+     * @return the number of borrowings.
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * A method returning the number of physical connections opened.
+     *
+     * @return the number of connections created.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * A method returning the number of physical connections closed.
+     *
+     * @return the number of connections destroyed.
+     */
+    public long getDestroyed() {
+        return destroyed.get();
+    }
+
+    /**
+     * A method returning the rate of borrowings per second since the metrics
+     * started being collected.
+     *
+     * @return the borrow rate per second.
+     */
+    public double getBorrowRate() {
+        return rateOf(borrowed.get());
+    }
+
+    /**
+     * A method returning the rate of connections created per second since the
+     * metrics started being collected.
+     *
+     * @return the create rate per second.
+     */
+    public double getCreateRate() {
+        return rateOf(created.get());
+    }
+
+    /**
+     * A method returning the rate of connections destroyed per second since
+     * the metrics started being collected.
+     *
+     * @return the destroy rate per second.
+     */
+    public double getDestroyRate() {
+        return rateOf(destroyed.get());
+    }
+
+    /**
+     * A method clearing the collected metrics, keeping the wait queue depth.
+     */
+    public void reset() {
+        waitTimes.reset();
+        holdTimes.reset();
+        borrowed.set(0);
+        created.set(0);
+        destroyed.set(0);
+
+        startedAt = System.nanoTime();
+    }
+
+    private double rateOf(long count) {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        return seconds > 0 ? count / seconds : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[PoolMetrics ")
+          .append("WAITING: '").append(getWaiting()).append("', ")
+          .append("WAIT: {").append(waitTimes.toMillisString()).append("}, ")
+          .append("HOLD: {").append(holdTimes.toMillisString()).append("}, ")
+          .append("CREATED: '").append(getCreated()).append("', ")
+          .append("DESTROYED: '").append(getDestroyed()).append("'")
+          .append("]");
+
+        return sb.toString();
+    }
+}
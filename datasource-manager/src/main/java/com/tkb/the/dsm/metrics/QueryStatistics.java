@@ -0,0 +1,554 @@
+package com.tkb.the.dsm.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.regex.Pattern;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.StatementInterceptor;
+import org.apache.log4j.Logger;
+
+/**
+ * A statement interceptor aggregating execution statistics per normalized
+ * SQL query, literals replaced by placeholders. Only a sampled fraction of
+ * the statements is timed, the rest pass through untouched, while counts and
+ * totals are scaled by the sample rate into estimates. Counters are striped
+ * adders and latencies go to lock-free histograms, so recording never blocks.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class QueryStatistics implements StatementInterceptor {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(QueryStatistics.class);
+
+    // SQL comments
+    private static final Pattern COMMENT = Pattern.compile("(?s)/\\*.*?\\*/|--[^\\n]*");
+
+    // Quoted string literals
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+
+    // Numeric literals not part of an identifier
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?");
+
+    // Lists of placeholders within an IN clause
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+
+    // Repeated rows of placeholders within a VALUES clause
+    private static final Pattern VALUES_ROWS = Pattern.compile("(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))(?:\\s*,\\s*\\1)+");
+
+    // Runs of whitespace
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    // Statistics per normalized query
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    // Statistics per raw query, sparing the normalization of known queries
+    private final ConcurrentHashMap<String, Stats> raw = new ConcurrentHashMap<String, Stats>();
+
+    // Maximum number of normalized queries tracked
+    private final int maxQueries;
+
+    // Fraction of the statements timed
+    private volatile double sampleRate;
+
+    // Periodic reporter, null if not reporting
+    private ScheduledExecutorService reporter;
+
+    /**
+     * A constructor creating a statistics aggregator timing a tenth of the
+     * statements and tracking up to a thousand normalized queries.
+     */
+    public QueryStatistics() {
+        this(0.1, 1000);
+    }
+
+    /**
+     * A constructor creating a statistics aggregator given the fraction of the
+     * statements to time and the maximum number of normalized queries tracked,
+     * queries beyond that are not recorded.
+     *
+     * @param sampleRate the fraction of statements timed in the range of (0, 1].
+     * @param maxQueries the maximum number of normalized queries.
+     */
+    public QueryStatistics(double sampleRate, int maxQueries) {
+        this.maxQueries = maxQueries;
+
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * A method setting up the fraction of the statements timed.
+     *
+     * @param sampleRate the fraction of statements timed in the range of (0, 1].
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be in the range of (0, 1]: '" + sampleRate + "'.");
+        }
+
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * A method wrapping a sampled statement into a timing proxy, statements
+     * not sampled are returned untouched.
+     *
+     * @param session the connection session.
+     * @param query the SQL query of the statement.
+     * @param statement the prepared statement.
+     * @return the statement to use.
+     */
+    @Override
+    public PreparedStatement intercept(ConnectionSession session, String query, PreparedStatement statement) {
+        double rate = sampleRate;
+
+        if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            return statement;
+        }
+
+        Stats target = statsOf(query);
+
+        if (target == null) {
+            return statement;
+        }
+
+        return (PreparedStatement) Proxy.newProxyInstance(
+                QueryStatistics.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                new TimedStatement(statement, target, 1.0 / rate));
+    }
+
+    /**
+     * A method returning the statistics of a raw query, creating them unless
+     * the maximum number of normalized queries has been reached.
+     *
+     * @param query the raw SQL query.
+     * @return the query statistics, null if not tracked.
+     */
+    private Stats statsOf(String query) {
+        Stats target = raw.get(query);
+
+        if (target != null) {
+            return target;
+        }
+
+        String normalized = normalize(query);
+
+        target = stats.get(normalized);
+
+        if (target == null) {
+            if (stats.size() >= maxQueries) {
+                return null;
+            }
+
+            Stats created = new Stats(normalized);
+
+            target = stats.putIfAbsent(normalized, created);
+
+            if (target == null) {
+                target = created;
+            }
+        }
+
+        // Bounding the raw queries too, as unparameterized ones vary endlessly
+        if (raw.size() < 4 * maxQueries) {
+            raw.put(query, target);
+        }
+
+        return target;
+    }
+
+    /**
+     * A method normalizing a SQL query, stripping comments, replacing literals
+     * by placeholders, collapsing placeholder lists and whitespace.
+     *
+     * @param query the SQL query.
+     * @return the normalized query.
+     */
+    public static String normalize(String query) {
+        String normalized = COMMENT.matcher(query).replaceAll(" ");
+
+        normalized = STRING.matcher(normalized).replaceAll("?");
+        normalized = NUMBER.matcher(normalized).replaceAll("?");
+        normalized = WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+        normalized = IN_LIST.matcher(normalized).replaceAll("IN (?)");
+        normalized = VALUES_ROWS.matcher(normalized).replaceAll("$1");
+
+        return normalized;
+    }
+
+    /**
+     * A method returning the statistics of the queries taking the most total
+     * time, in descending order.
+     *
+     * @param n the number of queries to return.
+     * @return the list of query statistics.
+     */
+    public List<Snapshot> getTop(int n) {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>(stats.size());
+
+        for (Stats target : stats.values()) {
+            snapshots.add(target.snapshot());
+        }
+
+        Collections.sort(snapshots, new Comparator<Snapshot>() {
+            @Override
+            public int compare(Snapshot a, Snapshot b) {
+                return Double.compare(b.totalTime, a.totalTime);
+            }
+        });
+
+        return snapshots.subList(0, Math.min(n, snapshots.size()));
+    }
+
+    /**
+     * A method returning a text report of the top queries by total time.
+     *
+     * @param n the number of queries to report.
+     * @return the text report.
+     */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Top ").append(n).append(" queries by total time, sample rate '").append(sampleRate).append("':");
+
+        for (Snapshot snapshot : getTop(n)) {
+            sb.append("\n  ").append(snapshot);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * A method logging the report of the top queries periodically.
+     *
+     * @param interval the reporting interval in millis.
+     * @param n the number of queries to report.
+     */
+    public synchronized void startReporting(long interval, final int n) {
+        stopReporting();
+
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "query-statistics-reporter");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logger.info(report(n));
+                } catch (Exception exc) {
+                    logger.error("An unknown error occurred reporting the query statistics: '" + exc.getMessage() + "'.");
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A method stopping the periodic reporting.
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * A method dropping all the statistics gathered so far.
+     */
+    public void reset() {
+        raw.clear();
+        stats.clear();
+    }
+
+    /**
+     * The aggregated statistics of a normalized query.
+     */
+    private static final class Stats {
+
+        // Normalized query
+        private final String query;
+
+        // Estimated number of executions
+        private final DoubleAdder calls = new DoubleAdder();
+
+        // Estimated total execution time in nanos
+        private final DoubleAdder time = new DoubleAdder();
+
+        // Estimated number of rows returned or updated
+        private final DoubleAdder rows = new DoubleAdder();
+
+        // Estimated number of failed executions
+        private final DoubleAdder errors = new DoubleAdder();
+
+        // Sampled execution times in nanos
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        Stats(String query) {
+            this.query = query;
+        }
+
+        void record(long nanos, double weight, boolean failed) {
+            latencies.record(nanos);
+
+            calls.add(weight);
+            time.add(nanos * weight);
+
+            if (failed) {
+                errors.add(weight);
+            }
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(query, Math.round(calls.sum()), latencies.getCount(), time.sum(), latencies.getMean(),
+                    latencies.getValueAtPercentile(99.0), Math.round(rows.sum()), Math.round(errors.sum()));
+        }
+    }
+
+    /**
+     * A timing proxy of a sampled statement, recording the executions and
+     * counting the rows of the result sets.
+     */
+    private static final class TimedStatement implements InvocationHandler {
+
+        // Proxied statement
+        private final PreparedStatement statement;
+
+        // Query statistics
+        private final Stats stats;
+
+        // Weight of each recording, the inverse of the sample rate
+        private final double weight;
+
+        TimedStatement(PreparedStatement statement, Stats stats, double weight) {
+            this.statement = statement;
+            this.stats = stats;
+            this.weight = weight;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if (!name.startsWith("execute")) {
+                return forward(statement, method, args);
+            }
+
+            long start = System.nanoTime();
+
+            boolean failed = true;
+
+            try {
+                Object result = forward(statement, method, args);
+
+                failed = false;
+
+                count(result);
+
+                if (result instanceof ResultSet) {
+                    return Proxy.newProxyInstance(
+                            QueryStatistics.class.getClassLoader(),
+                            new Class<?>[]{ResultSet.class},
+                            new CountedResultSet((ResultSet) result, stats, weight));
+                }
+
+                return result;
+            } finally {
+                stats.record(System.nanoTime() - start, weight, failed);
+            }
+        }
+
+        /**
+         * A method counting the rows updated by an execution.
+         *
+         * @param result the execution result.
+         */
+        private void count(Object result) {
+            if (result instanceof Number) {
+                stats.rows.add(((Number) result).longValue() * weight);
+            } else if (result instanceof int[]) {
+                long updated = 0;
+
+                for (int count : (int[]) result) {
+                    updated += Math.max(count, 0);
+                }
+
+                stats.rows.add(updated * weight);
+            }
+        }
+    }
+
+    /**
+     * A counting proxy of a result set, counting the rows fetched.
+     */
+    private static final class CountedResultSet implements InvocationHandler {
+
+        // Proxied result set
+        private final ResultSet resultSet;
+
+        // Query statistics
+        private final Stats stats;
+
+        // Weight of each row, the inverse of the sample rate
+        private final double weight;
+
+        CountedResultSet(ResultSet resultSet, Stats stats, double weight) {
+            this.resultSet = resultSet;
+            this.stats = stats;
+            this.weight = weight;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+
+            Object result = forward(resultSet, method, args);
+
+            if ("next".equals(name) && Boolean.TRUE.equals(result)) {
+                stats.rows.add(weight);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A method forwarding a call to the proxied object.
+     *
+     * @param target the proxied object.
+     * @param method the method called.
+     * @param args the call arguments.
+     * @return the call result.
+     * @throws Throwable throws the errors of the call.
+     */
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException exc) {
+            throw exc.getCause();
+        }
+    }
+
+    /**
+     * An immutable snapshot of the statistics of a normalized query, counts
+     * and totals estimated from the sampled executions.
+     */
+    public static final class Snapshot {
+
+        // Normalized query
+        private final String query;
+
+        // Estimated number of executions
+        private final long calls;
+
+        // Number of sampled executions
+        private final long sampled;
+
+        // Estimated total execution time in nanos
+        private final double totalTime;
+
+        // Mean execution time in nanos
+        private final double meanTime;
+
+        // 99th percentile execution time in nanos
+        private final long p99Time;
+
+        // Estimated number of rows returned or updated
+        private final long rows;
+
+        // Estimated number of failed executions
+        private final long errors;
+
+        Snapshot(String query, long calls, long sampled, double totalTime, double meanTime, long p99Time, long rows, long errors) {
+            this.query = query;
+            this.calls = calls;
+            this.sampled = sampled;
+            this.totalTime = totalTime;
+            this.meanTime = meanTime;
+            this.p99Time = p99Time;
+            this.rows = rows;
+            this.errors = errors;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getSampled() {
+            return sampled;
+        }
+
+        public double getTotalTime() {
+            return totalTime;
+        }
+
+        public double getMeanTime() {
+            return meanTime;
+        }
+
+        public long getP99Time() {
+            return p99Time;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("[Query ")
+              .append("TOTAL: '").append(Math.round(totalTime / 1e6)).append("ms', ")
+              .append("CALLS: '").append(calls).append("', ")
+              .append("MEAN: '").append(String.format("%.3f", meanTime / 1e6)).append("ms', ")
+              .append("P99: '").append(String.format("%.3f", p99Time / 1e6)).append("ms', ")
+              .append("ROWS: '").append(rows).append("', ")
+              .append("ERRORS: '").append(errors).append("', ")
+              .append("SQL: '").append(query).append("'")
+              .append("]");
+
+            return sb.toString();
+        }
+    }
+}
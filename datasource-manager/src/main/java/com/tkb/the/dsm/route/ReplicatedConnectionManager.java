@@ -0,0 +1,555 @@
+package com.tkb.the.dsm.route;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.Dialect;
+import com.tkb.the.dsm.db.SessionListener;
+import com.tkb.the.dsm.db.StatementInterceptor;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * A read/write splitting connection manager, routing write sessions to the
+ * primary and read only sessions to the replica with the least outstanding
+ * sessions. A caller is pinned to the primary for a short window after a
+ * write, so it reads its own writes, while replicas lagging behind more than
+ * a threshold are taken out of rotation until they catch up.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class ReplicatedConnectionManager implements ConnectionManager {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(ReplicatedConnectionManager.class);
+
+    // Primary connection manager
+    private final ConnectionManager primary;
+
+    // Replica endpoints
+    private final List<Replica> replicas = new ArrayList<Replica>();
+
+    // Rotation counter breaking ties among equally loaded replicas
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    // Time in millis of the last write per caller thread
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+
+    // Replication lag monitor
+    private final ScheduledExecutorService monitor;
+
+    // Time in millis a caller stays pinned to the primary after a write
+    private volatile long pinWindow = 1000;
+
+    // Maximum replication lag in millis a replica is kept in rotation
+    private volatile long maxLag = 5000;
+
+    /**
+     * A constructor creating a read/write splitting connection manager given
+     * the primary and the replica connection managers, checking the lag of
+     * the replicas every five seconds.
+     *
+     * @param primary the primary connection manager.
+     * @param replicas the replica connection managers.
+     */
+    public ReplicatedConnectionManager(ConnectionManager primary, List<? extends ConnectionManager> replicas) {
+        this(primary, replicas, 5000);
+    }
+
+    /**
+     * A constructor creating a read/write splitting connection manager given
+     * the primary and the replica connection managers and the lag checking
+     * interval.
+     *
+     * @param primary the primary connection manager.
+     * @param replicas the replica connection managers.
+     * @param lagCheckInterval the lag checking interval in millis.
+     */
+    public ReplicatedConnectionManager(ConnectionManager primary, List<? extends ConnectionManager> replicas, long lagCheckInterval) {
+        this.primary = primary;
+
+        for (ConnectionManager replica : replicas) {
+            this.replicas.add(new Replica(replica));
+        }
+
+        monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "replication-lag-monitor");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        monitor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Replica replica : ReplicatedConnectionManager.this.replicas) {
+                    replica.checkLag();
+                }
+            }
+        }, 0, lagCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A method setting up the time a caller stays pinned to the primary after
+     * acquiring a write session.
+     *
+     * @param pinWindow the pin window in millis.
+     */
+    public void setPinWindow(long pinWindow) {
+        this.pinWindow = pinWindow;
+    }
+
+    /**
+     * A method setting up the maximum replication lag a replica is kept in
+     * rotation.
+     *
+     * @param maxLag the maximum lag in millis.
+     */
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * A method setting up the number of minimum idle connections of the
+     * primary and the replicas.
+     *
+     * @param minIdle the number of minimum idle connections.
+     */
+    @Override
+    public void setMinIdle(int minIdle) {
+        primary.setMinIdle(minIdle);
+
+        for (Replica replica : replicas) {
+            replica.manager.setMinIdle(minIdle);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum idle connections of the
+     * primary and the replicas.
+     *
+     * @param maxIdle the number of maximum idle connections.
+     */
+    @Override
+    public void setMaxIdle(int maxIdle) {
+        primary.setMaxIdle(maxIdle);
+
+        for (Replica replica : replicas) {
+            replica.manager.setMaxIdle(maxIdle);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum active connections of the
+     * primary and the replicas.
+     *
+     * @param maxActive the number of maximum active connections.
+     */
+    @Override
+    public void setMaxActive(int maxActive) {
+        primary.setMaxActive(maxActive);
+
+        for (Replica replica : replicas) {
+            replica.manager.setMaxActive(maxActive);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum prepared statements cached per
+     * physical connection of the primary and the replicas, zero disables
+     * caching.
+     *
+     * @param statementCacheSize the number of maximum cached statements.
+     */
+    @Override
+    public void setStatementCacheSize(int statementCacheSize) {
+        primary.setStatementCacheSize(statementCacheSize);
+
+        for (Replica replica : replicas) {
+            replica.manager.setStatementCacheSize(statementCacheSize);
+        }
+    }
+
+    /**
+     * A method setting up the time a session of the primary and the replicas
+     * can be held before reported as a possible leak.
+     *
+     * @param threshold the threshold in millis, zero disables leak detection.
+     */
+    @Override
+    public void setLeakDetectionThreshold(long threshold) {
+        primary.setLeakDetectionThreshold(threshold);
+
+        for (Replica replica : replicas) {
+            replica.manager.setLeakDetectionThreshold(threshold);
+        }
+    }
+
+    /**
+     * A method setting up the interval of the background evictor of the
+     * primary and the replicas.
+     *
+     * @param interval the validation interval in millis, zero disables it.
+     */
+    @Override
+    public void setValidationInterval(long interval) {
+        primary.setValidationInterval(interval);
+
+        for (Replica replica : replicas) {
+            replica.manager.setValidationInterval(interval);
+        }
+    }
+
+    /**
+     * A method setting up the maximum lifetime of a connection of the primary
+     * and the replicas.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     */
+    @Override
+    public void setMaxLifetime(long maxLifetime) {
+        primary.setMaxLifetime(maxLifetime);
+
+        for (Replica replica : replicas) {
+            replica.manager.setMaxLifetime(maxLifetime);
+        }
+    }
+
+    /**
+     * A method adding an interceptor of the statements prepared within every
+     * session opened from now on by the primary and the replicas.
+     *
+     * @param interceptor the statement interceptor.
+     */
+    @Override
+    public void addInterceptor(StatementInterceptor interceptor) {
+        primary.addInterceptor(interceptor);
+
+        for (Replica replica : replicas) {
+            replica.manager.addInterceptor(interceptor);
+        }
+    }
+
+    /**
+     * A method opening as many idle connections as missing to reach the number
+     * of minimum idle connections of the primary and the replicas.
+     */
+    @Override
+    public void prewarm() {
+        primary.prewarm();
+
+        for (Replica replica : replicas) {
+            replica.manager.prewarm();
+        }
+    }
+
+    /**
+     * A method returning a new write session from the primary, pinning the
+     * calling thread to the primary for the pin window.
+     *
+     * @return the connection session to return.
+     */
+    @Override
+    public ConnectionSession getSession() {
+        lastWrite.set(System.currentTimeMillis());
+
+        return primary.getSession();
+    }
+
+    /**
+     * A method returning a new read only session from the least loaded replica
+     * in rotation, falling back to the primary if the caller is pinned to it or
+     * no replica is available.
+     *
+     * @return the connection session to return.
+     */
+    public ConnectionSession getReadSession() {
+        Long written = lastWrite.get();
+
+        if (written != null) {
+            if (System.currentTimeMillis() - written < pinWindow) {
+                return primary.getSession();
+            }
+
+            lastWrite.remove();
+        }
+
+        Replica replica = select();
+
+        if (replica != null) {
+            ConnectionSession session = replica.open();
+
+            if (session != null) {
+                return session;
+            }
+        }
+
+        ConnectionSession session = primary.getSession();
+
+        if (session != null) {
+            session.setReadOnly(true);
+        }
+
+        return session;
+    }
+
+    /**
+     * A method selecting the replica in rotation with the least outstanding
+     * sessions, starting from a rotating offset to spread ties.
+     *
+     * @return the selected replica, null if none is in rotation.
+     */
+    private Replica select() {
+        int size = replicas.size();
+
+        if (size == 0) {
+            return null;
+        }
+
+        int offset = (rotation.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        Replica selected = null;
+
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((offset + i) % size);
+
+            if (replica.healthy && (selected == null || replica.outstanding.get() < selected.outstanding.get())) {
+                selected = replica;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * A method returning the metrics of the primary connection manager.
+     *
+     * @return the primary pool metrics.
+     */
+    @Override
+    public PoolMetrics getMetrics() {
+        return primary.getMetrics();
+    }
+
+    /**
+     * A method resetting the primary and the replica connection managers.
+     */
+    @Override
+    public void reset() {
+        primary.reset();
+
+        for (Replica replica : replicas) {
+            replica.manager.reset();
+        }
+    }
+
+    /**
+     * A method closing the primary and the replica connection managers,
+     * stopping the replication lag monitor.
+     */
+    @Override
+    public void close() {
+        monitor.shutdownNow();
+
+        primary.close();
+
+        for (Replica replica : replicas) {
+            replica.manager.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[ConnectionManager PRIMARY: ").append(primary);
+
+        for (Replica replica : replicas) {
+            sb.append(", REPLICA: ").append(replica.manager)
+              .append(" OUT: '").append(replica.outstanding.get()).append("'")
+              .append(" LAG: '").append(replica.lag).append("'")
+              .append(replica.healthy ? "" : " OFF")
+              .append(replica.error == null ? "" : " ERROR: '" + replica.error + "'");
+        }
+
+        sb.append("]");
+
+        return sb.toString();
+    }
+
+    /**
+     * A replica endpoint tracking its outstanding sessions and its health.
+     */
+    private class Replica implements SessionListener {
+
+        // Replica connection manager
+        private final ConnectionManager manager;
+
+        // Number of outstanding sessions
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        // Last measured replication lag in millis
+        private volatile long lag;
+
+        // Flag marking the replica in rotation
+        private volatile boolean healthy = true;
+
+        // Reason the last lag check failed, null if it succeeded
+        private volatile String error;
+
+        Replica(ConnectionManager manager) {
+            this.manager = manager;
+        }
+
+        /**
+         * A method opening a read only session on the replica.
+         *
+         * @return the read only session, null if failed.
+         */
+        ConnectionSession open() {
+            ConnectionSession session = manager.getSession();
+
+            if (session != null) {
+                outstanding.incrementAndGet();
+
+                session.addListener(this);
+                session.setReadOnly(true);
+            }
+
+            return session;
+        }
+
+        @Override
+        public void sessionClosed(ConnectionSession session) {
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * A method measuring the replication lag, taking the replica out of
+         * rotation if it lags behind more than the threshold or the lag cannot
+         * be measured.
+         */
+        void checkLag() {
+            ConnectionSession session = manager.getSession();
+
+            if (session == null) {
+                fail("No session could be opened on the replica.");
+
+                return;
+            }
+
+            PreparedStatement statement = null;
+            ResultSet resultSet = null;
+
+            try {
+                Dialect dialect = session.getDialect();
+
+                String query = dialect.getReplicationLagQuery(session.getMetaData());
+
+                if (query == null) {
+                    error = null;
+
+                    update(0);
+
+                    return;
+                }
+
+                statement = session.getStatement(query);
+
+                if (statement == null) {
+                    fail("The replication lag query could not be prepared: '" + query + "'.");
+
+                    return;
+                }
+
+                resultSet = statement.executeQuery();
+
+                long seconds = -1;
+
+                if (resultSet.next()) {
+                    double value = resultSet.getDouble(dialect == Dialect.MYSQL ? lagColumn(resultSet) : 1);
+
+                    if (!resultSet.wasNull()) {
+                        seconds = (long) Math.ceil(value);
+                    }
+                }
+
+                error = null;
+
+                update(seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds));
+            } catch (SQLException exc) {
+                fail("An SQL error occurred measuring the replication lag: '" + exc.getMessage() + "'.");
+            } catch (Exception exc) {
+                fail("An unknown error occurred measuring the replication lag: '" + exc.getMessage() + "'.");
+            } finally {
+                session.close(statement, resultSet);
+            }
+        }
+
+        /**
+         * A method returning the column of the replica status holding the lag,
+         * named after the source in recent MySQL versions and the master before.
+         *
+         * @param resultSet the replica status.
+         * @return the index of the lag column.
+         * @throws SQLException throws errors if the status has no lag column.
+         */
+        private int lagColumn(ResultSet resultSet) throws SQLException {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String label = metaData.getColumnLabel(i);
+
+                if ("Seconds_Behind_Source".equalsIgnoreCase(label) || "Seconds_Behind_Master".equalsIgnoreCase(label)) {
+                    return i;
+                }
+            }
+
+            throw new SQLException("No replication lag column found in the replica status.");
+        }
+
+        /**
+         * A method taking the replica out of rotation given the reason its lag
+         * could not be measured, kept until a later measurement succeeds.
+         *
+         * @param reason the reason of the failure.
+         */
+        private void fail(String reason) {
+            logger.error("Replica " + manager + " lag check failed: " + reason);
+
+            update(-1);
+
+            // Reporting the reason once the replica is out of rotation
+            error = reason;
+        }
+
+        /**
+         * A method updating the lag of the replica and its rotation state.
+         *
+         * @param lag the replication lag in millis, negative if unknown.
+         */
+        private void update(long lag) {
+            boolean inRotation = lag >= 0 && lag <= maxLag;
+
+            if (inRotation != healthy) {
+                logger.info("Replica " + manager + " " + (inRotation ? "back in" : "out of") + " rotation, lag: '" + lag + "'ms.");
+            }
+
+            this.lag = lag;
+            this.healthy = inRotation;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package com.tkb.the.dsm.route;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.tkb.the.dsm.async.SessionCallback;
+import com.tkb.the.dsm.db.ConnectionManager;
+import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.RowMapper;
+import com.tkb.the.dsm.db.StatementInterceptor;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * A sharded connection manager owning one connection manager per shard and
+ * routing each shard key to its shard through a consistent hash ring with
+ * virtual nodes, so adding a shard moves only the keys the new shard takes
+ * over. Queries spanning all the shards are scattered in parallel and their
+ * results gathered in shard order.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class ShardedConnectionManager implements ConnectionManager {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(ShardedConnectionManager.class);
+
+    // Connection managers per shard name in insertion order
+    private final Map<String, ConnectionManager> shards = new LinkedHashMap<String, ConnectionManager>();
+
+    // Statement interceptors added to every shard, replayed on new shards
+    private final List<StatementInterceptor> interceptors = new ArrayList<StatementInterceptor>();
+
+    // Number of virtual nodes per shard
+    private final int virtualNodes;
+
+    // Executor scattering the queries across the shards
+    private final ExecutorService executor;
+
+    // Current hash ring, replaced as a whole on changes
+    private volatile Ring ring = new Ring(new long[0], new String[0]);
+
+    /**
+     * A constructor creating a sharded connection manager given the connection
+     * managers per shard name, placing each shard on 160 virtual nodes.
+     *
+     * @param shards the connection managers per shard name.
+     */
+    public ShardedConnectionManager(Map<String, ? extends ConnectionManager> shards) {
+        this(shards, 160);
+    }
+
+    /**
+     * A constructor creating a sharded connection manager given the connection
+     * managers per shard name and the number of virtual nodes per shard.
+     *
+     * @param shards the connection managers per shard name.
+     * @param virtualNodes the number of virtual nodes per shard.
+     */
+    public ShardedConnectionManager(Map<String, ? extends ConnectionManager> shards, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shard-scatter-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        for (Map.Entry<String, ? extends ConnectionManager> shard : shards.entrySet()) {
+            addShard(shard.getKey(), shard.getValue());
+        }
+    }
+
+    /**
+     * A method adding a new shard to the ring, only the keys falling on the
+     * virtual nodes of the new shard are routed to it from now on. The
+     * interceptors added so far are added to the shard as well.
+     *
+     * @param name the unique shard name.
+     * @param manager the connection manager of the shard.
+     * @throws IllegalArgumentException throws errors if the shard already exists.
+     */
+    public synchronized void addShard(String name, ConnectionManager manager) {
+        if (shards.containsKey(name)) {
+            throw new IllegalArgumentException("Shard '" + name + "' already exists.");
+        }
+
+        shards.put(name, manager);
+
+        for (StatementInterceptor interceptor : interceptors) {
+            manager.addInterceptor(interceptor);
+        }
+
+        Ring current = ring;
+
+        int size = current.points.length + virtualNodes;
+
+        long[] points = Arrays.copyOf(current.points, size);
+        String[] owners = Arrays.copyOf(current.owners, size);
+
+        for (int i = 0; i < virtualNodes; i++) {
+            points[current.points.length + i] = hash(name + "#" + i);
+            owners[current.points.length + i] = name;
+        }
+
+        ring = Ring.sorted(points, owners);
+
+        logger.info("Shard '" + name + "' added on " + virtualNodes + " virtual nodes, ring of " + shards.size() + " shards.");
+    }
+
+    /**
+     * A method returning the name of the shard the given key is routed to.
+     *
+     * @param shardKey the shard key.
+     * @return the shard name.
+     * @throws IllegalStateException throws errors if there are no shards.
+     */
+    public String getShard(Object shardKey) {
+        return ring.locate(hash(String.valueOf(shardKey)));
+    }
+
+    /**
+     * A method returning the connection manager of the given shard.
+     *
+     * @param name the shard name.
+     * @return the connection manager, null if no such shard exists.
+     */
+    public synchronized ConnectionManager getManager(String name) {
+        return shards.get(name);
+    }
+
+    /**
+     * A method returning the names of the shards in insertion order.
+     *
+     * @return the list of shard names.
+     */
+    public synchronized List<String> getShards() {
+        return new ArrayList<String>(shards.keySet());
+    }
+
+    /**
+     * A method returning a new connection session on the shard the given key
+     * is routed to.
+     *
+     * @param shardKey the shard key.
+     * @return the connection session to return.
+     */
+    public ConnectionSession getSession(Object shardKey) {
+        return getManager(getShard(shardKey)).getSession();
+    }
+
+    /**
+     * A method returning a new connection session on the first shard, to be
+     * used for data not partitioned by a shard key.
+     *
+     * @return the connection session to return.
+     */
+    @Override
+    public ConnectionSession getSession() {
+        return home().getSession();
+    }
+
+    /**
+     * A method running the given query on every shard in parallel, gathering
+     * the mapped rows in shard order.
+     *
+     * @param query the SQL query.
+     * @param mapper the row mapper.
+     * @param params the query parameters in statement order.
+     * @return the list of mapped rows of all the shards.
+     * @throws SQLException throws errors of any shard failing the query.
+     */
+    public <T> List<T> scatter(final String query, final RowMapper<T> mapper, final Object... params) throws SQLException {
+        return scatter(new SessionCallback<List<T>>() {
+            @Override
+            public List<T> doInSession(ConnectionSession session) throws SQLException {
+                List<T> rows = new ArrayList<T>();
+
+                PreparedStatement statement = session.getStatement(query);
+
+                if (statement == null) {
+                    throw new SQLException("Unable to prepare the statement of a scattered query.");
+                }
+
+                ResultSet resultSet = null;
+
+                try {
+                    for (int i = 0; i < params.length; i++) {
+                        statement.setObject(i + 1, params[i]);
+                    }
+
+                    resultSet = statement.executeQuery();
+
+                    while (resultSet.next()) {
+                        rows.add(mapper.map(resultSet, rows.size()));
+                    }
+                } finally {
+                    session.close(statement, resultSet);
+                }
+
+                return rows;
+            }
+        });
+    }
+
+    /**
+     * A method running the given unit of work within a session of every shard
+     * in parallel, gathering the returned elements in shard order.
+     *
+     * @param callback the unit of work returning the elements of a shard.
+     * @return the list of elements of all the shards.
+     * @throws SQLException throws errors of any shard failing the work.
+     */
+    public <T> List<T> scatter(final SessionCallback<? extends Collection<T>> callback) throws SQLException {
+        Map<String, ConnectionManager> targets;
+
+        synchronized (this) {
+            targets = new LinkedHashMap<String, ConnectionManager>(shards);
+        }
+
+        List<Future<? extends Collection<T>>> futures = new ArrayList<Future<? extends Collection<T>>>();
+
+        for (final Map.Entry<String, ConnectionManager> target : targets.entrySet()) {
+            futures.add(executor.submit(new Callable<Collection<T>>() {
+                @Override
+                public Collection<T> call() throws Exception {
+                    ConnectionSession session = target.getValue().getSession();
+
+                    if (session == null) {
+                        throw new SQLException("Unable to open a session on shard '" + target.getKey() + "'.");
+                    }
+
+                    try {
+                        return callback.doInSession(session);
+                    } finally {
+                        session.close(null, null);
+                    }
+                }
+            }));
+        }
+
+        List<T> result = new ArrayList<T>();
+
+        try {
+            for (Future<? extends Collection<T>> future : futures) {
+                Collection<T> elements = future.get();
+
+                if (elements != null) {
+                    result.addAll(elements);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+
+            cancel(futures);
+
+            throw new SQLException("Interrupted while gathering the scattered results.", exc);
+        } catch (ExecutionException exc) {
+            cancel(futures);
+
+            Throwable cause = exc.getCause();
+
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+
+            throw new SQLException("An error occurred running a scattered unit of work: '" + cause.getMessage() + "'.", cause);
+        }
+
+        return result;
+    }
+
+    /**
+     * A method cancelling the scattered work still running.
+     *
+     * @param futures the futures of the scattered work.
+     */
+    private void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * A method setting up the number of minimum idle connections of every
+     * shard.
+     *
+     * @param minIdle the number of minimum idle connections.
+     */
+    @Override
+    public synchronized void setMinIdle(int minIdle) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setMinIdle(minIdle);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum idle connections of every
+     * shard.
+     *
+     * @param maxIdle the number of maximum idle connections.
+     */
+    @Override
+    public synchronized void setMaxIdle(int maxIdle) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setMaxIdle(maxIdle);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum active connections of every
+     * shard.
+     *
+     * @param maxActive the number of maximum active connections.
+     */
+    @Override
+    public synchronized void setMaxActive(int maxActive) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setMaxActive(maxActive);
+        }
+    }
+
+    /**
+     * A method setting up the number of maximum prepared statements cached per
+     * physical connection of every shard, zero disables caching.
+     *
+     * @param statementCacheSize the number of maximum cached statements.
+     */
+    @Override
+    public synchronized void setStatementCacheSize(int statementCacheSize) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setStatementCacheSize(statementCacheSize);
+        }
+    }
+
+    /**
+     * A method setting up the time a session of every shard can be held before
+     * reported as a possible leak.
+     *
+     * @param threshold the threshold in millis, zero disables leak detection.
+     */
+    @Override
+    public synchronized void setLeakDetectionThreshold(long threshold) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setLeakDetectionThreshold(threshold);
+        }
+    }
+
+    /**
+     * A method setting up the interval of the background evictor of every
+     * shard.
+     *
+     * @param interval the validation interval in millis, zero disables it.
+     */
+    @Override
+    public synchronized void setValidationInterval(long interval) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setValidationInterval(interval);
+        }
+    }
+
+    /**
+     * A method setting up the maximum lifetime of a connection of every shard.
+     *
+     * @param maxLifetime the maximum lifetime in millis, zero for unlimited.
+     */
+    @Override
+    public synchronized void setMaxLifetime(long maxLifetime) {
+        for (ConnectionManager manager : shards.values()) {
+            manager.setMaxLifetime(maxLifetime);
+        }
+    }
+
+    /**
+     * A method adding an interceptor of the statements prepared within every
+     * session opened from now on by every shard.
+     *
+     * @param interceptor the statement interceptor.
+     */
+    @Override
+    public synchronized void addInterceptor(StatementInterceptor interceptor) {
+        interceptors.add(interceptor);
+
+        for (ConnectionManager manager : shards.values()) {
+            manager.addInterceptor(interceptor);
+        }
+    }
+
+    /**
+     * A method opening as many idle connections as missing to reach the number
+     * of minimum idle connections of every shard.
+     */
+    @Override
+    public synchronized void prewarm() {
+        for (ConnectionManager manager : shards.values()) {
+            manager.prewarm();
+        }
+    }
+
+    /**
+     * A method returning the metrics of the first shard, the metrics of any
+     * other shard are available through its connection manager.
+     *
+     * @return the first shard pool metrics.
+     */
+    @Override
+    public PoolMetrics getMetrics() {
+        return home().getMetrics();
+    }
+
+    /**
+     * A method resetting the connection managers of every shard.
+     */
+    @Override
+    public synchronized void reset() {
+        for (ConnectionManager manager : shards.values()) {
+            manager.reset();
+        }
+    }
+
+    /**
+     * A method closing the connection managers of every shard, stopping the
+     * scatter gather executor.
+     */
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+
+        for (ConnectionManager manager : shards.values()) {
+            manager.close();
+        }
+    }
+
+    /**
+     * A method returning the connection manager of the first shard.
+     *
+     * @return the first shard connection manager.
+     * @throws IllegalStateException throws errors if there are no shards.
+     */
+    private synchronized ConnectionManager home() {
+        if (shards.isEmpty()) {
+            throw new IllegalStateException("No shards have been added.");
+        }
+
+        return shards.values().iterator().next();
+    }
+
+    /**
+     * A method hashing a value on the ring, as the 64 bit FNV-1a hash of its
+     * UTF-8 bytes followed by a finalizing mix spreading similar values.
+     *
+     * @param value the value to hash.
+     * @return the position on the ring.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[ShardedConnectionManager VNODES: '").append(virtualNodes).append("'");
+
+        for (Map.Entry<String, ConnectionManager> shard : shards.entrySet()) {
+            sb.append(", ").append(shard.getKey()).append(": ").append(shard.getValue());
+        }
+
+        sb.append("]");
+
+        return sb.toString();
+    }
+
+    /**
+     * An immutable consistent hash ring of sorted virtual node positions and
+     * their owner shards.
+     */
+    private static final class Ring {
+
+        // Sorted virtual node positions
+        private final long[] points;
+
+        // Owner shards per virtual node
+        private final String[] owners;
+
+        Ring(long[] points, String[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+
+        /**
+         * A method creating a ring sorting the given virtual nodes by position.
+         *
+         * @param points the virtual node positions.
+         * @param owners the owner shards per virtual node.
+         * @return the sorted ring.
+         */
+        static Ring sorted(long[] points, String[] owners) {
+            Integer[] order = new Integer[points.length];
+
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+
+            final long[] unsorted = points;
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(unsorted[a], unsorted[b]);
+                }
+            });
+
+            long[] sortedPoints = new long[points.length];
+            String[] sortedOwners = new String[owners.length];
+
+            for (int i = 0; i < order.length; i++) {
+                sortedPoints[i] = points[order[i]];
+                sortedOwners[i] = owners[order[i]];
+            }
+
+            return new Ring(sortedPoints, sortedOwners);
+        }
+
+        /**
+         * A method locating the shard owning the first virtual node clockwise
+         * from the given position.
+         *
+         * @param position the position on the ring.
+         * @return the owner shard name.
+         */
+        String locate(long position) {
+            if (points.length == 0) {
+                throw new IllegalStateException("No shards have been added.");
+            }
+
+            int index = Arrays.binarySearch(points, position);
+
+            if (index < 0) {
+                index = -index - 1;
+            }
+
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+}
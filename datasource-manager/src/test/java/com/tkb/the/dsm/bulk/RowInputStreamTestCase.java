@@ -0,0 +1,104 @@
+package com.tkb.the.dsm.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * A unit test case of the row encoding fed to the native bulk load paths.
+ * 
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class RowInputStreamTestCase {
+    
+    @Test
+    public void testEscaping() throws IOException {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[]{1, "a\tb\nc\\d\re", null, true, new byte[]{0x00, (byte) 0xff, 0x1a}});
+        rows.add(new Object[]{2, "päss-€", "\\N", false, new byte[0]});
+        
+        String expected = "1\ta\\tb\\nc\\\\d\\re\t\\N\tt\t\\\\x00ff1a\n"
+                + "2\tpäss-€\t\\\\N\tf\t\\\\x\n";
+        
+        assertEquals(expected, new String(readAll(new RowInputStream(rows.iterator(), new String[]{"t", "f"}, true, 64), 1024), StandardCharsets.UTF_8));
+        
+        InputStream empty = new RowInputStream(Collections.<Object[]>emptyIterator(), new String[]{"t", "f"}, true, 64);
+        
+        assertEquals(-1, empty.read());
+        assertEquals(-1, empty.read(new byte[8], 0, 8));
+    }
+    
+    @Test
+    public void testUnsupportedValues() {
+        List<Object[]> binary = Collections.singletonList(new Object[]{1, new byte[]{1, 2}});
+        List<Object[]> array = Collections.singletonList(new Object[]{1, new int[]{1, 2}});
+        
+        // Binary values are rejected unless written in the hex format, other arrays always
+        for (InputStream stream : Arrays.asList(new RowInputStream(binary.iterator(), new String[]{"1", "0"}, false, 64), new RowInputStream(array.iterator(), new String[]{"t", "f"}, true, 64))) {
+            try {
+                stream.read();
+                
+                fail();
+            } catch (IOException exc) {
+                assertTrue(exc.getMessage().contains("column 2"));
+            }
+        }
+    }
+    
+    @Test
+    public void testBuffering() throws IOException {
+        final int[] pulled = new int[1];
+        
+        final Iterator<Object[]> rows = new Iterator<Object[]>() {
+            @Override
+            public boolean hasNext() {
+                return pulled[0] < 1000;
+            }
+            
+            @Override
+            public Object[] next() {
+                return new Object[]{pulled[0]++, "row"};
+            }
+        };
+        
+        StringBuilder expected = new StringBuilder();
+        
+        for (int i = 0; i < 1000; i++) {
+            expected.append(i).append("\trow\n");
+        }
+        
+        InputStream stream = new RowInputStream(rows, new String[]{"t", "f"}, true, 32);
+        
+        // Rows are encoded only a buffer worth ahead of the reader
+        assertEquals('0', stream.read());
+        assertTrue(pulled[0] < 10);
+        assertTrue(stream.available() > 0);
+        
+        byte[] rest = readAll(stream, 7);
+        
+        assertEquals(1000, pulled[0]);
+        assertEquals(expected.substring(1), new String(rest, StandardCharsets.UTF_8));
+    }
+    
+    private static byte[] readAll(InputStream stream, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        byte[] bytes = new byte[chunk];
+        
+        int count;
+        
+        while ((count = stream.read(bytes, 0, chunk)) != -1) {
+            out.write(bytes, 0, count);
+        }
+        
+        return out.toByteArray();
+    }
+}
@@ -1,13 +1,46 @@
 package com.tkb.the.dsm.unit;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import com.tkb.the.dsm.async.AsyncConnectionManager;
+import com.tkb.the.dsm.async.GroupCommitWriter;
+import com.tkb.the.dsm.bulk.BulkLoader;
+import com.tkb.the.dsm.cache.CachingConnectionManager;
 import com.tkb.the.dsm.db.ConnectionManager;
 import com.tkb.the.dsm.db.ConnectionPool;
 import com.tkb.the.dsm.db.ConnectionSession;
+import com.tkb.the.dsm.db.Dialect;
+import com.tkb.the.dsm.db.NativeConnectionPool;
+import com.tkb.the.dsm.db.RowMapper;
+import com.tkb.the.dsm.db.StatementInterceptor;
+import com.tkb.the.dsm.mapping.RowMappers;
+import com.tkb.the.dsm.metrics.LatencyHistogram;
+import com.tkb.the.dsm.metrics.PoolMetrics;
+import com.tkb.the.dsm.metrics.QueryStatistics;
+import com.tkb.the.dsm.route.ReplicatedConnectionManager;
+import com.tkb.the.dsm.route.ShardedConnectionManager;
 import org.apache.log4j.Logger;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -25,6 +58,9 @@ public class GenericTestCase {
     // Connection manager
     private static ConnectionManager cm = new ConnectionPool("com.mysql.jdbc.Driver", "jdbc:mysql://localhost/mysql?useUnicode=true&characterEncoding=UTF-8&useFastDateParsing=false", "root", "root");
     
+    // Native connection manager linked to an embedded database
+    private static NativeConnectionPool ncm = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+    
     @Test
     public void testConnection() {
         ConnectionSession cs = cm.getSession();
@@ -66,4 +102,868 @@ public class GenericTestCase {
         
         assertTrue(cs.isClosed());
     }
+    
+    @Test
+    public void testNativeConnectionReuse() throws SQLException {
+        ConnectionSession cs = ncm.getSession();
+        
+        PreparedStatement ps = cs.getStatement("SELECT SESSION_ID()");
+        ResultSet result = ps.executeQuery();
+        result.next();
+        
+        int id = result.getInt(1);
+        
+        cs.close(ps, result);
+        
+        assertTrue(cs.isClosed());
+        
+        ConnectionSession cs2 = ncm.getSession();
+        
+        PreparedStatement ps2 = cs2.getStatement("SELECT SESSION_ID()");
+        ResultSet result2 = ps2.executeQuery();
+        result2.next();
+        
+        assertEquals(id, result2.getInt(1));
+        
+        cs2.close(ps2, result2);
+    }
+    
+    @Test
+    public void testNativeExhaustedPool() {
+        NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        pool.setMaxActive(2);
+        pool.setMaxWait(100);
+        
+        ConnectionSession cs1 = pool.getSession();
+        ConnectionSession cs2 = pool.getSession();
+        
+        assertNotNull(cs1);
+        assertNotNull(cs2);
+        assertNull(pool.getSession());
+        
+        cs1.close(null, null);
+        
+        ConnectionSession cs3 = pool.getSession();
+        
+        assertNotNull(cs3);
+        
+        cs2.close(null, null);
+        cs3.close(null, null);
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testStatementCache() throws SQLException {
+        NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        pool.setStatementCacheSize(10);
+        
+        ConnectionSession cs = pool.getSession();
+        
+        PreparedStatement ps = cs.getStatement("SELECT ?");
+        ps.setInt(1, 1);
+        ResultSet result = ps.executeQuery();
+        
+        cs.close(ps, result);
+        
+        assertFalse(ps.isClosed());
+        
+        ConnectionSession cs2 = pool.getSession();
+        
+        PreparedStatement ps2 = cs2.getStatement("SELECT ?");
+        
+        assertSame(ps, ps2);
+        assertEquals(1, cs2.getStatementCache().getHits());
+        assertEquals(1, cs2.getStatementCache().getMisses());
+        
+        // Preparing the same query while in use gets an uncached statement
+        PreparedStatement nested = cs2.getStatement("SELECT ?");
+        
+        assertNotSame(ps2, nested);
+        
+        ps2.setInt(1, 2);
+        nested.setInt(1, 3);
+        
+        ResultSet outer = ps2.executeQuery();
+        ResultSet inner = nested.executeQuery();
+        
+        assertTrue(outer.next());
+        assertEquals(2, outer.getInt(1));
+        assertTrue(inner.next());
+        assertEquals(3, inner.getInt(1));
+        
+        inner.close();
+        cs2.release(nested);
+        
+        assertTrue(nested.isClosed());
+        assertFalse(ps2.isClosed());
+        
+        cs2.close(ps2, outer);
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testPoolMetrics() {
+        NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        for (int i = 0; i < 5; i++) {
+            pool.getSession().close(null, null);
+        }
+        
+        PoolMetrics metrics = pool.getMetrics();
+        
+        logger.info(metrics);
+        
+        assertEquals(5, metrics.getBorrowed());
+        assertEquals(5, metrics.getHoldTimes().getCount());
+        assertEquals(1, metrics.getCreated());
+        assertEquals(0, metrics.getWaiting());
+        
+        pool.close();
+        
+        assertEquals(1, metrics.getDestroyed());
+    }
+    
+    @Test
+    public void testPoolWaitQueue() throws Exception {
+        final NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        pool.setMaxActive(1);
+        
+        ConnectionSession held = pool.getSession();
+        
+        // Holding a connection is not waiting for one
+        assertEquals(0, pool.getMetrics().getWaiting());
+        
+        CompletableFuture<ConnectionSession> queued = CompletableFuture.supplyAsync(new Supplier<ConnectionSession>() {
+            @Override
+            public ConnectionSession get() {
+                return pool.getSession();
+            }
+        });
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        
+        while (pool.getMetrics().getWaiting() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        
+        assertEquals(1, pool.getMetrics().getWaiting());
+        
+        held.close(null, null);
+        
+        queued.get(5, TimeUnit.SECONDS).close(null, null);
+        
+        assertEquals(0, pool.getMetrics().getWaiting());
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 * 0.04);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 * 0.04);
+    }
+    
+    @Test
+    public void testBatchWriter() throws SQLException {
+        ConnectionSession cs = ncm.getSession();
+        
+        PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS batch_item (id INT PRIMARY KEY, name VARCHAR(32))");
+        ps.executeUpdate();
+        ps.close();
+        
+        List<Object[]> rows = new ArrayList<Object[]>();
+        
+        for (int i = 0; i < 10; i++) {
+            rows.add(new Object[]{i, "item" + i});
+        }
+        
+        long written = cs.executeBatch("INSERT INTO batch_item (id, name) VALUES (?, ?)", rows.iterator(), 3);
+        
+        assertEquals(10, written);
+        
+        PreparedStatement count = cs.getStatement("SELECT COUNT(*) FROM batch_item");
+        ResultSet result = count.executeQuery();
+        result.next();
+        
+        assertEquals(10, result.getInt(1));
+        
+        cs.close(count, result);
+    }
+    
+    @Test
+    public void testStreamingCursor() throws SQLException {
+        ConnectionSession cs = ncm.getSession();
+        
+        RowMapper<Integer> mapper = new RowMapper<Integer>() {
+            @Override
+            public Integer map(ResultSet resultSet, int rowNum) throws SQLException {
+                return resultSet.getInt(1);
+            }
+        };
+        
+        List<Integer> values;
+        
+        try (Stream<Integer> stream = cs.stream("SELECT X FROM SYSTEM_RANGE(1, 100) WHERE X > ?", mapper, 10, 90)) {
+            values = stream.collect(Collectors.toList());
+        }
+        
+        assertEquals(10, values.size());
+        assertEquals(Integer.valueOf(91), values.get(0));
+        assertTrue(cs.isClosed());
+    }
+    
+    @Test
+    public void testReadWriteSplitting() throws SQLException {
+        NativeConnectionPool primary = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1", "sa", "");
+        NativeConnectionPool replica1 = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:replica1;DB_CLOSE_DELAY=-1", "sa", "");
+        NativeConnectionPool replica2 = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:replica2;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        ReplicatedConnectionManager rcm = new ReplicatedConnectionManager(primary, Arrays.asList(replica1, replica2));
+        
+        ConnectionSession read1 = rcm.getReadSession();
+        ConnectionSession read2 = rcm.getReadSession();
+        
+        String db1 = databaseOf(read1);
+        String db2 = databaseOf(read2);
+        
+        assertTrue(db1.startsWith("REPLICA"));
+        assertTrue(db2.startsWith("REPLICA"));
+        assertFalse(db1.equals(db2));
+        
+        read1.close(null, null);
+        read2.close(null, null);
+        
+        rcm.setPinWindow(60000);
+        
+        ConnectionSession write = rcm.getSession();
+        write.close(null, null);
+        
+        ConnectionSession pinned = rcm.getReadSession();
+        
+        assertEquals("PRIMARY", databaseOf(pinned));
+        
+        pinned.close(null, null);
+        
+        rcm.close();
+    }
+    
+    private static String databaseOf(ConnectionSession cs) throws SQLException {
+        PreparedStatement ps = cs.getStatement("SELECT DATABASE()");
+        ResultSet result = ps.executeQuery();
+        result.next();
+        
+        String database = result.getString(1);
+        
+        result.close();
+        ps.close();
+        
+        return database;
+    }
+    
+    @Test
+    public void testReplicationLagFailure() throws Exception {
+        assertEquals("SHOW SLAVE STATUS", Dialect.MYSQL.getReplicationLagQuery(metaData("jdbc:mysql://replica/db", "8.0.21")));
+        assertEquals("SHOW REPLICA STATUS", Dialect.MYSQL.getReplicationLagQuery(metaData("jdbc:mysql://replica/db", "8.0.22-log")));
+        assertEquals("SHOW REPLICA STATUS", Dialect.MYSQL.getReplicationLagQuery(metaData("jdbc:mysql://replica/db", "8.4.0")));
+        assertTrue(Dialect.POSTGRESQL.getReplicationLagQuery(metaData("jdbc:postgresql://replica/db", "9.6.24")).contains("pg_last_xlog_receive_location()"));
+        assertTrue(Dialect.POSTGRESQL.getReplicationLagQuery(metaData("jdbc:postgresql://replica/db", "16.2.0")).contains("pg_last_wal_receive_lsn()"));
+        
+        NativeConnectionPool primary = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:lagprimary;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        final List<String> queries = new CopyOnWriteArrayList<String>();
+        
+        // A replica claiming to be PostgreSQL 16, failing the lag query it is sent
+        ConnectionManager lagging = (ConnectionManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ConnectionManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("toString".equals(method.getName())) {
+                    return "lagging";
+                }
+                
+                if (!"getSession".equals(method.getName())) {
+                    return null;
+                }
+                
+                final Connection connection = DriverManager.getConnection("jdbc:h2:mem:lagging;DB_CLOSE_DELAY=-1", "sa", "");
+                final DatabaseMetaData metaData = metaData("jdbc:postgresql://lagging/db", "16.2.0");
+                
+                return new ConnectionSession((Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getMetaData".equals(method.getName())) {
+                            return metaData;
+                        }
+                        
+                        if ("prepareStatement".equals(method.getName())) {
+                            queries.add((String) args[0]);
+                        }
+                        
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException exc) {
+                            throw exc.getCause();
+                        }
+                    }
+                }));
+            }
+        });
+        
+        ReplicatedConnectionManager rcm = new ReplicatedConnectionManager(primary, Arrays.asList(lagging), 50);
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        
+        while (!rcm.toString().contains("ERROR") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        
+        // The failure is reported along with the replica taken out of rotation
+        assertTrue(rcm.toString(), rcm.toString().contains("OFF ERROR: 'The replication lag query could not be prepared"));
+        assertTrue(queries.get(0).contains("pg_last_wal_receive_lsn()"));
+        
+        ConnectionSession read = rcm.getReadSession();
+        
+        assertEquals("LAGPRIMARY", databaseOf(read));
+        
+        read.close(null, null);
+        
+        rcm.close();
+    }
+    
+    private static DatabaseMetaData metaData(final String url, final String version) {
+        final String[] numbers = version.split("[.-]");
+        
+        return (DatabaseMetaData) Proxy.newProxyInstance(GenericTestCase.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getURL":
+                        return url;
+                    case "getDatabaseProductVersion":
+                        return version;
+                    case "getDatabaseMajorVersion":
+                        return Integer.parseInt(numbers[0]);
+                    case "getDatabaseMinorVersion":
+                        return Integer.parseInt(numbers[1]);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+    
+    @Test
+    public void testAsyncSessions() throws Exception {
+        AsyncConnectionManager acm = new AsyncConnectionManager(ncm, 2);
+        
+        ConnectionSession cs1 = acm.getSessionAsync(1, TimeUnit.SECONDS).get();
+        ConnectionSession cs2 = acm.getSessionAsync(1, TimeUnit.SECONDS).get();
+        
+        CompletableFuture<ConnectionSession> queued = acm.getSessionAsync(5, TimeUnit.SECONDS);
+        
+        // Requests given up leave the wait queue without waiting for a permit
+        CompletableFuture<ConnectionSession> cancelled = acm.getSessionAsync(5, TimeUnit.SECONDS);
+        
+        assertEquals(2, acm.getWaiting());
+        
+        cancelled.cancel(false);
+        
+        assertEquals(1, acm.getWaiting());
+        
+        CompletableFuture<ConnectionSession> expired = acm.getSessionAsync(50, TimeUnit.MILLISECONDS);
+        
+        try {
+            expired.get();
+            
+            fail();
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof TimeoutException);
+        }
+        
+        assertFalse(queued.isDone());
+        
+        cs1.close(null, null);
+        
+        ConnectionSession cs3 = queued.get(1, TimeUnit.SECONDS);
+        
+        assertNotNull(cs3);
+        
+        cs2.close(null, null);
+        cs3.close(null, null);
+        
+        acm.close();
+    }
+    
+    @Test
+    public void testAsyncSessionFailure() throws Exception {
+        // A manager failing to open sessions, as a sharded one without shards does
+        AsyncConnectionManager acm = new AsyncConnectionManager(new ShardedConnectionManager(new LinkedHashMap<String, ConnectionManager>()), 1);
+        
+        for (int i = 0; i < 2; i++) {
+            CompletableFuture<ConnectionSession> failed = acm.getSessionAsync(5, TimeUnit.SECONDS);
+            
+            try {
+                failed.get(1, TimeUnit.SECONDS);
+                
+                fail();
+            } catch (ExecutionException exc) {
+                assertTrue(exc.getCause() instanceof IllegalStateException);
+            }
+        }
+        
+        // The permit is given back on each failure
+        assertEquals(0, acm.getWaiting());
+        
+        acm.close();
+    }
+    
+    @Test
+    public void testPrewarm() {
+        ConnectionPool pool = new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "", 5, 10);
+        
+        assertEquals(5, pool.getMetrics().getCreated());
+        
+        ConnectionSession cs = pool.getSession();
+        
+        assertNotNull(cs);
+        assertEquals(5, pool.getMetrics().getCreated());
+        
+        cs.close(null, null);
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testQueryResultCache() throws SQLException {
+        CachingConnectionManager ccm = new CachingConnectionManager(ncm, 16);
+        
+        ConnectionSession cs = ccm.getSession();
+        
+        PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS cached_item (id INT PRIMARY KEY)");
+        ps.executeUpdate();
+        ps.close();
+        
+        cs.close(null, null);
+        
+        List<Object[]> rows = ccm.query("SELECT id FROM cached_item WHERE id > ?", 60000, 0);
+        
+        assertEquals(0, rows.size());
+        assertNotSame(rows, ccm.query("SELECT id FROM cached_item WHERE id > ?", 60000, 0));
+        assertEquals(1, ccm.getCache().getHits());
+        
+        cs = ccm.getSession();
+        
+        ps = cs.getStatement("INSERT INTO cached_item (id) VALUES (?)");
+        ps.setInt(1, 1);
+        ps.executeUpdate();
+        
+        cs.close(ps, null);
+        
+        assertEquals(0, ccm.getCache().size());
+        
+        rows = ccm.query("SELECT id FROM cached_item WHERE id > ?", 60000, 0);
+        
+        assertEquals(1, rows.size());
+        
+        // Altering returned rows leaves the cached result intact
+        rows.get(0)[0] = 99;
+        
+        rows = ccm.query("SELECT id FROM cached_item WHERE id > ?", 60000, 0);
+        
+        assertEquals(1, rows.get(0)[0]);
+        
+        rows.get(0)[0] = 99;
+        
+        assertEquals(1, ccm.query("SELECT id FROM cached_item WHERE id > ?", 60000, 0).get(0)[0]);
+        
+        try {
+            new CachingConnectionManager(ncm, 0);
+            
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertTrue(exc.getMessage().contains("'0'"));
+        }
+    }
+    
+    @Test
+    public void testShardedRouting() throws SQLException {
+        Map<String, ConnectionManager> shards = new LinkedHashMap<String, ConnectionManager>();
+        
+        for (int i = 0; i < 3; i++) {
+            shards.put("shard" + i, new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        }
+        
+        ShardedConnectionManager scm = new ShardedConnectionManager(shards);
+        
+        for (String shard : scm.getShards()) {
+            ConnectionSession cs = scm.getManager(shard).getSession();
+            
+            PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS shard_item (id INT PRIMARY KEY)");
+            ps.executeUpdate();
+            
+            cs.close(ps, null);
+        }
+        
+        for (int key = 0; key < 30; key++) {
+            ConnectionSession cs = scm.getSession(key);
+            
+            PreparedStatement ps = cs.getStatement("INSERT INTO shard_item (id) VALUES (?)");
+            ps.setInt(1, key);
+            ps.executeUpdate();
+            
+            cs.close(ps, null);
+        }
+        
+        List<Integer> ids = scm.scatter("SELECT id FROM shard_item", new RowMapper<Integer>() {
+            @Override
+            public Integer map(ResultSet rs, int rowNum) throws SQLException {
+                return rs.getInt(1);
+            }
+        });
+        
+        assertEquals(30, ids.size());
+        
+        String[] before = new String[1000];
+        
+        for (int key = 0; key < before.length; key++) {
+            before[key] = scm.getShard(key);
+            
+            assertEquals(before[key], scm.getShard(key));
+        }
+        
+        final int[] intercepted = new int[1];
+        
+        scm.addInterceptor(new StatementInterceptor() {
+            @Override
+            public PreparedStatement intercept(ConnectionSession session, String query, PreparedStatement statement) {
+                intercepted[0]++;
+                
+                return statement;
+            }
+        });
+        
+        scm.addShard("shard3", new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:shard3;DB_CLOSE_DELAY=-1", "sa", ""));
+        
+        // Interceptors added earlier are applied to shards added later
+        ConnectionSession added = scm.getManager("shard3").getSession();
+        
+        PreparedStatement select = added.getStatement("SELECT 1");
+        
+        assertEquals(1, intercepted[0]);
+        
+        added.close(select, null);
+        
+        int moved = 0;
+        
+        for (int key = 0; key < before.length; key++) {
+            String after = scm.getShard(key);
+            
+            if (!after.equals(before[key])) {
+                assertEquals("shard3", after);
+                
+                moved++;
+            }
+        }
+        
+        assertTrue(moved > 100 && moved < 400);
+        
+        scm.close();
+    }
+    
+    @Test
+    public void testBackgroundEviction() throws InterruptedException {
+        ConnectionManager[] managers = {
+            new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", ""),
+            new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "", 2, 4)
+        };
+        
+        for (ConnectionManager cm : managers) {
+            cm.setMinIdle(2);
+            cm.prewarm();
+            
+            long created = cm.getMetrics().getCreated();
+            
+            cm.setMaxLifetime(100);
+            cm.setValidationInterval(50);
+            
+            Thread.sleep(500);
+            
+            assertTrue(cm.getMetrics().getDestroyed() >= 2);
+            assertTrue(cm.getMetrics().getCreated() >= created + 2);
+            
+            cm.setValidationInterval(0);
+            
+            ConnectionSession cs = cm.getSession();
+            
+            assertNotNull(cs);
+            
+            cs.close(null, null);
+            
+            cm.close();
+        }
+    }
+    
+    @Test
+    public void testBulkLoader() throws SQLException {
+        ConnectionSession cs = ncm.getSession();
+        
+        PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS bulk_item (id INT PRIMARY KEY, name VARCHAR(32))");
+        ps.executeUpdate();
+        ps.close();
+        
+        List<Object[]> rows = new ArrayList<Object[]>();
+        
+        for (int i = 0; i < 2500; i++) {
+            rows.add(new Object[]{i, i % 2 == 0 ? "item" + i : null});
+        }
+        
+        BulkLoader loader = new BulkLoader(cs);
+        loader.setBatchSize(1000);
+        
+        assertEquals(2500, loader.load("bulk_item", new String[]{"id", "name"}, rows.iterator()));
+        
+        PreparedStatement count = cs.getStatement("SELECT COUNT(*), COUNT(name) FROM bulk_item");
+        ResultSet result = count.executeQuery();
+        result.next();
+        
+        assertEquals(2500, result.getInt(1));
+        assertEquals(1250, result.getInt(2));
+        
+        cs.close(count, result);
+    }
+    
+    @Test
+    public void testGroupCommitWriter() throws Exception {
+        ConnectionSession cs = ncm.getSession();
+        
+        PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS audit_item (id INT PRIMARY KEY)");
+        ps.executeUpdate();
+        
+        cs.close(ps, null);
+        
+        GroupCommitWriter gcw = new GroupCommitWriter(ncm, 2, 50, 5, 1000);
+        
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        
+        for (int i = 0; i < 200; i++) {
+            futures.add(gcw.submit("INSERT INTO audit_item (id) VALUES (?)", i));
+        }
+        
+        // Duplicate key failing alone
+        CompletableFuture<Integer> duplicate = gcw.submit("INSERT INTO audit_item (id) VALUES (?)", 0);
+        
+        for (CompletableFuture<Integer> future : futures) {
+            assertEquals(1, (int) future.get(10, TimeUnit.SECONDS));
+        }
+        
+        try {
+            duplicate.get(10, TimeUnit.SECONDS);
+            
+            fail("Duplicate write should have failed");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof SQLException);
+        }
+        
+        assertTrue(gcw.close(10000));
+        assertTrue(gcw.submit("INSERT INTO audit_item (id) VALUES (?)", 1000).isCompletedExceptionally());
+    }
+    
+    @Test
+    public void testGroupCommitWithoutCounts() throws Exception {
+        NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        
+        ConnectionSession cs = pool.getSession();
+        
+        PreparedStatement ps = cs.getStatement("CREATE TABLE IF NOT EXISTS rewritten_item (id INT PRIMARY KEY)");
+        ps.executeUpdate();
+        
+        cs.close(ps, null);
+        
+        // Reporting batches the way drivers rewriting them into one statement do
+        pool.addInterceptor(new StatementInterceptor() {
+            @Override
+            public PreparedStatement intercept(ConnectionSession session, String query, final PreparedStatement statement) {
+                return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("executeBatch".equals(method.getName())) {
+                            int[] counts = statement.executeBatch();
+                            
+                            Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+                            
+                            return counts;
+                        }
+                        
+                        try {
+                            return method.invoke(statement, args);
+                        } catch (InvocationTargetException exc) {
+                            throw exc.getCause();
+                        }
+                    }
+                });
+            }
+        });
+        
+        GroupCommitWriter gcw = new GroupCommitWriter(pool, 1, 50, 5, 100);
+        
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        
+        for (int i = 0; i < 20; i++) {
+            futures.add(gcw.submit("INSERT INTO rewritten_item (id) VALUES (?)", i));
+        }
+        
+        for (CompletableFuture<Integer> future : futures) {
+            assertEquals(Statement.SUCCESS_NO_INFO, (int) future.get(10, TimeUnit.SECONDS));
+        }
+        
+        assertTrue(gcw.close(10000));
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testQueryStatistics() throws SQLException {
+        assertEquals("SELECT * FROM t WHERE a = ? AND b IN (?) AND c = ?", QueryStatistics.normalize("SELECT *  FROM t\n WHERE a = 'x''y' AND b IN (1, 2, 3) AND c = ? -- note"));
+        assertEquals("INSERT INTO t (a, b) VALUES (?, ?)", QueryStatistics.normalize("INSERT INTO t (a, b) VALUES (?, ?), (?, ?), (?, ?)"));
+        
+        NativeConnectionPool pool = new NativeConnectionPool("org.h2.Driver", "jdbc:h2:mem:dsm;DB_CLOSE_DELAY=-1", "sa", "");
+        pool.setStatementCacheSize(8);
+        
+        QueryStatistics stats = new QueryStatistics(1.0, 100);
+        pool.addInterceptor(stats);
+        
+        for (int i = 1; i <= 10; i++) {
+            ConnectionSession cs = pool.getSession();
+            
+            PreparedStatement ps = cs.getStatement("SELECT X FROM SYSTEM_RANGE(1, " + i + ")");
+            ResultSet rs = ps.executeQuery();
+            
+            while (rs.next()) {
+            }
+            
+            cs.close(ps, rs);
+        }
+        
+        QueryStatistics.Snapshot top = stats.getTop(1).get(0);
+        
+        assertEquals("SELECT X FROM SYSTEM_RANGE(?, ?)", top.getQuery());
+        assertEquals(10, top.getCalls());
+        assertEquals(55, top.getRows());
+        
+        for (int i = 0; i < 3; i++) {
+            ConnectionSession cs = pool.getSession();
+            
+            PreparedStatement ps = cs.getStatement("SELECT 1");
+            ps.executeQuery().close();
+            
+            cs.close(ps, null);
+        }
+        
+        // Proxied statements are given back to the statement cache
+        ConnectionSession cs = pool.getSession();
+        
+        assertTrue(cs.getStatementCache().getHits() >= 2);
+        
+        cs.close(null, null);
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testBeanRowMapper() throws SQLException {
+        ConnectionSession cs = ncm.getSession();
+        
+        String query = "SELECT X AS ITEM_ID, 'item-' || X AS NAME, X * 10 AS TOTAL, CASE WHEN X > 1 THEN X END AS PARENT_ID FROM SYSTEM_RANGE(1, ?)";
+        
+        List<Item> items = cs.query(query, Item.class, 3);
+        
+        cs.close(null, null);
+        
+        assertEquals(3, items.size());
+        assertEquals(1L, items.get(0).getItemId());
+        assertEquals("item-1", items.get(0).getName());
+        assertEquals(10.0, items.get(0).getTotal(), 0.0);
+        assertNull(items.get(0).getParentId());
+        assertEquals(Integer.valueOf(3), items.get(2).getParentId());
+        
+        // Mappers are built once per query and class
+        RowMapper<Item> mapper = RowMappers.of(query, Item.class);
+        
+        assertSame(mapper, RowMappers.of(query, Item.class));
+        
+        // Least recently used queries are evicted one at a time
+        for (int i = 0; i < 256; i++) {
+            RowMappers.of(query + " -- " + i, Item.class);
+        }
+        
+        assertNotSame(mapper, RowMappers.of(query, Item.class));
+        
+        mapper = RowMappers.of(query, Item.class);
+        
+        RowMappers.clear();
+        
+        assertNotSame(mapper, RowMappers.of(query, Item.class));
+    }
+    
+    /**
+     * A bean mapped from query results.
+     */
+    public static class Item {
+        
+        // Item identifier
+        private long itemId;
+        
+        // Item name
+        private String name;
+        
+        // Item total
+        private double total;
+        
+        // Parent item identifier
+        private Integer parentId;
+
+        public long getItemId() {
+            return itemId;
+        }
+
+        public void setItemId(long itemId) {
+            this.itemId = itemId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public void setTotal(double total) {
+            this.total = total;
+        }
+
+        public Integer getParentId() {
+            return parentId;
+        }
+
+        public void setParentId(Integer parentId) {
+            this.parentId = parentId;
+        }
+    }
 }
@@ -0,0 +1,369 @@
+package com.tkb.the.psg.async;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.tkb.the.psg.encryption.DataEncryptor;
+import org.apache.log4j.Logger;
+
+/**
+ * An asynchronous hashing service running a data encryptor on a dedicated
+ * bounded pool of threads, so bursts of logins cannot take over the cores
+ * of the request threads. Admission is controlled by a bounded queue, which
+ * rejects fast once full, and by a deadline on the time a request may wait
+ * in the queue, beyond which it is shed without hashing since its caller has
+ * most likely given up. Requests are queued per tenant and served round
+ * robin, while each tenant may only hold a share of the queue, so a single
+ * tenant's burst cannot monopolize the hashing budget.
+ *
+ * Futures are completed on the hashing threads, dependent work should be
+ * chained asynchronously to keep the hashing threads busy hashing.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class HashingService {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(HashingService.class);
+
+    // Data encryptor
+    private final DataEncryptor encryptor;
+
+    // Maximum number of queued requests
+    private final int capacity;
+
+    // Maximum time in nanos a request may wait in the queue
+    private final long maxQueueWait;
+
+    // Maximum number of queued requests per tenant, guarded by the queue lock
+    private int tenantCapacity;
+
+    // Queued requests per tenant
+    private final Map<String, ArrayDeque<Request>> queues = new HashMap<String, ArrayDeque<Request>>();
+
+    // Tenants with queued requests in serving order
+    private final ArrayDeque<String> tenants = new ArrayDeque<String>();
+
+    // Number of queued requests
+    private int pending;
+
+    // Queue lock
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Condition signaling queued requests
+    private final Condition notEmpty = lock.newCondition();
+
+    // Hashing threads
+    private final Thread[] workers;
+
+    // Number of requests rejected on admission
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Number of requests shed past their queue deadline
+    private final AtomicLong shed = new AtomicLong();
+
+    // Flag marking the service as closed
+    private volatile boolean closed;
+
+    /**
+     * A constructor creating a hashing service given the data encryptor, the
+     * number of hashing threads, the capacity of the queue and the maximum
+     * time a request may wait in the queue. Each tenant may hold up to a
+     * quarter of the queue.
+     *
+     * @param encryptor the thread safe data encryptor.
+     * @param threads the number of hashing threads.
+     * @param capacity the maximum number of queued requests.
+     * @param maxQueueWait the maximum queue wait in millis.
+     */
+    public HashingService(DataEncryptor encryptor, int threads, int capacity, long maxQueueWait) {
+        if (threads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Hashing threads and capacity must be positive: '" + threads + "', '" + capacity + "'.");
+        }
+
+        this.encryptor = encryptor;
+        this.capacity = capacity;
+        this.maxQueueWait = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+        this.tenantCapacity = Math.max(1, capacity / 4);
+
+        workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }, "hashing-worker-" + (i + 1));
+
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * A method setting up the maximum number of queued requests per tenant.
+     *
+     * @param tenantCapacity the maximum number of queued requests per tenant.
+     * @throws IllegalArgumentException throws errors if the capacity is not positive.
+     */
+    public void setTenantCapacity(int tenantCapacity) {
+        if (tenantCapacity < 1) {
+            throw new IllegalArgumentException("Tenant capacity must be positive: '" + tenantCapacity + "'.");
+        }
+
+        lock.lock();
+
+        try {
+            this.tenantCapacity = tenantCapacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method submitting data to be hashed on behalf of a tenant, rejected
+     * at once if the queue or the tenant's share of it is full.
+     *
+     * @param tenant the tenant identifier.
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @return the future encrypted data, failed with a rejected execution
+     * exception if rejected or shed.
+     * @throws IllegalArgumentException throws errors if the tenant is null.
+     */
+    public CompletableFuture<String> submit(String tenant, String data, String salt) {
+        if (tenant == null) {
+            throw new IllegalArgumentException("Tenant must not be null.");
+        }
+
+        Request request = new Request(data, salt);
+
+        lock.lock();
+
+        try {
+            if (closed) {
+                request.future.completeExceptionally(new RejectedExecutionException("Hashing service has been already closed."));
+
+                return request.future;
+            }
+
+            ArrayDeque<Request> queue = queues.get(tenant);
+
+            int queued = queue != null ? queue.size() : 0;
+
+            if (pending >= capacity || queued >= tenantCapacity) {
+                rejected.incrementAndGet();
+
+                request.future.completeExceptionally(new RejectedExecutionException("Hashing queue is full for tenant '" + tenant + "'."));
+
+                return request.future;
+            }
+
+            if (queue == null) {
+                queue = new ArrayDeque<Request>();
+
+                queues.put(tenant, queue);
+
+                tenants.addLast(tenant);
+            }
+
+            queue.addLast(request);
+
+            pending++;
+
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return request.future;
+    }
+
+    /**
+     * A method serving requests until closed and emptied.
+     */
+    private void serve() {
+        while (true) {
+            Request request;
+
+            try {
+                request = take();
+            } catch (InterruptedException exc) {
+                return;
+            }
+
+            if (request == null) {
+                return;
+            }
+
+            // Skipping requests cancelled or timed out by their callers
+            if (request.future.isDone()) {
+                continue;
+            }
+
+            if (System.nanoTime() - request.submittedAt > maxQueueWait) {
+                shed.incrementAndGet();
+
+                request.future.completeExceptionally(new RejectedExecutionException("Hashing request has been shed after waiting past its deadline."));
+
+                continue;
+            }
+
+            try {
+                request.future.complete(encryptor.encrypt(request.data, request.salt));
+            } catch (Exception exc) {
+                logger.error("An unknown error occurred hashing data: '" + exc.getMessage() + "'.");
+
+                request.future.completeExceptionally(exc);
+            } catch (Error exc) {
+                // Keeping the worker serving, the error is handed to the caller
+                logger.error("A fatal error occurred hashing data: '" + exc + "'.");
+
+                request.future.completeExceptionally(exc);
+            }
+        }
+    }
+
+    /**
+     * A method taking the next request of the next tenant in turn, moving the
+     * tenant to the back of the line if it has more requests queued.
+     *
+     * @return the next request, null once closed and emptied.
+     * @throws InterruptedException throws interruptions while waiting.
+     */
+    private Request take() throws InterruptedException {
+        lock.lock();
+
+        try {
+            while (tenants.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+
+                notEmpty.await();
+            }
+
+            String tenant = tenants.pollFirst();
+
+            ArrayDeque<Request> queue = queues.get(tenant);
+
+            Request request = queue.pollFirst();
+
+            if (queue.isEmpty()) {
+                queues.remove(tenant);
+            } else {
+                tenants.addLast(tenant);
+            }
+
+            pending--;
+
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method returning the number of queued requests.
+     *
+     * @return the number of queued requests.
+     */
+    public int getPending() {
+        lock.lock();
+
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A method returning the number of requests rejected on admission.
+     *
+     * @return the number of rejected requests.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * A method returning the number of requests shed past their deadline.
+     *
+     * @return the number of shed requests.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * A method closing the service, new requests are rejected while the
+     * queued ones are served before the hashing threads exit.
+     *
+     * @param timeout the maximum time in millis to wait for queued requests.
+     * @return true if all the requests have been served, otherwise false.
+     */
+    public boolean close(long timeout) {
+        lock.lock();
+
+        try {
+            closed = true;
+
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            for (Thread worker : workers) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A request pending to be hashed along with its future.
+     */
+    private static final class Request {
+
+        // Data to be encrypted
+        private final String data;
+
+        // Salt of the data
+        private final String salt;
+
+        // Time in nanos the request has been submitted
+        private final long submittedAt = System.nanoTime();
+
+        // Future encrypted data
+        private final CompletableFuture<String> future = new CompletableFuture<String>();
+
+        Request(String data, String salt) {
+            this.data = data;
+            this.salt = salt;
+        }
+    }
+}
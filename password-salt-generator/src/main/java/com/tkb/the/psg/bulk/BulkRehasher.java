@@ -0,0 +1,353 @@
+package com.tkb.the.psg.bulk;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import com.tkb.the.psg.encryption.DataEncryptor;
+import org.apache.log4j.Logger;
+
+/**
+ * A bulk rehasher hashing a stream of stored credentials in parallel, i.e.
+ * to migrate a password store to a higher iteration count. Credentials are
+ * read in chunks hashed on a work stealing pool sized to the cores, while
+ * the number of chunks in flight is bounded so memory stays flat regardless
+ * of the input size. Progress is checkpointed as the number of leading
+ * records handled, and the throughput is logged periodically.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class BulkRehasher {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(BulkRehasher.class);
+
+    // Data encryptor hashing the secrets
+    private final DataEncryptor encryptor;
+
+    // Hashing pool
+    private final ForkJoinPool pool;
+
+    // Number of records per chunk
+    private final int chunkSize;
+
+    // Maximum number of chunks in flight
+    private final int maxInFlight;
+
+    // Progress checkpoint, null to disable
+    private Checkpoint checkpoint;
+
+    // Minimum time in millis between checkpoints
+    private long checkpointInterval = 5000;
+
+    // Time in millis between throughput reports
+    private long reportInterval = 10000;
+
+    /**
+     * A constructor creating a bulk rehasher given the data encryptor, using
+     * a thread per core.
+     *
+     * @param encryptor the thread safe data encryptor.
+     */
+    public BulkRehasher(DataEncryptor encryptor) {
+        this(encryptor, Runtime.getRuntime().availableProcessors(), 256, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A constructor creating a bulk rehasher given the data encryptor, the
+     * number of hashing threads, the number of records per chunk and the
+     * maximum number of chunks in flight.
+     *
+     * @param encryptor the thread safe data encryptor.
+     * @param parallelism the number of hashing threads.
+     * @param chunkSize the number of records per chunk.
+     * @param maxInFlight the maximum number of chunks in flight.
+     */
+    public BulkRehasher(DataEncryptor encryptor, int parallelism, int chunkSize, int maxInFlight) {
+        if (chunkSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Chunk size and chunks in flight must be positive: '" + chunkSize + "', '" + maxInFlight + "'.");
+        }
+
+        this.encryptor = encryptor;
+        this.pool = new ForkJoinPool(parallelism);
+        this.chunkSize = chunkSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * A method setting up the checkpoint of the progress, loaded to skip the
+     * records handled by a previous run and saved as records are handled.
+     *
+     * @param checkpoint the progress checkpoint.
+     * @param interval the minimum time in millis between checkpoints.
+     */
+    public void setCheckpoint(Checkpoint checkpoint, long interval) {
+        this.checkpoint = checkpoint;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * A method setting up the time between throughput reports.
+     *
+     * @param reportInterval the time in millis between reports.
+     */
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * A method hashing the given stream of credentials.
+     *
+     * @param credentials the stream of credentials.
+     * @param handler the handler of the digests.
+     * @return the number of records handled by this run.
+     * @throws InterruptedException throws interruptions while waiting for chunks.
+     * @throws ExecutionException throws the first error raised by the handler.
+     */
+    public long rehash(Stream<Credential> credentials, RehashHandler handler) throws InterruptedException, ExecutionException {
+        return rehash(credentials.iterator(), handler);
+    }
+
+    /**
+     * A method hashing the given credentials, records handled by a previous
+     * run are skipped if checkpointed. Reading stops at the first error of the
+     * handler, once the chunks in flight are done.
+     *
+     * @param credentials the credentials iterator.
+     * @param handler the handler of the digests.
+     * @return the number of records handled by this run.
+     * @throws InterruptedException throws interruptions while waiting for chunks.
+     * @throws ExecutionException throws the first error raised by the handler.
+     */
+    public long rehash(Iterator<Credential> credentials, RehashHandler handler) throws InterruptedException, ExecutionException {
+        long skipped = checkpoint != null ? checkpoint.load() : 0;
+
+        for (long i = 0; i < skipped && credentials.hasNext(); i++) {
+            credentials.next();
+        }
+
+        if (skipped > 0) {
+            logger.info("Resuming rehashing after " + skipped + " checkpointed records.");
+        }
+
+        Run run = new Run(handler, skipped);
+
+        Semaphore permits = new Semaphore(maxInFlight);
+
+        int sequence = 0;
+
+        while (credentials.hasNext() && run.failure.get() == null) {
+            List<Credential> chunk = new ArrayList<Credential>(chunkSize);
+
+            while (chunk.size() < chunkSize && credentials.hasNext()) {
+                chunk.add(credentials.next());
+            }
+
+            permits.acquire();
+
+            pool.execute(new Chunk(run, sequence++, chunk, permits));
+
+            run.report();
+        }
+
+        // Waiting for the chunks in flight
+        permits.acquire(maxInFlight);
+        permits.release(maxInFlight);
+
+        run.checkpoint(true);
+
+        long handled = run.handled.get();
+
+        logger.info("Rehashed " + handled + " records in " + run.elapsed() + " ms at " + run.throughput() + " records/s.");
+
+        Throwable failure = run.failure.get();
+
+        if (failure != null) {
+            throw new ExecutionException("Rehashing stopped after " + (skipped + run.watermark) + " records.", failure);
+        }
+
+        return handled;
+    }
+
+    /**
+     * A method closing the hashing pool, waiting for the chunks in flight.
+     *
+     * @param timeout the maximum time in millis to wait.
+     * @return true if the pool has terminated, otherwise false.
+     */
+    public boolean close(long timeout) {
+        pool.shutdown();
+
+        try {
+            return pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    /**
+     * The state of a single rehashing run.
+     */
+    private final class Run {
+
+        // Handler of the digests
+        private final RehashHandler handler;
+
+        // Number of records skipped
+        private final long skipped;
+
+        // Time in millis the run started
+        private final long startedAt = System.currentTimeMillis();
+
+        // Number of records handled
+        private final AtomicLong handled = new AtomicLong();
+
+        // First error raised by the handler
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // Sequence numbers of the chunks done beyond the watermark
+        private final BitSet done = new BitSet();
+
+        // Number of leading chunks done
+        private int chunks;
+
+        // Number of leading records handled
+        private long watermark;
+
+        // Time in millis of the last checkpoint
+        private long checkpointedAt = System.currentTimeMillis();
+
+        // Time in millis of the last report
+        private volatile long reportedAt = System.currentTimeMillis();
+
+        Run(RehashHandler handler, long skipped) {
+            this.handler = handler;
+            this.skipped = skipped;
+        }
+
+        /**
+         * A method marking a chunk as done, advancing the watermark over the
+         * leading chunks done so far.
+         *
+         * @param sequence the chunk sequence number.
+         * @param size the number of records of the chunk.
+         */
+        private synchronized void done(int sequence, int size) {
+            handled.addAndGet(size);
+
+            done.set(sequence);
+
+            // Chunks are full but the last one, so the watermark is counted in chunks
+            while (done.get(chunks)) {
+                done.clear(chunks);
+
+                chunks++;
+            }
+
+            watermark = Math.min((long) chunks * chunkSize, handled.get());
+
+            checkpoint(false);
+        }
+
+        /**
+         * A method saving the watermark if the checkpoint interval has passed.
+         *
+         * @param force true to save regardless of the interval.
+         */
+        private synchronized void checkpoint(boolean force) {
+            long now = System.currentTimeMillis();
+
+            if (checkpoint != null && (force || now - checkpointedAt >= checkpointInterval)) {
+                try {
+                    checkpoint.save(skipped + watermark);
+                } catch (Exception exc) {
+                    logger.error("An unknown error occurred saving the rehashing checkpoint: '" + exc.getMessage() + "'.");
+                }
+
+                checkpointedAt = now;
+            }
+        }
+
+        /**
+         * A method logging the throughput if the report interval has passed.
+         */
+        private void report() {
+            long now = System.currentTimeMillis();
+
+            if (now - reportedAt >= reportInterval) {
+                reportedAt = now;
+
+                logger.info("Rehashed " + handled.get() + " records at " + throughput() + " records/s.");
+            }
+        }
+
+        private long elapsed() {
+            return System.currentTimeMillis() - startedAt;
+        }
+
+        private long throughput() {
+            return handled.get() * 1000 / Math.max(1, elapsed());
+        }
+    }
+
+    /**
+     * A chunk of credentials hashed by a single task.
+     */
+    private final class Chunk implements Runnable {
+
+        // Rehashing run
+        private final Run run;
+
+        // Chunk sequence number
+        private final int sequence;
+
+        // Credentials of the chunk
+        private final List<Credential> credentials;
+
+        // Permits of the chunks in flight
+        private final Semaphore permits;
+
+        Chunk(Run run, int sequence, List<Credential> credentials, Semaphore permits) {
+            this.run = run;
+            this.sequence = sequence;
+            this.credentials = credentials;
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (run.failure.get() != null) {
+                    return;
+                }
+
+                String[] digests = new String[credentials.size()];
+
+                for (int i = 0; i < digests.length; i++) {
+                    Credential credential = credentials.get(i);
+
+                    digests[i] = encryptor.encrypt(credential.getSecret(), credential.getSalt());
+                }
+
+                run.handler.handle(credentials, digests);
+
+                run.done(sequence, digests.length);
+            } catch (Throwable exc) {
+                logger.error("An unknown error occurred handling a chunk of " + credentials.size() + " credentials: '" + exc.getMessage() + "'.");
+
+                run.failure.compareAndSet(null, exc);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+}
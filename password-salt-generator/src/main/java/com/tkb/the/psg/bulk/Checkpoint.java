@@ -0,0 +1,25 @@
+package com.tkb.the.psg.bulk;
+
+/**
+ * A checkpoint of the rehashing progress, the number of leading records of
+ * the input that have been hashed and handled, so an interrupted run can be
+ * resumed by skipping them.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface Checkpoint {
+
+    /**
+     * A method returning the number of records handled by a previous run.
+     *
+     * @return the number of records to skip.
+     */
+    public long load();
+
+    /**
+     * A method saving the number of leading records handled so far.
+     *
+     * @param processed the number of records handled.
+     */
+    public void save(long processed);
+}
@@ -0,0 +1,59 @@
+package com.tkb.the.psg.bulk;
+
+/**
+ * A stored credential record to be hashed, identified by the id of its
+ * owner.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class Credential {
+
+    // Credential identifier
+    private final String id;
+
+    // Secret to hash
+    private final String secret;
+
+    // Salt of the secret
+    private final String salt;
+
+    /**
+     * A constructor creating a credential given its id, secret and salt.
+     *
+     * @param id the credential identifier.
+     * @param secret the secret to hash.
+     * @param salt the salt of the secret.
+     */
+    public Credential(String id, String secret, String salt) {
+        this.id = id;
+        this.secret = secret;
+        this.salt = salt;
+    }
+
+    /**
+     * A method returning the credential identifier.
+     *
+     * @return the credential identifier.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * A method returning the secret to hash.
+     *
+     * @return the secret.
+     */
+    public String getSecret() {
+        return secret;
+    }
+
+    /**
+     * A method returning the salt of the secret.
+     *
+     * @return the salt.
+     */
+    public String getSalt() {
+        return salt;
+    }
+}
@@ -0,0 +1,22 @@
+package com.tkb.the.psg.bulk;
+
+import java.util.List;
+
+/**
+ * A handler of the digests of hashed credentials, called concurrently by
+ * the hashing threads once per chunk of credentials.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface RehashHandler {
+
+    /**
+     * A method handling the digests of a chunk of credentials, i.e. storing
+     * them in a single batch. Throwing aborts the rehashing.
+     *
+     * @param credentials the chunk of credentials.
+     * @param digests the digests in credential order, null if failed.
+     * @throws Exception throws errors handling the digests.
+     */
+    public void handle(List<Credential> credentials, String[] digests) throws Exception;
+}
@@ -1,8 +1,14 @@
 package com.tkb.the.psg.encryption;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import org.apache.log4j.Logger;
@@ -11,16 +17,47 @@ import org.apache.log4j.Logger;
  * An advanced secure data decryptor implementation based on the PBKDF2
  * algorithm.
  *
+ * Digests are written as iterations:salt:hash in hexadecimal form, prefixed
+ * by the hash function, i.e. sha256:iterations:salt:hash, for algorithms
+ * other than the default PBKDF2WithHmacSHA1, so stored digests describe the
+ * parameters needed to verify them.
+ *
  * @author Akis Papadopoulos, iakopap@gmail.com
  */
-public class AdvancedSecureEncoder implements DataEncryptor {
+public class AdvancedSecureEncoder implements DataEncryptor, BufferEncryptor {
 
     // Logger
     private static final Logger logger = Logger.getLogger(AdvancedSecureEncoder.class);
-    
+
+    // Default algorithm
+    private static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    // Hash length in bytes
+    private static final int HASH_LENGTH = 64;
+
+    // Secret key factories per algorithm per thread, created on first use
+    private static final ThreadLocal<Map<String, SecretKeyFactory>> factories = new ThreadLocal<Map<String, SecretKeyFactory>>() {
+        @Override
+        protected Map<String, SecretKeyFactory> initialValue() {
+            return new HashMap<String, SecretKeyFactory>();
+        }
+    };
+
+    // Salt copy per thread, reused across salts of the same length
+    private static final ThreadLocal<byte[]> salts = new ThreadLocal<byte[]>();
+
+    // Salt used in place of an empty one, never written to
+    private static final byte[] NO_SALT = new byte[1];
+
     // Iterations
     private int iterations;
 
+    // PBKDF2 algorithm
+    private String algorithm = DEFAULT_ALGORITHM;
+
+    // Pure Java PBKDF2 engine, null to use the JCA secret key factory
+    private Pbkdf2Engine engine;
+
     /**
      * A constructor creating a PBKDF2 algorithm based data encryptor given the
      * number of the iterations.
@@ -31,6 +68,36 @@ public class AdvancedSecureEncoder implements DataEncryptor {
         this.iterations = iterations;
     }
 
+    /**
+     * A constructor creating a PBKDF2 algorithm based data encryptor given the
+     * number of the iterations and the PBKDF2 algorithm of the JCA secret key
+     * factory, i.e. PBKDF2WithHmacSHA256.
+     *
+     * @param iterations the secure number of iterations.
+     * @param algorithm the PBKDF2 algorithm.
+     */
+    public AdvancedSecureEncoder(int iterations, String algorithm) {
+        this.iterations = iterations;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * A constructor creating a PBKDF2 algorithm based data encryptor given the
+     * number of the iterations and the pure Java engine deriving the keys in
+     * place of the JCA secret key factory, producing identical digests.
+     *
+     * @param iterations the secure number of iterations.
+     * @param engine the PBKDF2 engine, null to use the JCA secret key factory.
+     */
+    public AdvancedSecureEncoder(int iterations, Pbkdf2Engine engine) {
+        this.iterations = iterations;
+        this.engine = engine;
+
+        if (engine != null) {
+            this.algorithm = engine.getAlgorithm();
+        }
+    }
+
     /**
      * A method encrypting the given salted using the advanced secure encoder
      * based on the PBKDF2 algorithm.
@@ -41,24 +108,47 @@ public class AdvancedSecureEncoder implements DataEncryptor {
      */
     @Override
     public String encrypt(String data, String salt) {
-        String digest = null;
+        CompactDigest digest = compute(data, salt);
 
-        try {
-            char[] dataChars = data.toCharArray();
+        return digest != null ? digest.format() : null;
+    }
+
+    /**
+     * A method encrypting the given salted data into the compact binary form
+     * of the digest.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @return the binary form of the digest.
+     * @throws IllegalArgumentException throws errors if the algorithm has no
+     * compact digest id or the salt is longer than 255 bytes.
+     */
+    public byte[] encryptCompact(String data, String salt) {
+        CompactDigest digest = compute(data, salt);
+
+        return digest != null ? digest.encode() : null;
+    }
+
+    /**
+     * A method computing the digest of the given salted data.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @return the digest, null if failed.
+     */
+    private CompactDigest compute(String data, String salt) {
+        CompactDigest digest = null;
 
+        try {
             byte[] saltBytes = new byte[1];
 
             if (salt != null && !salt.isEmpty()) {
                 saltBytes = salt.getBytes();
             }
 
-            PBEKeySpec pbe = new PBEKeySpec(dataChars, saltBytes, iterations, 64 * 8);
-
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] hash = derive(data.toCharArray(), saltBytes, iterations, algorithm, HASH_LENGTH);
 
-            byte[] hash = skf.generateSecret(pbe).getEncoded();
-
-            digest = iterations + ":" + toHex(saltBytes) + ":" + toHex(hash);
+            digest = CompactDigest.of(algorithm, iterations, saltBytes, hash);
         } catch (NullPointerException exc) {
             logger.error("A null flavored error occurred encrypting data: '" + data + "'.");
         } catch (NoSuchAlgorithmException exc) {
@@ -71,30 +161,395 @@ public class AdvancedSecureEncoder implements DataEncryptor {
 
         return digest;
     }
-    
+
+    /**
+     * A method returning the length of the raw hashes.
+     *
+     * @return the hash length in bytes.
+     */
+    @Override
+    public int getHashLength() {
+        return HASH_LENGTH;
+    }
+
+    /**
+     * A method encrypting the given salted UTF-8 data writing the raw hash
+     * into the given buffer.
+     *
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    @Override
+    public int encrypt(byte[] data, byte[] salt, byte[] out, int offset) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data.");
+
+            return -1;
+        }
+
+        return encrypt(data, 0, data.length, salt, out, offset);
+    }
+
+    /**
+     * A method encrypting the given salted data writing the raw hash into the
+     * given buffer. The pure Java engine hashes the data encoded in UTF-8 in a
+     * reused buffer wiped once hashed, while the JCA secret key factory takes
+     * the chars as they are.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    @Override
+    public int encrypt(char[] data, byte[] salt, byte[] out, int offset) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data.");
+
+            return -1;
+        }
+
+        if (isEngineBacked()) {
+            int length = Utf8.encode(data);
+
+            try {
+                return encrypt(Utf8.buffer(length), 0, length, salt, out, offset);
+            } finally {
+                Utf8.wipe(length);
+            }
+        }
+
+        int written = -1;
+
+        PBEKeySpec pbe = null;
+
+        try {
+            checkOutput(out, offset);
+
+            pbe = new PBEKeySpec(data, saltOf(salt), iterations, HASH_LENGTH * 8);
+
+            byte[] hash = getFactory(algorithm).generateSecret(pbe).getEncoded();
+
+            System.arraycopy(hash, 0, out, offset, HASH_LENGTH);
+
+            written = HASH_LENGTH;
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred encrypting data chars.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        } catch (InvalidKeySpecException exc) {
+            logger.error("An error occurred loading an invalid key spec: '" + exc.getMessage() + "'.");
+        } catch (IllegalArgumentException exc) {
+            logger.error("An error occurred loading an invalid argument: '" + exc.getMessage() + "'.");
+        } finally {
+            if (pbe != null) {
+                pbe.clearPassword();
+            }
+        }
+
+        return written;
+    }
+
     /**
-     * A method returning the hexadecimal form of a given byte array.
+     * A method encrypting the remaining UTF-8 data of a buffer salted by the
+     * remaining bytes of another, writing the raw hash at the position of the
+     * output buffer. The positions of the buffers are advanced only if the
+     * hash is written.
      *
-     * @param bytes the byte array to convert.
-     * @return the hexadecimal form of the given bytes.
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @return the number of bytes written, -1 if failed.
      */
-    private String toHex(byte[] bytes) {
-        String result = null;
+    @Override
+    public int encrypt(ByteBuffer data, ByteBuffer salt, ByteBuffer out) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data.");
 
-        if (bytes != null) {
-            BigInteger bi = new BigInteger(1, bytes);
+            return -1;
+        }
+
+        // Rejecting short buffers before reading the input
+        if (out.remaining() < HASH_LENGTH) {
+            logger.error("Output buffer has less than " + HASH_LENGTH + " bytes remaining: '" + out.remaining() + "'.");
+
+            return -1;
+        }
+
+        int length = data.remaining();
+
+        // Reading the data followed by room for the hash into the reused buffer
+        byte[] bytes = Utf8.buffer(length + HASH_LENGTH);
+
+        int dataPosition = data.position();
+        data.get(bytes, 0, length);
+        data.position(dataPosition);
 
-            String hex = bi.toString(16);
+        try {
+            int written = encrypt(bytes, 0, length, saltOf(salt), bytes, length);
+
+            if (written > 0) {
+                out.put(bytes, length, written);
 
-            int paddingLength = (bytes.length * 2) - hex.length();
+                data.position(dataPosition + length);
 
-            if (paddingLength > 0) {
-                result = String.format("%0" + paddingLength + "d", 0) + hex;
-            } else {
-                result = hex;
+                if (salt != null) {
+                    salt.position(salt.limit());
+                }
             }
+
+            return written;
+        } finally {
+            Utf8.wipe(length + HASH_LENGTH);
+        }
+    }
+
+    /**
+     * A method encrypting a range of salted UTF-8 data writing the raw hash
+     * into the given buffer, decoding the data into chars wiped once hashed if
+     * the JCA secret key factory is used.
+     *
+     * @param data the buffer of the UTF-8 data.
+     * @param dataOffset the offset of the data within the buffer.
+     * @param dataLength the data length in bytes.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    private int encrypt(byte[] data, int dataOffset, int dataLength, byte[] salt, byte[] out, int offset) {
+        if (!isEngineBacked()) {
+            CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(data, dataOffset, dataLength));
+
+            char[] chars = new char[decoded.remaining()];
+            decoded.get(chars);
+
+            Arrays.fill(decoded.array(), '\0');
+
+            try {
+                return encrypt(chars, salt, out, offset);
+            } finally {
+                Arrays.fill(chars, '\0');
+            }
+        }
+
+        int written = -1;
+
+        try {
+            checkOutput(out, offset);
+
+            engine.derive(data, dataOffset, dataLength, saltOf(salt), iterations, out, offset, HASH_LENGTH);
+
+            written = HASH_LENGTH;
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred encrypting data bytes.");
+        } catch (IllegalArgumentException exc) {
+            logger.error("An error occurred loading an invalid argument: '" + exc.getMessage() + "'.");
+        }
+
+        return written;
+    }
+
+    private boolean isEngineBacked() {
+        return engine != null && engine.getAlgorithm().equalsIgnoreCase(algorithm);
+    }
+
+    private static byte[] saltOf(byte[] salt) {
+        return salt != null && salt.length > 0 ? salt : NO_SALT;
+    }
+
+    /**
+     * A method returning the remaining bytes of a salt buffer without moving
+     * its position, the backing array itself if the salt spans all of it,
+     * otherwise a copy reused per thread across salts of the same length.
+     *
+     * @param salt the salt buffer.
+     * @return the salt bytes.
+     */
+    private static byte[] saltOf(ByteBuffer salt) {
+        if (salt == null || !salt.hasRemaining()) {
+            return NO_SALT;
+        }
+
+        int length = salt.remaining();
+
+        if (salt.hasArray() && salt.arrayOffset() + salt.position() == 0 && salt.array().length == length) {
+            return salt.array();
+        }
+
+        byte[] bytes = salts.get();
+
+        if (bytes == null || bytes.length != length) {
+            bytes = new byte[length];
+
+            salts.set(bytes);
+        }
+
+        int position = salt.position();
+        salt.get(bytes);
+        salt.position(position);
+
+        return bytes;
+    }
+
+    private static void checkOutput(byte[] out, int offset) {
+        if (out.length - offset < HASH_LENGTH) {
+            throw new IllegalArgumentException("Output buffer has less than " + HASH_LENGTH + " bytes after offset: '" + offset + "'.");
+        }
+    }
+
+    /**
+     * A method verifying the given data against a stored digest, recomputing
+     * the hash with the algorithm, iterations and salt of the digest and
+     * comparing it in constant time.
+     *
+     * @param data the data to be verified.
+     * @param digest the stored digest.
+     * @return true if the data matches the digest, otherwise false.
+     */
+    public boolean verify(String data, String digest) {
+        boolean verified = false;
+
+        try {
+            verified = verify(data, CompactDigest.parse(digest));
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred verifying data against digest: '" + digest + "'.");
+        } catch (IllegalArgumentException exc) {
+            logger.error("An error occurred parsing an invalid digest: '" + exc.getMessage() + "'.");
+        }
+
+        return verified;
+    }
+
+    /**
+     * A method verifying the given data against the compact binary form of a
+     * stored digest.
+     *
+     * @param data the data to be verified.
+     * @param digest the binary form of the stored digest.
+     * @return true if the data matches the digest, otherwise false.
+     */
+    public boolean verify(String data, byte[] digest) {
+        boolean verified = false;
+
+        try {
+            verified = verify(data, CompactDigest.decode(digest));
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred verifying data against a compact digest.");
+        } catch (IllegalArgumentException exc) {
+            logger.error("An error occurred decoding an invalid digest: '" + exc.getMessage() + "'.");
+        }
+
+        return verified;
+    }
+
+    /**
+     * A method verifying the given data against a stored digest.
+     *
+     * @param data the data to be verified.
+     * @param stored the stored digest.
+     * @return true if the data matches the digest, otherwise false.
+     */
+    private boolean verify(String data, CompactDigest stored) {
+        if (!stored.isPbkdf2()) {
+            throw new IllegalArgumentException("Digest algorithm '" + stored.getAlgorithm() + "' is not a PBKDF2 algorithm.");
+        }
+
+        boolean verified = false;
+
+        try {
+            byte[] hash = derive(data.toCharArray(), stored.salt(), stored.getIterations(), stored.getAlgorithm(), stored.hash().length);
+
+            verified = MessageDigest.isEqual(stored.hash(), hash);
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        } catch (InvalidKeySpecException exc) {
+            logger.error("An error occurred loading an invalid key spec: '" + exc.getMessage() + "'.");
+        }
+
+        return verified;
+    }
+
+    /**
+     * A method returning whether a stored digest has been computed with a
+     * different algorithm or fewer iterations than this encoder, so it should
+     * be rehashed once the data is verified.
+     *
+     * @param digest the stored digest.
+     * @return true if the digest should be rehashed, otherwise false.
+     * @throws IllegalArgumentException throws errors if the digest is malformed.
+     */
+    public boolean needsRehash(String digest) {
+        CompactDigest stored = CompactDigest.parse(digest);
+
+        return stored.getIterations() < iterations || !stored.getAlgorithm().equalsIgnoreCase(algorithm);
+    }
+
+    /**
+     * A method returning the number of iterations.
+     *
+     * @return the number of iterations.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * A method returning the PBKDF2 algorithm.
+     *
+     * @return the algorithm name.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * A method deriving a hash through the engine if it implements the given
+     * algorithm, otherwise through the JCA secret key factory.
+     *
+     * @param data the data chars.
+     * @param salt the salt bytes.
+     * @param iterations the number of iterations.
+     * @param algorithm the PBKDF2 algorithm.
+     * @param length the hash length in bytes.
+     * @return the derived hash.
+     * @throws NoSuchAlgorithmException throws errors if the algorithm is not supported.
+     * @throws InvalidKeySpecException throws errors if the parameters are invalid.
+     */
+    private byte[] derive(char[] data, byte[] salt, int iterations, String algorithm, int length) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (engine != null && engine.getAlgorithm().equalsIgnoreCase(algorithm)) {
+            return engine.derive(data, salt, iterations, length);
+        }
+
+        PBEKeySpec pbe = new PBEKeySpec(data, salt, iterations, length * 8);
+
+        SecretKeyFactory skf = getFactory(algorithm);
+
+        return skf.generateSecret(pbe).getEncoded();
+    }
+
+    /**
+     * A method returning the secret key factory of the current thread.
+     *
+     * @param algorithm the PBKDF2 algorithm.
+     * @return the secret key factory.
+     * @throws NoSuchAlgorithmException throws errors if the algorithm is not supported.
+     */
+    private static SecretKeyFactory getFactory(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, SecretKeyFactory> skfs = factories.get();
+
+        SecretKeyFactory skf = skfs.get(algorithm);
+
+        if (skf == null) {
+            skf = SecretKeyFactory.getInstance(algorithm);
+
+            skfs.put(algorithm, skf);
         }
 
-        return result;
+        return skf;
     }
 }
@@ -0,0 +1,57 @@
+package com.tkb.the.psg.encryption;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer based data encryptor interface, taking secrets as UTF-8 bytes or
+ * chars, so they can be wiped once hashed, and writing the raw hash into a
+ * caller supplied buffer instead of returning text.
+ * 
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public interface BufferEncryptor {
+
+    /**
+     * A method returning the length of the raw hashes.
+     *
+     * @return the hash length in bytes, -1 if failed.
+     */
+    public int getHashLength();
+
+    /**
+     * A method encrypting the given salted UTF-8 data writing the raw hash
+     * into the given buffer.
+     *
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    public int encrypt(byte[] data, byte[] salt, byte[] out, int offset);
+
+    /**
+     * A method encrypting the given salted data encoded in UTF-8 writing the
+     * raw hash into the given buffer.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    public int encrypt(char[] data, byte[] salt, byte[] out, int offset);
+
+    /**
+     * A method encrypting the remaining UTF-8 data of a buffer salted by the
+     * remaining bytes of another, writing the raw hash at the position of the
+     * output buffer. The positions of the buffers are advanced only if the
+     * hash is written.
+     *
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @return the number of bytes written, -1 if failed.
+     */
+    public int encrypt(ByteBuffer data, ByteBuffer salt, ByteBuffer out);
+}
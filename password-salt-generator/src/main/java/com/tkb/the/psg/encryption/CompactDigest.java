@@ -0,0 +1,341 @@
+package com.tkb.the.psg.encryption;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * A digest along with the parameters it has been computed with, encoded in
+ * a compact versioned binary form instead of hexadecimal text, taking less
+ * than half of the memory and storage of the text form. The binary form is
+ * laid out as
+ *
+ * version (1 byte), algorithm id (1 byte), iterations (4 bytes, big endian),
+ * salt length (1 byte), salt, hash
+ *
+ * and may be carried as unpadded Base64url text where a string is needed.
+ * Only the binary form is limited to the algorithms having an id and to
+ * salts of up to 255 bytes, the text form takes any algorithm and salt.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public final class CompactDigest {
+
+    // Current version of the binary form
+    public static final int VERSION = 1;
+
+    // Algorithm names by id, ids are persisted and must never be reused
+    private static final String[] ALGORITHMS = new String[32];
+
+    static {
+        ALGORITHMS[1] = "PBKDF2WithHmacSHA1";
+        ALGORITHMS[2] = "PBKDF2WithHmacSHA256";
+        ALGORITHMS[3] = "PBKDF2WithHmacSHA512";
+        ALGORITHMS[4] = "PBKDF2WithHmacSHA224";
+        ALGORITHMS[5] = "PBKDF2WithHmacSHA384";
+        ALGORITHMS[16] = "MD5";
+        ALGORITHMS[17] = "SHA-1";
+        ALGORITHMS[18] = "SHA-224";
+        ALGORITHMS[19] = "SHA-256";
+        ALGORITHMS[20] = "SHA-384";
+        ALGORITHMS[21] = "SHA-512";
+    }
+
+    // Default PBKDF2 algorithm of the text form
+    private static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    // Prefix of the PBKDF2 algorithm names
+    private static final String PBKDF2_PREFIX = "PBKDF2WithHmac";
+
+    // Length of the header preceding the salt
+    private static final int HEADER_LENGTH = 7;
+
+    // Maximum salt length of the binary form
+    private static final int MAX_SALT_LENGTH = 255;
+
+    // Id of the algorithms missing from the binary form
+    private static final int NO_ID = 0;
+
+    // Algorithm name
+    private final String algorithm;
+
+    // Algorithm id, NO_ID if the algorithm has no binary form
+    private final int id;
+
+    // Number of iterations
+    private final int iterations;
+
+    // Salt bytes
+    private final byte[] salt;
+
+    // Hash bytes
+    private final byte[] hash;
+
+    private CompactDigest(String algorithm, int id, int iterations, byte[] salt, byte[] hash) {
+        this.algorithm = algorithm;
+        this.id = id;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * A method creating a digest given its parameters.
+     *
+     * @param algorithm the algorithm name, i.e. PBKDF2WithHmacSHA1 or SHA-256.
+     * @param iterations the number of iterations, 1 for plain digests.
+     * @param salt the salt bytes, empty if not stored.
+     * @param hash the hash bytes.
+     * @return the digest.
+     */
+    public static CompactDigest of(String algorithm, int iterations, byte[] salt, byte[] hash) {
+        int id = idOf(algorithm);
+
+        return new CompactDigest(id != NO_ID ? ALGORITHMS[id] : algorithm, id, iterations, salt, hash);
+    }
+
+    /**
+     * A method decoding a digest from its binary form.
+     *
+     * @param bytes the binary form.
+     * @return the digest.
+     * @throws IllegalArgumentException throws errors if the binary form is malformed.
+     */
+    public static CompactDigest decode(byte[] bytes) {
+        if (bytes.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Compact digest is shorter than its header: '" + bytes.length + "'.");
+        }
+
+        if (bytes[0] != VERSION) {
+            throw new IllegalArgumentException("Compact digest version is not supported: '" + bytes[0] + "'.");
+        }
+
+        int id = bytes[1] & 0xff;
+
+        int iterations = ((bytes[2] & 0xff) << 24) | ((bytes[3] & 0xff) << 16) | ((bytes[4] & 0xff) << 8) | (bytes[5] & 0xff);
+
+        int saltLength = bytes[6] & 0xff;
+
+        if (bytes.length <= HEADER_LENGTH + saltLength) {
+            throw new IllegalArgumentException("Compact digest has no hash.");
+        }
+
+        byte[] salt = Arrays.copyOfRange(bytes, HEADER_LENGTH, HEADER_LENGTH + saltLength);
+        byte[] hash = Arrays.copyOfRange(bytes, HEADER_LENGTH + saltLength, bytes.length);
+
+        return new CompactDigest(nameOf(id), id, iterations, salt, hash);
+    }
+
+    /**
+     * A method decoding a digest from the Base64url text of its binary form.
+     *
+     * @param text the Base64url text.
+     * @return the digest.
+     * @throws IllegalArgumentException throws errors if the text is malformed.
+     */
+    public static CompactDigest fromBase64(String text) {
+        return decode(Base64.getUrlDecoder().decode(text));
+    }
+
+    /**
+     * A method parsing a PBKDF2 digest from its hexadecimal text form, the
+     * iterations:salt:hash form optionally prefixed by the hash function.
+     *
+     * @param digest the text form.
+     * @return the digest.
+     * @throws IllegalArgumentException throws errors if the text form is malformed.
+     */
+    public static CompactDigest parse(String digest) {
+        String[] parts = digest.split(":");
+
+        String algorithm = DEFAULT_ALGORITHM;
+
+        int start = 0;
+
+        if (parts.length == 4) {
+            algorithm = PBKDF2_PREFIX + parts[0].toUpperCase(Locale.ROOT);
+
+            start = 1;
+        } else if (parts.length != 3) {
+            throw new IllegalArgumentException("Digest has " + parts.length + " parts instead of 3 or 4.");
+        }
+
+        int iterations = Integer.parseInt(parts[start]);
+
+        byte[] hash = Hex.decode(parts[start + 2]);
+
+        if (iterations < 1 || hash.length == 0) {
+            throw new IllegalArgumentException("Digest has no iterations or hash.");
+        }
+
+        return of(algorithm, iterations, Hex.decode(parts[start + 1]), hash);
+    }
+
+    /**
+     * A method encoding the digest in its binary form.
+     *
+     * @return the binary form.
+     * @throws IllegalArgumentException throws errors if the algorithm has no id
+     * or the salt is longer than 255 bytes.
+     */
+    public byte[] encode() {
+        if (id == NO_ID) {
+            throw new IllegalArgumentException("Algorithm '" + algorithm + "' has no compact digest id.");
+        }
+
+        if (salt.length > MAX_SALT_LENGTH) {
+            throw new IllegalArgumentException("Salt is longer than " + MAX_SALT_LENGTH + " bytes: '" + salt.length + "'.");
+        }
+
+        byte[] bytes = new byte[HEADER_LENGTH + salt.length + hash.length];
+
+        bytes[0] = VERSION;
+        bytes[1] = (byte) id;
+        bytes[2] = (byte) (iterations >>> 24);
+        bytes[3] = (byte) (iterations >>> 16);
+        bytes[4] = (byte) (iterations >>> 8);
+        bytes[5] = (byte) iterations;
+        bytes[6] = (byte) salt.length;
+
+        System.arraycopy(salt, 0, bytes, HEADER_LENGTH, salt.length);
+        System.arraycopy(hash, 0, bytes, HEADER_LENGTH + salt.length, hash.length);
+
+        return bytes;
+    }
+
+    /**
+     * A method encoding the digest as unpadded Base64url text of its binary
+     * form.
+     *
+     * @return the Base64url text.
+     * @throws IllegalArgumentException throws errors if the digest has no
+     * binary form.
+     */
+    public String toBase64() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(encode());
+    }
+
+    /**
+     * A method returning the hexadecimal text form of the digest, the form
+     * written by the encryptors.
+     *
+     * @return the text form.
+     */
+    public String format() {
+        if (!isPbkdf2()) {
+            return Hex.encode(hash);
+        }
+
+        String digest = iterations + ":" + Hex.encode(salt) + ":" + Hex.encode(hash);
+
+        if (!DEFAULT_ALGORITHM.equals(algorithm)) {
+            digest = algorithm.substring(PBKDF2_PREFIX.length()).toLowerCase(Locale.ROOT) + ":" + digest;
+        }
+
+        return digest;
+    }
+
+    /**
+     * A method returning whether the digest is a PBKDF2 derived key.
+     *
+     * @return true if derived by PBKDF2, otherwise false.
+     */
+    public boolean isPbkdf2() {
+        return algorithm.startsWith(PBKDF2_PREFIX);
+    }
+
+    /**
+     * A method returning the algorithm of the digest.
+     *
+     * @return the algorithm name.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * A method returning the number of iterations of the digest.
+     *
+     * @return the number of iterations, 1 for plain digests.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * A method returning a copy of the raw salt.
+     *
+     * @return the salt bytes.
+     */
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /**
+     * A method returning a copy of the raw hash.
+     *
+     * @return the hash bytes.
+     */
+    public byte[] getHash() {
+        return hash.clone();
+    }
+
+    byte[] salt() {
+        return salt;
+    }
+
+    byte[] hash() {
+        return hash;
+    }
+
+    /**
+     * A method comparing the digest to another, algorithm names are compared
+     * regardless of case.
+     *
+     * @param obj the object to compare to.
+     * @return true if both digests match, otherwise false.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CompactDigest)) {
+            return false;
+        }
+
+        CompactDigest other = (CompactDigest) obj;
+
+        return algorithm.equalsIgnoreCase(other.algorithm) && iterations == other.iterations && Arrays.equals(salt, other.salt) && Arrays.equals(hash, other.hash);
+    }
+
+    /**
+     * A method returning the hash code of the digest, consistent with equals.
+     *
+     * @return the hash code.
+     */
+    @Override
+    public int hashCode() {
+        return 31 * (31 * algorithm.toUpperCase(Locale.ROOT).hashCode() + iterations) + Arrays.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+    private static int idOf(String algorithm) {
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i] != null && ALGORITHMS[i].equalsIgnoreCase(algorithm)) {
+                return i;
+            }
+        }
+
+        return NO_ID;
+    }
+
+    private static String nameOf(int id) {
+        if (id >= ALGORITHMS.length || ALGORITHMS[id] == null) {
+            throw new IllegalArgumentException("Compact digest algorithm id is unknown: '" + id + "'.");
+        }
+
+        return ALGORITHMS[id];
+    }
+}
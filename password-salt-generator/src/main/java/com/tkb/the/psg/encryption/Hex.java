@@ -0,0 +1,82 @@
+package com.tkb.the.psg.encryption;
+
+/**
+ * A lower case hexadecimal encoder using a lookup table, encoding into a
+ * single preallocated buffer.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+final class Hex {
+
+    // Hexadecimal digits
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * A method returning the hexadecimal form of a given byte array.
+     *
+     * @param bytes the byte array to convert.
+     * @return the hexadecimal form of the given bytes, null if no bytes given.
+     */
+    static String encode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+
+        char[] chars = new char[bytes.length * 2];
+
+        encode(bytes, 0, bytes.length, chars, 0);
+
+        return new String(chars);
+    }
+
+    /**
+     * A method writing the hexadecimal form of a range of bytes into a given
+     * char buffer.
+     *
+     * @param bytes the byte array to convert.
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes.
+     * @param chars the buffer to write into.
+     * @param position the position of the first char.
+     * @return the position after the last char written.
+     */
+    static int encode(byte[] bytes, int offset, int length, char[] chars, int position) {
+        for (int i = offset; i < offset + length; i++) {
+            chars[position++] = DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[position++] = DIGITS[bytes[i] & 0x0f];
+        }
+
+        return position;
+    }
+
+    /**
+     * A method returning the bytes of a given hexadecimal form.
+     *
+     * @param hex the hexadecimal form, in either case.
+     * @return the decoded bytes.
+     * @throws IllegalArgumentException throws errors if the form is not hexadecimal.
+     */
+    static byte[] decode(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hexadecimal form has an odd length: '" + hex.length() + "'.");
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Hexadecimal form has an invalid char at: '" + (2 * i) + "'.");
+            }
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+}
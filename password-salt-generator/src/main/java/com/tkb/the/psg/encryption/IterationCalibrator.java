@@ -0,0 +1,171 @@
+package com.tkb.the.psg.encryption;
+
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+
+/**
+ * An iteration count calibrator benchmarking the PBKDF2 encoder on the
+ * current hardware, picking the number of iterations that keeps the cost
+ * of a verification within a target latency at a given percentile. Meant to
+ * run once on startup, so the CPU cost per login stays predictable across
+ * machine types.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class IterationCalibrator {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(IterationCalibrator.class);
+
+    // PBKDF2 algorithm
+    private final String algorithm;
+
+    // Pure Java PBKDF2 engine, null to use the JCA secret key factory
+    private final Pbkdf2Engine engine;
+
+    // Number of timed samples per measurement
+    private int samples = 20;
+
+    // Minimum number of iterations
+    private int minIterations = 1000;
+
+    /**
+     * A constructor creating a calibrator of the JCA secret key factory of
+     * the given PBKDF2 algorithm.
+     *
+     * @param algorithm the PBKDF2 algorithm, i.e. PBKDF2WithHmacSHA256.
+     */
+    public IterationCalibrator(String algorithm) {
+        this.algorithm = algorithm;
+        this.engine = null;
+    }
+
+    /**
+     * A constructor creating a calibrator of the given pure Java engine.
+     *
+     * @param engine the PBKDF2 engine.
+     */
+    public IterationCalibrator(Pbkdf2Engine engine) {
+        this.algorithm = engine.getAlgorithm();
+        this.engine = engine;
+    }
+
+    /**
+     * A method setting up the number of timed samples per measurement.
+     *
+     * @param samples the number of samples.
+     * @throws IllegalArgumentException throws errors if the number of samples is not positive.
+     */
+    public void setSamples(int samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("Number of samples must be positive: '" + samples + "'.");
+        }
+
+        this.samples = samples;
+    }
+
+    /**
+     * A method setting up the minimum number of iterations returned,
+     * regardless of the target latency.
+     *
+     * @param minIterations the minimum number of iterations.
+     * @throws IllegalArgumentException throws errors if the minimum number of iterations is not positive.
+     */
+    public void setMinIterations(int minIterations) {
+        if (minIterations < 1) {
+            throw new IllegalArgumentException("Minimum number of iterations must be positive: '" + minIterations + "'.");
+        }
+
+        this.minIterations = minIterations;
+    }
+
+    /**
+     * A method returning the number of iterations hitting the target latency
+     * at the given percentile. The cost per iteration is estimated on a probe
+     * count taking a fraction of the target, then the estimate is measured and
+     * scaled down if it misses the target.
+     *
+     * @param targetMillis the target verification latency in millis.
+     * @param percentile the percentile of the latency, i.e. 0.99.
+     * @return the calibrated number of iterations.
+     * @throws IllegalArgumentException throws errors if the target is not positive or the percentile is not within (0, 1].
+     */
+    public int calibrate(long targetMillis, double percentile) {
+        if (targetMillis < 1 || !(percentile > 0 && percentile <= 1)) {
+            throw new IllegalArgumentException("Target must be positive and percentile within (0, 1]: '" + targetMillis + "', '" + percentile + "'.");
+        }
+
+        long target = targetMillis * 1000000L;
+
+        // Growing the probe until a hash takes a tenth of the target
+        int probe = minIterations;
+
+        measure(probe, 3, 1.0);
+
+        while (probe < Integer.MAX_VALUE / 2 && measure(probe, 1, 1.0) < target / 10) {
+            probe *= 2;
+        }
+
+        double perIteration = (double) measure(probe, samples, percentile) / probe;
+
+        // Measuring no less than the minimum, even if a probe iteration alone misses the target
+        int iterations = (int) Math.max(minIterations, Math.min(Integer.MAX_VALUE, target / perIteration));
+
+        long latency = measure(iterations, samples, percentile);
+
+        if (latency > target) {
+            iterations = (int) ((double) iterations * target / latency);
+        }
+
+        iterations = Math.max(minIterations, iterations);
+
+        logger.info("Calibrated " + algorithm + " to " + iterations + " iterations for a p" + (int) (percentile * 100)
+                + " latency of " + targetMillis + " ms, measured " + (latency / 1000000) + " ms before adjusting.");
+
+        return iterations;
+    }
+
+    /**
+     * A method returning an encoder of the calibrated number of iterations.
+     *
+     * @param targetMillis the target verification latency in millis.
+     * @param percentile the percentile of the latency, i.e. 0.99.
+     * @return the calibrated encoder.
+     * @throws IllegalArgumentException throws errors if the target is not positive or the percentile is not within (0, 1].
+     */
+    public AdvancedSecureEncoder calibrated(long targetMillis, double percentile) {
+        return newEncoder(calibrate(targetMillis, percentile));
+    }
+
+    /**
+     * A method measuring the latency of hashing with the given iterations.
+     *
+     * @param iterations the number of iterations.
+     * @param runs the number of timed runs.
+     * @param percentile the percentile of the latency to return.
+     * @return the latency in nanos at the percentile.
+     */
+    private long measure(int iterations, int runs, double percentile) {
+        AdvancedSecureEncoder encoder = newEncoder(iterations);
+
+        long[] latencies = new long[runs];
+
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+
+            if (encoder.encrypt("calibration-" + i, "calibration-salt") == null) {
+                throw new IllegalStateException("Failed to calibrate the " + algorithm + " algorithm.");
+            }
+
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(latencies);
+
+        return latencies[Math.max(0, Math.min(runs - 1, (int) Math.ceil(percentile * runs) - 1))];
+    }
+
+    private AdvancedSecureEncoder newEncoder(int iterations) {
+        return engine != null ? new AdvancedSecureEncoder(iterations, engine) : new AdvancedSecureEncoder(iterations, algorithm);
+    }
+}
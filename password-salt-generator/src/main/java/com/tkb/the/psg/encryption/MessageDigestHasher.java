@@ -1,7 +1,17 @@
 package com.tkb.the.psg.encryption;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.apache.log4j.Logger;
 
 /**
@@ -9,13 +19,25 @@ import org.apache.log4j.Logger;
  *
  * @author Akis Papadopoulos, iakopap@gmail.com
  */
-public class MessageDigestHasher implements DataEncryptor {
+public class MessageDigestHasher implements DataEncryptor, BufferEncryptor {
 
     // Logger
     private static final Logger logger = Logger.getLogger(MessageDigestHasher.class);
+
+    // Maximum length of a file region mapped at once
+    private static final long MAP_SEGMENT = 1L << 30;
+
+    // Length of the stream read buffers
+    private static final int READ_BUFFER = 64 * 1024;
+
+    // Stream read buffer per thread, created on first use
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
     
     // Hashing algorithm
     private String algorithm;
+    
+    // Message digest per thread, created on first use
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
 
     /**
      * A constructor creating a hash data encryptor given the hash algorithm.
@@ -36,11 +58,41 @@ public class MessageDigestHasher implements DataEncryptor {
      */
     @Override
     public String encrypt(String data, String salt) {
-        String digest = null;
+        byte[] hash = hash(data, salt);
+
+        // Converting bytes to hexadecimal format
+        return hash != null ? Hex.encode(hash) : null;
+    }
+
+    /**
+     * A method encrypting the given salted data into the compact binary form
+     * of the digest, holding the algorithm and the hash but not the salt.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @return the binary form of the digest.
+     * @throws IllegalArgumentException throws errors if the algorithm has no
+     * compact digest id.
+     */
+    public byte[] encryptCompact(String data, String salt) {
+        byte[] hash = hash(data, salt);
+
+        return hash != null ? CompactDigest.of(algorithm, 1, new byte[0], hash).encode() : null;
+    }
+
+    /**
+     * A method hashing the given salted data.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @return the hash bytes, null if failed.
+     */
+    private byte[] hash(String data, String salt) {
+        byte[] hash = null;
 
         try {
             // Building the encrypted digest message
-            MessageDigest md = MessageDigest.getInstance(algorithm);
+            MessageDigest md = getDigest();
 
             // Applying the salt message first
             if (salt != null && !salt.isEmpty()) {
@@ -49,22 +101,404 @@ public class MessageDigestHasher implements DataEncryptor {
 
             md.update(data.getBytes());
 
-            // Converting bytes to hexadecimal format
-            byte[] bytes = md.digest();
+            hash = md.digest();
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred encrypting data: '" + data + "' using algorithm: '" + algorithm + "'.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        }
+
+        return hash;
+    }
+
+    /**
+     * A method returning the length of the raw hashes of the algorithm.
+     *
+     * @return the hash length in bytes, -1 if the algorithm is not supported.
+     */
+    @Override
+    public int getHashLength() {
+        int length = -1;
+
+        try {
+            length = getDigest().getDigestLength();
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        }
+
+        return length;
+    }
+
+    /**
+     * A method encrypting the given salted UTF-8 data writing the raw hash
+     * into the given buffer.
+     *
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    @Override
+    public int encrypt(byte[] data, byte[] salt, byte[] out, int offset) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data using algorithm: '" + algorithm + "'.");
+
+            return -1;
+        }
+
+        return encrypt(data, 0, data.length, salt, out, offset);
+    }
+
+    /**
+     * A method encrypting the given salted data encoded in UTF-8 writing the
+     * raw hash into the given buffer, the encoded data is wiped once hashed.
+     *
+     * @param data the data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    @Override
+    public int encrypt(char[] data, byte[] salt, byte[] out, int offset) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data using algorithm: '" + algorithm + "'.");
+
+            return -1;
+        }
+
+        int length = Utf8.encode(data);
+
+        try {
+            return encrypt(Utf8.buffer(length), 0, length, salt, out, offset);
+        } finally {
+            Utf8.wipe(length);
+        }
+    }
+
+    /**
+     * A method encrypting the remaining UTF-8 data of a buffer salted by the
+     * remaining bytes of another, writing the raw hash at the position of the
+     * output buffer. The positions of the buffers are advanced only if the
+     * hash is written.
+     *
+     * @param data the UTF-8 data to be encrypted.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @return the number of bytes written, -1 if failed.
+     */
+    @Override
+    public int encrypt(ByteBuffer data, ByteBuffer salt, ByteBuffer out) {
+        if (data == null) {
+            logger.error("A null flavored error occurred encrypting null data using algorithm: '" + algorithm + "'.");
+
+            return -1;
+        }
+
+        int written = -1;
+
+        int dataPosition = data.position();
+        int saltPosition = salt != null ? salt.position() : 0;
+
+        try {
+            MessageDigest md = getDigest();
+
+            // Rejecting short buffers before consuming the input
+            if (out.remaining() < md.getDigestLength()) {
+                logger.error("Output buffer has less than " + md.getDigestLength() + " bytes remaining: '" + out.remaining() + "'.");
 
-            StringBuilder sb = new StringBuilder();
+                return written;
+            }
 
-            for (int i = 0; i < bytes.length; i++) {
-                sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+            // Applying the salt message first
+            if (salt != null && salt.hasRemaining()) {
+                md.update(salt);
             }
 
-            digest = sb.toString();
+            md.update(data);
+
+            if (out.hasArray()) {
+                written = md.digest(out.array(), out.arrayOffset() + out.position(), out.remaining());
+
+                out.position(out.position() + written);
+            } else {
+                byte[] hash = md.digest();
+
+                out.put(hash);
+
+                written = hash.length;
+            }
         } catch (NullPointerException exc) {
-            logger.error("A null flavored error occurred encrypting data: '" + data + "' using algorithm: '" + algorithm + "'.");
+            logger.error("A null flavored error occurred encrypting a data buffer using algorithm: '" + algorithm + "'.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        } catch (DigestException exc) {
+            logger.error("An error occurred writing the digest into the output buffer: '" + exc.getMessage() + "'.");
+        } finally {
+            // Giving the input back untouched if no hash is written
+            if (written < 0) {
+                data.position(dataPosition);
+
+                if (salt != null) {
+                    salt.position(saltPosition);
+                }
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * A method encrypting a range of salted UTF-8 data writing the raw hash
+     * into the given buffer.
+     *
+     * @param data the buffer of the UTF-8 data.
+     * @param dataOffset the offset of the data within the buffer.
+     * @param dataLength the data length in bytes.
+     * @param salt the salt used to secure the encryption.
+     * @param out the buffer to write the hash into.
+     * @param offset the offset of the hash within the buffer.
+     * @return the number of bytes written, -1 if failed.
+     */
+    private int encrypt(byte[] data, int dataOffset, int dataLength, byte[] salt, byte[] out, int offset) {
+        int written = -1;
+
+        try {
+            MessageDigest md = getDigest();
+
+            // Applying the salt message first
+            if (salt != null && salt.length > 0) {
+                md.update(salt);
+            }
+
+            md.update(data, dataOffset, dataLength);
+
+            written = md.digest(out, offset, out.length - offset);
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred encrypting data bytes using algorithm: '" + algorithm + "'.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        } catch (DigestException exc) {
+            logger.error("An error occurred writing the digest into the output buffer: '" + exc.getMessage() + "'.");
+        }
+
+        return written;
+    }
+
+    /**
+     * A method returning the hexadecimal digest of the content of the given
+     * file, memory mapping the file in segments of up to 1 GB instead of
+     * reading it onto the heap.
+     *
+     * @param path the path of the file.
+     * @return the hexadecimal digest, null if failed.
+     */
+    public String digest(Path path) {
+        String digest = null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest md = getDigest();
+
+            long size = channel.size();
+
+            for (long position = 0; position < size; position += MAP_SEGMENT) {
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SEGMENT, size - position)));
+            }
+
+            digest = Hex.encode(md.digest());
+        } catch (IOException exc) {
+            logger.error("An error occurred digesting file: '" + path + "': '" + exc.getMessage() + "'.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        }
+
+        return digest;
+    }
+
+    /**
+     * A method returning the hexadecimal digest of the remaining content of
+     * the given stream, read in chunks through a buffer reused per thread.
+     * The stream is left open.
+     *
+     * @param in the input stream.
+     * @return the hexadecimal digest, null if failed.
+     */
+    public String digest(InputStream in) {
+        String digest = null;
+
+        try {
+            MessageDigest md = getDigest();
+
+            byte[] buffer = buffers.get();
+
+            if (buffer == null) {
+                buffer = new byte[READ_BUFFER];
+
+                buffers.set(buffer);
+            }
+
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+
+            digest = Hex.encode(md.digest());
+        } catch (NullPointerException exc) {
+            logger.error("A null flavored error occurred digesting a stream using algorithm: '" + algorithm + "'.");
+        } catch (IOException exc) {
+            logger.error("An error occurred reading the stream to digest: '" + exc.getMessage() + "'.");
+        } catch (NoSuchAlgorithmException exc) {
+            logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
+        }
+
+        return digest;
+    }
+
+    /**
+     * A method returning the hexadecimal tree digest of the content of the
+     * given file. The file is split in chunks of the given size, hashed in
+     * parallel on the common fork join pool, and the root is the digest of
+     * the chunk digests concatenated in order. The tree digest differs from
+     * the plain digest of the file and depends on the chunk size, so both
+     * must be kept fixed for fingerprints to be comparable. The root of an
+     * empty file is the digest of no input.
+     *
+     * @param path the path of the file.
+     * @param chunkSize the chunk size in bytes.
+     * @return the hexadecimal tree digest, null if failed.
+     * @throws IllegalArgumentException throws errors if the chunk size is not positive.
+     */
+    public String digestTree(Path path, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size is not positive: '" + chunkSize + "'.");
+        }
+
+        String digest = null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            long chunks = (size + chunkSize - 1) / chunkSize;
+
+            // Loading the algorithm ahead of the chunk tasks
+            int length = getDigest().getDigestLength();
+
+            if (chunks * length > Integer.MAX_VALUE - 8) {
+                logger.error("File has too many chunks to digest: '" + path + "' [SIZE: '" + size + "', CHUNK: '" + chunkSize + "'].");
+
+                return digest;
+            }
+
+            byte[] leaves = new byte[(int) chunks * length];
+
+            // An empty file has no chunks, its root is the digest of no leaves
+            if (chunks > 0) {
+                ForkJoinPool.commonPool().invoke(new ChunkTask(channel, size, chunkSize, leaves, length, 0, (int) chunks));
+            }
+
+            MessageDigest md = getDigest();
+
+            md.update(leaves);
+
+            digest = Hex.encode(md.digest());
+        } catch (UncheckedIOException exc) {
+            logger.error("An error occurred digesting file: '" + path + "': '" + exc.getCause().getMessage() + "'.");
+        } catch (IOException exc) {
+            logger.error("An error occurred digesting file: '" + path + "': '" + exc.getMessage() + "'.");
         } catch (NoSuchAlgorithmException exc) {
             logger.error("An error occurred loading the encryption algorithm: '" + exc.getMessage() + "'.");
         }
 
         return digest;
     }
+
+    /**
+     * A method returning the message digest of the current thread, reset to
+     * its initial state.
+     *
+     * @return the message digest.
+     * @throws NoSuchAlgorithmException throws errors if the algorithm is not supported.
+     */
+    private MessageDigest getDigest() throws NoSuchAlgorithmException {
+        MessageDigest md = digests.get();
+
+        if (md == null) {
+            md = MessageDigest.getInstance(algorithm);
+
+            digests.set(md);
+        } else {
+            md.reset();
+        }
+
+        return md;
+    }
+
+    /**
+     * A task hashing a range of chunks of a file, splitting the range in
+     * halves down to single chunks, each mapped and hashed on its own.
+     */
+    private final class ChunkTask extends RecursiveAction {
+
+        // Serialization version
+        private static final long serialVersionUID = 1L;
+
+        // File channel shared by the tasks
+        private final FileChannel channel;
+
+        // File size in bytes
+        private final long size;
+
+        // Chunk size in bytes
+        private final int chunkSize;
+
+        // Chunk digests in chunk order
+        private final byte[] leaves;
+
+        // Digest length in bytes
+        private final int length;
+
+        // First chunk of the range
+        private final int from;
+
+        // Chunk after the last of the range
+        private final int to;
+
+        private ChunkTask(FileChannel channel, long size, int chunkSize, byte[] leaves, int length, int from, int to) {
+            this.channel = channel;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.leaves = leaves;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new ChunkTask(channel, size, chunkSize, leaves, length, from, middle),
+                        new ChunkTask(channel, size, chunkSize, leaves, length, middle, to));
+
+                return;
+            }
+
+            long position = (long) from * chunkSize;
+
+            try {
+                MessageDigest md = getDigest();
+
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkSize, size - position)));
+
+                md.digest(leaves, from * length, length);
+            } catch (IOException exc) {
+                throw new UncheckedIOException(exc);
+            } catch (NoSuchAlgorithmException | DigestException exc) {
+                throw new IllegalStateException(exc);
+            }
+        }
+    }
 }
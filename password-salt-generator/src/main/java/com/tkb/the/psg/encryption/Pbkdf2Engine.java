@@ -0,0 +1,726 @@
+package com.tkb.the.psg.encryption;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A pure Java PBKDF2 engine over HMAC SHA-1, SHA-256 and SHA-512, producing
+ * keys bit identical to the PBKDF2WithHmacSHA* secret key factories. The
+ * HMAC inner and outer pad states are computed once per key, and since
+ * every iteration hashes a single digest long message, each iteration is
+ * reduced to two compressions of a preformatted block starting from the
+ * pad states, working on reused word arrays with no allocation.
+ *
+ * An engine is stateless and thread safe.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public final class Pbkdf2Engine {
+
+    // PBKDF2 over HMAC SHA-1
+    public static final String PBKDF2_SHA1 = "PBKDF2WithHmacSHA1";
+
+    // PBKDF2 over HMAC SHA-256
+    public static final String PBKDF2_SHA256 = "PBKDF2WithHmacSHA256";
+
+    // PBKDF2 over HMAC SHA-512
+    public static final String PBKDF2_SHA512 = "PBKDF2WithHmacSHA512";
+
+    // SHA-256 round constants
+    private static final int[] K256 = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    // SHA-512 round constants
+    private static final long[] K512 = {
+        0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+        0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+        0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+        0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+        0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+        0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+        0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+        0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+        0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+        0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+        0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+        0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+        0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+        0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+        0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+        0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+        0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+        0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+        0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+        0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+
+    // Algorithm name
+    private final String algorithm;
+
+    private Pbkdf2Engine(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * A method returning the engine of the given PBKDF2 algorithm.
+     *
+     * @param algorithm the algorithm name, i.e. PBKDF2WithHmacSHA1.
+     * @return the PBKDF2 engine.
+     * @throws NoSuchAlgorithmException throws errors if the algorithm is not supported.
+     */
+    public static Pbkdf2Engine getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if (PBKDF2_SHA1.equalsIgnoreCase(algorithm)) {
+            return new Pbkdf2Engine(PBKDF2_SHA1);
+        } else if (PBKDF2_SHA256.equalsIgnoreCase(algorithm)) {
+            return new Pbkdf2Engine(PBKDF2_SHA256);
+        } else if (PBKDF2_SHA512.equalsIgnoreCase(algorithm)) {
+            return new Pbkdf2Engine(PBKDF2_SHA512);
+        }
+
+        throw new NoSuchAlgorithmException("PBKDF2 algorithm '" + algorithm + "' is not supported.");
+    }
+
+    /**
+     * A method returning the algorithm name.
+     *
+     * @return the algorithm name.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * A method deriving a key from a password encoded in UTF-8, as the JCA
+     * secret key factories do.
+     *
+     * @param password the password chars.
+     * @param salt the salt bytes.
+     * @param iterations the number of iterations.
+     * @param keyLength the key length in bytes.
+     * @return the derived key.
+     */
+    public byte[] derive(char[] password, byte[] salt, int iterations, int keyLength) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        // Wiping the intermediate copies of the password
+        if (encoded.hasArray()) {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+
+        try {
+            return derive(bytes, salt, iterations, keyLength);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * A method deriving a key from password bytes.
+     *
+     * @param password the password bytes.
+     * @param salt the salt bytes.
+     * @param iterations the number of iterations.
+     * @param keyLength the key length in bytes.
+     * @return the derived key.
+     */
+    public byte[] derive(byte[] password, byte[] salt, int iterations, int keyLength) {
+        byte[] key = new byte[keyLength];
+
+        derive(password, salt, iterations, key, 0, keyLength);
+
+        return key;
+    }
+
+    /**
+     * A method deriving a key from password bytes into the given buffer.
+     *
+     * @param password the password bytes.
+     * @param salt the salt bytes.
+     * @param iterations the number of iterations.
+     * @param out the buffer to write the key into.
+     * @param offset the offset of the key within the buffer.
+     * @param keyLength the key length in bytes.
+     */
+    public void derive(byte[] password, byte[] salt, int iterations, byte[] out, int offset, int keyLength) {
+        derive(password, 0, password.length, salt, iterations, out, offset, keyLength);
+    }
+
+    /**
+     * A method deriving a key from a range of password bytes into the given
+     * buffer, so a password may be passed within a reused buffer.
+     *
+     * @param password the buffer of the password bytes.
+     * @param passwordOffset the offset of the password within the buffer.
+     * @param passwordLength the password length in bytes.
+     * @param salt the salt bytes.
+     * @param iterations the number of iterations.
+     * @param out the buffer to write the key into.
+     * @param offset the offset of the key within the buffer.
+     * @param keyLength the key length in bytes.
+     */
+    public void derive(byte[] password, int passwordOffset, int passwordLength, byte[] salt, int iterations, byte[] out, int offset, int keyLength) {
+        if (iterations < 1 || keyLength < 1) {
+            throw new IllegalArgumentException("Iterations and key length must be positive: '" + iterations + "', '" + keyLength + "'.");
+        }
+
+        Prf prf = newPrf();
+
+        prf.init(password, passwordOffset, passwordLength);
+
+        int blocks = (keyLength + prf.hashLength - 1) / prf.hashLength;
+
+        for (int i = 1; i <= blocks; i++) {
+            int position = (i - 1) * prf.hashLength;
+
+            prf.block(salt, i, iterations, out, offset + position, Math.min(prf.hashLength, keyLength - position));
+        }
+    }
+
+    private Prf newPrf() {
+        if (PBKDF2_SHA1.equals(algorithm)) {
+            return new Sha1Prf();
+        } else if (PBKDF2_SHA256.equals(algorithm)) {
+            return new Sha256Prf();
+        }
+
+        return new Sha512Prf();
+    }
+
+    /**
+     * An HMAC pseudo random function computing the PBKDF2 blocks, holding the
+     * pad states of a single key.
+     */
+    private abstract static class Prf {
+
+        // Digest length in bytes
+        final int hashLength;
+
+        Prf(int hashLength) {
+            this.hashLength = hashLength;
+        }
+
+        /**
+         * A method computing the inner and outer pad states of the key.
+         *
+         * @param key the buffer of the HMAC key.
+         * @param offset the offset of the key within the buffer.
+         * @param length the key length in bytes.
+         */
+        abstract void init(byte[] key, int offset, int length);
+
+        /**
+         * A method computing a PBKDF2 block into the given buffer.
+         *
+         * @param salt the salt bytes.
+         * @param index the block index starting at one.
+         * @param iterations the number of iterations.
+         * @param out the buffer to write into.
+         * @param offset the offset within the buffer.
+         * @param length the number of bytes to write.
+         */
+        abstract void block(byte[] salt, int index, int iterations, byte[] out, int offset, int length);
+
+        /**
+         * A method returning the message of the first iteration, the salt
+         * followed by the big endian block index.
+         */
+        static byte[] first(byte[] salt, int index) {
+            byte[] message = Arrays.copyOf(salt, salt.length + 4);
+
+            message[salt.length] = (byte) (index >>> 24);
+            message[salt.length + 1] = (byte) (index >>> 16);
+            message[salt.length + 2] = (byte) (index >>> 8);
+            message[salt.length + 3] = (byte) index;
+
+            return message;
+        }
+    }
+
+    /**
+     * A pseudo random function over a hash of 32 bit words and 64 bytes blocks.
+     */
+    private abstract static class IntPrf extends Prf {
+
+        // Number of state words
+        private final int words;
+
+        // State after the inner pad
+        private final int[] inner;
+
+        // State after the outer pad
+        private final int[] outer;
+
+        // Block of a digest long message, padded once
+        private final int[] block = new int[16];
+
+        // Block of arbitrary messages
+        private final int[] scratch = new int[16];
+
+        // Current iteration value
+        private final int[] u;
+
+        // Working state
+        private final int[] state;
+
+        IntPrf(int words) {
+            super(words * 4);
+
+            this.words = words;
+            this.inner = new int[words];
+            this.outer = new int[words];
+            this.u = new int[words];
+            this.state = new int[words];
+
+            block[words] = 0x80000000;
+            block[15] = (64 + words * 4) * 8;
+        }
+
+        abstract int[] iv();
+
+        abstract void compress(int[] h, int[] w);
+
+        @Override
+        void init(byte[] key, int offset, int length) {
+            if (length > 64) {
+                key = toBytes(digest(iv(), 0, Arrays.copyOfRange(key, offset, offset + length)));
+                offset = 0;
+                length = key.length;
+            }
+
+            byte[] pad = new byte[64];
+
+            for (int i = 0; i < 64; i++) {
+                pad[i] = (byte) ((i < length ? key[offset + i] : 0) ^ 0x36);
+            }
+
+            System.arraycopy(iv(), 0, inner, 0, words);
+            load(pad, 0, scratch);
+            compress(inner, scratch);
+
+            for (int i = 0; i < 64; i++) {
+                pad[i] ^= 0x36 ^ 0x5c;
+            }
+
+            System.arraycopy(iv(), 0, outer, 0, words);
+            load(pad, 0, scratch);
+            compress(outer, scratch);
+
+            Arrays.fill(pad, (byte) 0);
+        }
+
+        @Override
+        void block(byte[] salt, int index, int iterations, byte[] out, int offset, int length) {
+            int[] h = digest(inner, 64, first(salt, index));
+
+            outer(h);
+
+            int[] t = u.clone();
+
+            for (int i = 1; i < iterations; i++) {
+                // Inner hash of the previous value from the inner pad state
+                System.arraycopy(u, 0, block, 0, words);
+                System.arraycopy(inner, 0, state, 0, words);
+                compress(state, block);
+
+                outer(state);
+
+                for (int j = 0; j < words; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            for (int i = 0; i < length; i++) {
+                out[offset + i] = (byte) (t[i >>> 2] >>> (24 - (i & 3) * 8));
+            }
+        }
+
+        /**
+         * A method computing the outer hash of an inner digest into u.
+         */
+        private void outer(int[] digest) {
+            System.arraycopy(digest, 0, block, 0, words);
+            System.arraycopy(outer, 0, u, 0, words);
+            compress(u, block);
+        }
+
+        /**
+         * A method hashing a message following the given prefix length of
+         * already compressed bytes, returning the final state.
+         */
+        private int[] digest(int[] start, long prefix, byte[] message) {
+            int[] h = start.clone();
+
+            int offset = 0;
+
+            while (message.length - offset >= 64) {
+                load(message, offset, scratch);
+                compress(h, scratch);
+
+                offset += 64;
+            }
+
+            int remaining = message.length - offset;
+            int total = remaining + 9 <= 64 ? 64 : 128;
+
+            byte[] last = new byte[total];
+            System.arraycopy(message, offset, last, 0, remaining);
+            last[remaining] = (byte) 0x80;
+
+            long bits = (prefix + message.length) * 8;
+
+            for (int i = 0; i < 8; i++) {
+                last[total - 1 - i] = (byte) (bits >>> (i * 8));
+            }
+
+            for (int i = 0; i < total; i += 64) {
+                load(last, i, scratch);
+                compress(h, scratch);
+            }
+
+            return h;
+        }
+
+        private static void load(byte[] bytes, int offset, int[] w) {
+            for (int i = 0; i < 16; i++, offset += 4) {
+                w[i] = (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+            }
+        }
+
+        private static byte[] toBytes(int[] h) {
+            byte[] bytes = new byte[h.length * 4];
+
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (h[i >>> 2] >>> (24 - (i & 3) * 8));
+            }
+
+            return bytes;
+        }
+    }
+
+    /**
+     * A pseudo random function over HMAC SHA-1.
+     */
+    private static final class Sha1Prf extends IntPrf {
+
+        // Message schedule
+        private final int[] w = new int[80];
+
+        Sha1Prf() {
+            super(5);
+        }
+
+        @Override
+        int[] iv() {
+            return new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0};
+        }
+
+        @Override
+        void compress(int[] h, int[] block) {
+            System.arraycopy(block, 0, w, 0, 16);
+
+            for (int t = 16; t < 80; t++) {
+                w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+
+            for (int t = 0; t < 80; t++) {
+                int f;
+
+                if (t < 20) {
+                    f = ((b & c) | (~b & d)) + 0x5a827999;
+                } else if (t < 40) {
+                    f = (b ^ c ^ d) + 0x6ed9eba1;
+                } else if (t < 60) {
+                    f = ((b & c) | (b & d) | (c & d)) + 0x8f1bbcdc;
+                } else {
+                    f = (b ^ c ^ d) + 0xca62c1d6;
+                }
+
+                int temp = Integer.rotateLeft(a, 5) + f + e + w[t];
+
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = temp;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+        }
+    }
+
+    /**
+     * A pseudo random function over HMAC SHA-256.
+     */
+    private static final class Sha256Prf extends IntPrf {
+
+        // Message schedule
+        private final int[] w = new int[64];
+
+        Sha256Prf() {
+            super(8);
+        }
+
+        @Override
+        int[] iv() {
+            return new int[]{0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+        }
+
+        @Override
+        void compress(int[] h, int[] block) {
+            System.arraycopy(block, 0, w, 0, 16);
+
+            for (int t = 16; t < 64; t++) {
+                int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+
+                w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], k = h[7];
+
+            for (int t = 0; t < 64; t++) {
+                int t1 = k + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K256[t] + w[t];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+
+                k = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += k;
+        }
+    }
+
+    /**
+     * A pseudo random function over HMAC SHA-512, a hash of 64 bit words and
+     * 128 bytes blocks.
+     */
+    private static final class Sha512Prf extends Prf {
+
+        // State after the inner pad
+        private final long[] inner = new long[8];
+
+        // State after the outer pad
+        private final long[] outer = new long[8];
+
+        // Block of a digest long message, padded once
+        private final long[] block = new long[16];
+
+        // Block of arbitrary messages
+        private final long[] scratch = new long[16];
+
+        // Message schedule
+        private final long[] w = new long[80];
+
+        // Current iteration value
+        private final long[] u = new long[8];
+
+        // Working state
+        private final long[] state = new long[8];
+
+        Sha512Prf() {
+            super(64);
+
+            block[8] = 0x8000000000000000L;
+            block[15] = (128 + 64) * 8;
+        }
+
+        private static long[] iv() {
+            return new long[]{
+                0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+                0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+            };
+        }
+
+        @Override
+        void init(byte[] key, int offset, int length) {
+            if (length > 128) {
+                key = toBytes(digest(iv(), 0, Arrays.copyOfRange(key, offset, offset + length)));
+                offset = 0;
+                length = key.length;
+            }
+
+            byte[] pad = new byte[128];
+
+            for (int i = 0; i < 128; i++) {
+                pad[i] = (byte) ((i < length ? key[offset + i] : 0) ^ 0x36);
+            }
+
+            System.arraycopy(iv(), 0, inner, 0, 8);
+            load(pad, 0, scratch);
+            compress(inner, scratch);
+
+            for (int i = 0; i < 128; i++) {
+                pad[i] ^= 0x36 ^ 0x5c;
+            }
+
+            System.arraycopy(iv(), 0, outer, 0, 8);
+            load(pad, 0, scratch);
+            compress(outer, scratch);
+
+            Arrays.fill(pad, (byte) 0);
+        }
+
+        @Override
+        void block(byte[] salt, int index, int iterations, byte[] out, int offset, int length) {
+            long[] h = digest(inner, 128, first(salt, index));
+
+            outer(h);
+
+            long[] t = u.clone();
+
+            for (int i = 1; i < iterations; i++) {
+                // Inner hash of the previous value from the inner pad state
+                System.arraycopy(u, 0, block, 0, 8);
+                System.arraycopy(inner, 0, state, 0, 8);
+                compress(state, block);
+
+                outer(state);
+
+                for (int j = 0; j < 8; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            for (int i = 0; i < length; i++) {
+                out[offset + i] = (byte) (t[i >>> 3] >>> (56 - (i & 7) * 8));
+            }
+        }
+
+        /**
+         * A method computing the outer hash of an inner digest into u.
+         */
+        private void outer(long[] digest) {
+            System.arraycopy(digest, 0, block, 0, 8);
+            System.arraycopy(outer, 0, u, 0, 8);
+            compress(u, block);
+        }
+
+        /**
+         * A method hashing a message following the given prefix length of
+         * already compressed bytes, returning the final state.
+         */
+        private long[] digest(long[] start, long prefix, byte[] message) {
+            long[] h = start.clone();
+
+            int offset = 0;
+
+            while (message.length - offset >= 128) {
+                load(message, offset, scratch);
+                compress(h, scratch);
+
+                offset += 128;
+            }
+
+            int remaining = message.length - offset;
+            int total = remaining + 17 <= 128 ? 128 : 256;
+
+            byte[] last = new byte[total];
+            System.arraycopy(message, offset, last, 0, remaining);
+            last[remaining] = (byte) 0x80;
+
+            long bits = (prefix + message.length) * 8;
+
+            for (int i = 0; i < 8; i++) {
+                last[total - 1 - i] = (byte) (bits >>> (i * 8));
+            }
+
+            for (int i = 0; i < total; i += 128) {
+                load(last, i, scratch);
+                compress(h, scratch);
+            }
+
+            return h;
+        }
+
+        private void compress(long[] h, long[] block) {
+            System.arraycopy(block, 0, w, 0, 16);
+
+            for (int t = 16; t < 80; t++) {
+                long s0 = Long.rotateRight(w[t - 15], 1) ^ Long.rotateRight(w[t - 15], 8) ^ (w[t - 15] >>> 7);
+                long s1 = Long.rotateRight(w[t - 2], 19) ^ Long.rotateRight(w[t - 2], 61) ^ (w[t - 2] >>> 6);
+
+                w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+            }
+
+            long a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], k = h[7];
+
+            for (int t = 0; t < 80; t++) {
+                long t1 = k + (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41)) + ((e & f) ^ (~e & g)) + K512[t] + w[t];
+                long t2 = (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39)) + ((a & b) ^ (a & c) ^ (b & c));
+
+                k = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += k;
+        }
+
+        private static void load(byte[] bytes, int offset, long[] w) {
+            for (int i = 0; i < 16; i++) {
+                long word = 0;
+
+                for (int j = 0; j < 8; j++) {
+                    word = (word << 8) | (bytes[offset++] & 0xff);
+                }
+
+                w[i] = word;
+            }
+        }
+
+        private static byte[] toBytes(long[] h) {
+            byte[] bytes = new byte[h.length * 8];
+
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (h[i >>> 3] >>> (56 - (i & 7) * 8));
+            }
+
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.tkb.the.psg.encryption;
+
+import java.util.Arrays;
+
+/**
+ * A UTF-8 encoder of secrets writing into a reused buffer per thread, so no
+ * intermediate copies of a secret are left behind to the garbage collector.
+ * Callers wipe the buffer once done with the encoded secret.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+final class Utf8 {
+
+    // Encoding buffer per thread
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    private Utf8() {
+    }
+
+    /**
+     * A method returning the encoding buffer of the current thread, grown to
+     * hold at least the given number of bytes.
+     *
+     * @param length the minimum length in bytes.
+     * @return the encoding buffer.
+     */
+    static byte[] buffer(int length) {
+        byte[] buffer = buffers.get();
+
+        if (buffer.length < length) {
+            // Wiping the outgrown buffer before dropping it
+            Arrays.fill(buffer, (byte) 0);
+
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+
+            buffers.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * A method encoding chars in UTF-8 into the buffer of the current thread,
+     * replacing unpaired surrogates by '?' as the JDK encoder does.
+     *
+     * @param chars the chars to encode.
+     * @return the number of bytes encoded at the start of the buffer.
+     */
+    static int encode(char[] chars) {
+        byte[] out = buffer(chars.length * 3);
+
+        int position = 0;
+
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xc0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+
+                out[position++] = (byte) (0xf0 | (cp >> 18));
+                out[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[position++] = '?';
+            } else {
+                out[position++] = (byte) (0xe0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * A method wiping the first bytes of the buffer of the current thread.
+     *
+     * @param length the number of bytes to wipe.
+     */
+    static void wipe(int length) {
+        Arrays.fill(buffers.get(), 0, length, (byte) 0);
+    }
+}
@@ -8,4 +8,26 @@ package com.tkb.the.psg.salt;
 public interface Salter {
     
     public String spill();
+
+    /**
+     * A method returning the given number of salts, spilled one by one unless
+     * the implementation draws them at once.
+     *
+     * @param n the number of salts.
+     * @return the salt messages.
+     * @throws IllegalArgumentException throws errors if the number of salts is negative.
+     */
+    public default String[] spillEncoded(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Number of salts must not be negative: '" + n + "'.");
+        }
+
+        String[] salts = new String[n];
+
+        for (int i = 0; i < n; i++) {
+            salts[i] = spill();
+        }
+
+        return salts;
+    }
 }
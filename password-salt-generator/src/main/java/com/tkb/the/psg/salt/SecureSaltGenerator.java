@@ -0,0 +1,145 @@
+package com.tkb.the.psg.salt;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import org.apache.log4j.Logger;
+
+/**
+ * A secure random salter implementation keeping a generator per thread,
+ * seeded once on first use and reused by every salt drawn by the thread.
+ * Salts are returned as raw bytes or in Base64 form, and many salts may be
+ * drawn at once from a single random draw.
+ *
+ * @author Akis Papadopoulos, iakopap@gmail.com
+ */
+public class SecureSaltGenerator implements Salter {
+
+    // Logger
+    private static final Logger logger = Logger.getLogger(SecureSaltGenerator.class);
+
+    // Secure random generator per thread
+    private static final ThreadLocal<SecureRandom> generators = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException exc) {
+                logger.error("An error occurred loading the secure random algorithm: '" + exc.getMessage() + "'.");
+
+                return new SecureRandom();
+            }
+        }
+    };
+
+    // Salt length in bytes
+    private final int length;
+
+    /**
+     * A constructor creating a secure salt generator of 16 bytes salts.
+     */
+    public SecureSaltGenerator() {
+        this(16);
+    }
+
+    /**
+     * A constructor creating a secure salt generator given the salt length.
+     *
+     * @param length the salt length in bytes.
+     */
+    public SecureSaltGenerator(int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Salt length must be positive: '" + length + "'.");
+        }
+
+        this.length = length;
+    }
+
+    /**
+     * A method returning a random salt in Base64 form.
+     *
+     * @return the random salt message.
+     */
+    @Override
+    public String spill() {
+        return Base64.getEncoder().encodeToString(spillBytes());
+    }
+
+    /**
+     * A method returning a random salt.
+     *
+     * @return the random salt bytes.
+     */
+    public byte[] spillBytes() {
+        byte[] salt = new byte[length];
+
+        generators.get().nextBytes(salt);
+
+        return salt;
+    }
+
+    /**
+     * A method returning the given number of random salts, filled from a
+     * single random draw.
+     *
+     * @param n the number of salts.
+     * @return the random salts bytes.
+     * @throws IllegalArgumentException throws errors if the number of salts is
+     * negative or the salts exceed the maximum array size.
+     */
+    public byte[][] spill(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Number of salts must not be negative: '" + n + "'.");
+        }
+
+        if (n > Integer.MAX_VALUE / length) {
+            throw new IllegalArgumentException("Number of salts exceeds the maximum draw: '" + n + "'.");
+        }
+
+        byte[] bytes = new byte[n * length];
+
+        generators.get().nextBytes(bytes);
+
+        byte[][] salts = new byte[n][];
+
+        for (int i = 0; i < n; i++) {
+            salts[i] = Arrays.copyOfRange(bytes, i * length, (i + 1) * length);
+        }
+
+        return salts;
+    }
+
+    /**
+     * A method returning the given number of random salts in Base64 form,
+     * filled from a single random draw.
+     *
+     * @param n the number of salts.
+     * @return the random salt messages.
+     * @throws IllegalArgumentException throws errors if the number of salts is
+     * negative or the salts exceed the maximum array size.
+     */
+    @Override
+    public String[] spillEncoded(int n) {
+        byte[][] salts = spill(n);
+
+        String[] encoded = new String[n];
+
+        Base64.Encoder encoder = Base64.getEncoder();
+
+        for (int i = 0; i < n; i++) {
+            encoded[i] = encoder.encodeToString(salts[i]);
+        }
+
+        return encoded;
+    }
+
+    /**
+     * A method returning the salt length.
+     *
+     * @return the salt length in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+}
@@ -1,12 +1,44 @@
 package com.tkb.the.psg.unit;
 
+import java.io.ByteArrayInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.tkb.the.psg.async.HashingService;
+import com.tkb.the.psg.bulk.BulkRehasher;
+import com.tkb.the.psg.bulk.Checkpoint;
+import com.tkb.the.psg.bulk.Credential;
+import com.tkb.the.psg.bulk.RehashHandler;
 import com.tkb.the.psg.encryption.AdvancedSecureEncoder;
+import com.tkb.the.psg.encryption.CompactDigest;
 import com.tkb.the.psg.encryption.DataEncryptor;
+import com.tkb.the.psg.encryption.IterationCalibrator;
 import com.tkb.the.psg.encryption.MessageDigestHasher;
+import com.tkb.the.psg.encryption.Pbkdf2Engine;
 import com.tkb.the.psg.salt.Salter;
+import com.tkb.the.psg.salt.SecureSaltGenerator;
 import com.tkb.the.psg.salt.SecureRandomGenerator;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import org.apache.log4j.Logger;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -34,6 +66,44 @@ public class GenericTestCase {
         assertTrue(salts.size() == 10000);
     }
 
+    @Test
+    public void testSecureSaltSpill() {
+        SecureSaltGenerator salter = new SecureSaltGenerator(16);
+
+        String salt = salter.spill();
+
+        assertEquals(16, Base64.getDecoder().decode(salt).length);
+
+        byte[][] salts = salter.spill(1000);
+
+        Set<String> unique = new HashSet<String>();
+
+        for (byte[] bytes : salts) {
+            assertEquals(16, bytes.length);
+
+            unique.add(Base64.getEncoder().encodeToString(bytes));
+        }
+
+        assertEquals(1000, unique.size());
+        assertEquals(10, salter.spillEncoded(10).length);
+        assertEquals(0, salter.spill(0).length);
+
+        for (int n : new int[]{-1, Integer.MAX_VALUE / 8}) {
+            try {
+                salter.spill(n);
+
+                fail("Invalid number of salts should be rejected: " + n);
+            } catch (IllegalArgumentException exc) {
+                // Expected, validated before drawing
+            }
+        }
+
+        // Batches are part of the salter interface
+        Salter generic = new SecureRandomGenerator();
+
+        assertEquals(3, generic.spillEncoded(3).length);
+    }
+
     @Test
     public void testMessageDigestMethod() {
         Salter salter = new SecureRandomGenerator();
@@ -79,4 +149,542 @@ public class GenericTestCase {
 
         assertTrue(encryptedPassword.equals(encryptedPassword2));
     }
+
+    @Test
+    public void testKnownDigests() {
+        assertEquals("5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8", new MessageDigestHasher("SHA-1").encrypt("password", null));
+        assertEquals("5f4dcc3b5aa765d61d8327deb882cf99", new MessageDigestHasher("MD5").encrypt("password", ""));
+        assertNull(new MessageDigestHasher("NONE").encrypt("password", null));
+
+        // RFC 6070 test vector, extended to 64 bytes
+        String digest = new AdvancedSecureEncoder(1).encrypt("password", "salt");
+
+        assertTrue(digest.startsWith("1:73616c74:0c60c80f961f0e71f3a9b524af6012062fe037a6"));
+        assertEquals(2 + 8 + 1 + 128, digest.length());
+    }
+
+    @Test
+    public void testBulkRehasher() throws Exception {
+        final DataEncryptor de = new MessageDigestHasher("SHA-256");
+
+        List<Credential> credentials = new ArrayList<Credential>();
+
+        for (int i = 0; i < 2000; i++) {
+            credentials.add(new Credential(String.valueOf(i), "password" + i, "salt" + i));
+        }
+
+        final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+
+        final AtomicLong saved = new AtomicLong();
+
+        Checkpoint checkpoint = new Checkpoint() {
+            @Override
+            public long load() {
+                return saved.get();
+            }
+
+            @Override
+            public void save(long processed) {
+                saved.set(processed);
+            }
+        };
+
+        BulkRehasher rehasher = new BulkRehasher(de, 4, 100, 8);
+        rehasher.setCheckpoint(checkpoint, 0);
+
+        // Failing midway, leaving the leading chunks checkpointed
+        try {
+            rehasher.rehash(credentials.iterator(), new RehashHandler() {
+                @Override
+                public void handle(List<Credential> chunk, String[] hashes) throws Exception {
+                    if (chunk.get(0).getId().equals("1500")) {
+                        throw new IllegalStateException("Store unavailable");
+                    }
+
+                    for (int i = 0; i < hashes.length; i++) {
+                        digests.put(chunk.get(i).getId(), hashes[i]);
+                    }
+                }
+            });
+
+            fail("Rehashing should have failed");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof IllegalStateException);
+        }
+
+        long resumed = saved.get();
+
+        assertTrue(resumed <= 1500 && resumed % 100 == 0);
+
+        long handled = rehasher.rehash(credentials.stream(), new RehashHandler() {
+            @Override
+            public void handle(List<Credential> chunk, String[] hashes) throws Exception {
+                for (int i = 0; i < hashes.length; i++) {
+                    digests.put(chunk.get(i).getId(), hashes[i]);
+                }
+            }
+        });
+
+        assertEquals(2000 - resumed, handled);
+        assertEquals(2000, saved.get());
+        assertEquals(2000, digests.size());
+        assertEquals(de.encrypt("password1999", "salt1999"), digests.get("1999"));
+
+        assertTrue(rehasher.close(1000));
+    }
+
+    @Test
+    public void testPbkdf2Engine() throws Exception {
+        SecureSaltGenerator salter = new SecureSaltGenerator(16);
+
+        String[] algorithms = {Pbkdf2Engine.PBKDF2_SHA1, Pbkdf2Engine.PBKDF2_SHA256, Pbkdf2Engine.PBKDF2_SHA512};
+
+        String[] passwords = {"password", "p\u00e4ssw\u00f6rd-\u20ac", new String(new char[200]).replace('\0', 'k')};
+
+        for (String algorithm : algorithms) {
+            Pbkdf2Engine engine = Pbkdf2Engine.getInstance(algorithm);
+
+            SecretKeyFactory skf = SecretKeyFactory.getInstance(algorithm);
+
+            for (String password : passwords) {
+                for (int length : new int[]{20, 64, 100}) {
+                    byte[] salt = salter.spillBytes();
+
+                    byte[] expected = skf.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 37, length * 8)).getEncoded();
+
+                    assertTrue(algorithm + "/" + length, Arrays.equals(expected, engine.derive(password.toCharArray(), salt, 37, length)));
+                }
+            }
+        }
+
+        DataEncryptor de = new AdvancedSecureEncoder(1000);
+        DataEncryptor fast = new AdvancedSecureEncoder(1000, Pbkdf2Engine.getInstance(Pbkdf2Engine.PBKDF2_SHA1));
+
+        assertEquals(de.encrypt("password", "salt"), fast.encrypt("password", "salt"));
+    }
+
+    @Test
+    public void testHashingService() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+
+        DataEncryptor de = new DataEncryptor() {
+            @Override
+            public String encrypt(String data, String salt) {
+                try {
+                    gate.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+
+                served.add(data);
+
+                return data + salt;
+            }
+        };
+
+        HashingService hs = new HashingService(de, 1, 8, 10000);
+        hs.setTenantCapacity(2);
+
+        // Holding the single hashing thread busy
+        CompletableFuture<String> first = hs.submit("a", "a1", "!");
+
+        while (hs.getPending() > 0) {
+            Thread.sleep(1);
+        }
+
+        hs.submit("a", "a2", "!");
+        hs.submit("a", "a3", "!");
+
+        CompletableFuture<String> rejected = hs.submit("a", "a4", "!");
+
+        hs.submit("b", "b1", "!");
+        CompletableFuture<String> last = hs.submit("b", "b2", "!");
+
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(1, hs.getRejected());
+
+        // Requests given up by their callers are not hashed
+        hs.submit("c", "c1", "!").cancel(false);
+
+        gate.countDown();
+
+        assertEquals("a1!", first.get(5, TimeUnit.SECONDS));
+        assertEquals("b2!", last.get(5, TimeUnit.SECONDS));
+
+        // Tenants are served round robin
+        assertEquals(Arrays.asList("a1", "a2", "b1", "a3", "b2"), served);
+
+        assertTrue(hs.close(1000));
+
+        // Requests waiting past their deadline are shed
+        final CountDownLatch busy = new CountDownLatch(1);
+
+        HashingService shedding = new HashingService(new DataEncryptor() {
+            @Override
+            public String encrypt(String data, String salt) {
+                try {
+                    busy.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return data;
+            }
+        }, 1, 8, 50);
+
+        shedding.submit("a", "x", null);
+
+        CompletableFuture<String> late = shedding.submit("a", "y", null);
+
+        Thread.sleep(100);
+
+        busy.countDown();
+
+        try {
+            late.get(5, TimeUnit.SECONDS);
+
+            fail("Request should have been shed");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertEquals(1, shedding.getShed());
+        assertTrue(shedding.close(1000));
+
+        // Errors fail their request only, the worker keeps serving
+        HashingService failing = new HashingService(new DataEncryptor() {
+            @Override
+            public String encrypt(String data, String salt) {
+                if ("boom".equals(data)) {
+                    throw new AssertionError("boom");
+                }
+
+                return data;
+            }
+        }, 1, 8, 10000);
+
+        try {
+            failing.submit("a", "boom", null).get(5, TimeUnit.SECONDS);
+
+            fail("Request should have failed");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof AssertionError);
+        }
+
+        assertEquals("ok", failing.submit("a", "ok", null).get(5, TimeUnit.SECONDS));
+
+        try {
+            failing.submit(null, "ok", null);
+
+            fail("Null tenant should be rejected");
+        } catch (IllegalArgumentException exc) {
+            assertEquals(0, failing.getPending());
+        }
+
+        try {
+            failing.setTenantCapacity(0);
+
+            fail("Non positive tenant capacity should be rejected");
+        } catch (IllegalArgumentException exc) {
+            assertEquals("ok", failing.submit("a", "ok", null).get(5, TimeUnit.SECONDS));
+        }
+
+        assertTrue(failing.close(1000));
+    }
+
+    @Test
+    public void testVerifyAndCalibrate() throws Exception {
+        AdvancedSecureEncoder encoder = new AdvancedSecureEncoder(1000);
+
+        String digest = encoder.encrypt("password", "salt");
+
+        assertTrue(encoder.verify("password", digest));
+        assertFalse(encoder.verify("passwork", digest));
+        assertFalse(encoder.verify("password", "1000:zz:00"));
+        assertFalse(encoder.verify("password", (String) null));
+
+        // Non default algorithms are prefixed, verifiable by any encoder
+        AdvancedSecureEncoder sha512 = new AdvancedSecureEncoder(2000, Pbkdf2Engine.getInstance(Pbkdf2Engine.PBKDF2_SHA512));
+
+        String digest512 = sha512.encrypt("password", "salt");
+
+        assertTrue(digest512.startsWith("sha512:2000:73616c74:"));
+        assertTrue(encoder.verify("password", digest512));
+        assertEquals(digest512, new AdvancedSecureEncoder(2000, "PBKDF2WithHmacSHA512").encrypt("password", "salt"));
+
+        assertTrue(sha512.needsRehash(digest));
+        assertFalse(sha512.needsRehash(digest512));
+        assertTrue(new AdvancedSecureEncoder(5000, "PBKDF2WithHmacSHA512").needsRehash(digest512));
+
+        IterationCalibrator calibrator = new IterationCalibrator(Pbkdf2Engine.getInstance(Pbkdf2Engine.PBKDF2_SHA256));
+        calibrator.setSamples(5);
+
+        AdvancedSecureEncoder calibrated = calibrator.calibrated(10, 0.99);
+
+        assertTrue(calibrated.getIterations() >= 1000);
+        assertTrue(calibrated.verify("password", calibrated.encrypt("password", "salt")));
+
+        // A minimum costing more than the target is measured and returned as is
+        calibrator.setMinIterations(20000);
+
+        assertEquals(20000, calibrator.calibrate(1, 0.5));
+
+        double[][] invalid = {{0, 0.99}, {10, 0}, {10, 1.5}, {10, Double.NaN}};
+
+        for (double[] args : invalid) {
+            try {
+                calibrator.calibrate((long) args[0], args[1]);
+
+                fail();
+            } catch (IllegalArgumentException exc) {
+                assertTrue(exc.getMessage().contains("percentile"));
+            }
+        }
+
+        try {
+            calibrator.setSamples(0);
+
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertTrue(exc.getMessage().contains("'0'"));
+        }
+    }
+
+    @Test
+    public void testCompactDigest() {
+        SecureSaltGenerator salter = new SecureSaltGenerator(16);
+
+        AdvancedSecureEncoder encoder = new AdvancedSecureEncoder(1000, "PBKDF2WithHmacSHA256");
+
+        String salt = salter.spill();
+
+        String digest = encoder.encrypt("password", salt);
+
+        byte[] compact = encoder.encryptCompact("password", salt);
+
+        // Text and binary forms carry the same digest
+        assertEquals(digest, CompactDigest.decode(compact).format());
+        assertTrue(Arrays.equals(compact, CompactDigest.parse(digest).encode()));
+        assertEquals(7 + salt.length() + 64, compact.length);
+
+        String text = CompactDigest.decode(compact).toBase64();
+
+        assertEquals(CompactDigest.parse(digest), CompactDigest.fromBase64(text));
+        assertFalse(text.contains("=") || text.contains("+") || text.contains("/"));
+
+        assertTrue(encoder.verify("password", compact));
+        assertFalse(encoder.verify("passwork", compact));
+        assertFalse(encoder.verify("password", new byte[]{9, 1, 0, 0, 0, 1, 0, 1}));
+
+        MessageDigestHasher hasher = new MessageDigestHasher("SHA-256");
+
+        CompactDigest plain = CompactDigest.decode(hasher.encryptCompact("password", salt));
+
+        assertEquals("SHA-256", plain.getAlgorithm());
+        assertEquals(hasher.encrypt("password", salt), plain.format());
+
+        // Salts beyond the binary form limit are kept in the text form
+        char[] chars = new char[300];
+        Arrays.fill(chars, 's');
+
+        String longSalt = new String(chars);
+
+        String stored = encoder.encrypt("password", longSalt);
+
+        assertNotNull(stored);
+        assertTrue(encoder.verify("password", stored));
+        assertFalse(encoder.verify("passwork", stored));
+        assertEquals(300, CompactDigest.parse(stored).getSalt().length);
+
+        try {
+            encoder.encryptCompact("password", longSalt);
+
+            fail("Salt longer than 255 bytes should not be encoded");
+        } catch (IllegalArgumentException exc) {
+            // Expected, only the binary form is limited
+        }
+    }
+
+    @Test
+    public void testBufferEncryption() throws Exception {
+        byte[] salt = "salt".getBytes(StandardCharsets.UTF_8);
+
+        String[] secrets = {"password", "p\u00e4ssw\u00f6rd-\u20ac-\ud83d\udd11", "lone-\ud800-surrogate"};
+
+        MessageDigestHasher hasher = new MessageDigestHasher("SHA-256");
+
+        byte[] out = new byte[40];
+
+        for (String secret : secrets) {
+            byte[] utf8 = secret.getBytes(StandardCharsets.UTF_8);
+
+            byte[] expected = new byte[32];
+
+            assertEquals(32, hasher.encrypt(utf8, salt, expected, 0));
+
+            // Chars are encoded in UTF-8 rather than the platform charset
+            assertEquals(32, hasher.encrypt(secret.toCharArray(), salt, out, 8));
+            assertTrue(Arrays.equals(expected, Arrays.copyOfRange(out, 8, 40)));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(32);
+
+            assertEquals(32, hasher.encrypt(ByteBuffer.wrap(utf8), ByteBuffer.wrap(salt), direct));
+            assertFalse(direct.hasRemaining());
+
+            direct.flip();
+            direct.get(out, 0, 32);
+
+            assertTrue(Arrays.equals(expected, Arrays.copyOf(out, 32)));
+        }
+
+        hasher.encrypt("password".toCharArray(), salt, out, 0);
+
+        assertTrue(Arrays.equals(CompactDigest.decode(hasher.encryptCompact("password", "salt")).getHash(), Arrays.copyOf(out, 32)));
+        assertEquals(-1, hasher.encrypt("password".toCharArray(), salt, new byte[16], 0));
+        assertEquals(-1, hasher.encrypt((char[]) null, salt, out, 0));
+        assertEquals(-1, hasher.encrypt(ByteBuffer.wrap(salt), ByteBuffer.wrap(salt), ByteBuffer.allocateDirect(16)));
+
+        AdvancedSecureEncoder[] encoders = {
+            new AdvancedSecureEncoder(1000),
+            new AdvancedSecureEncoder(1000, Pbkdf2Engine.getInstance(Pbkdf2Engine.PBKDF2_SHA1))
+        };
+
+        for (AdvancedSecureEncoder encoder : encoders) {
+            for (String secret : secrets) {
+                byte[] expected = CompactDigest.parse(encoder.encrypt(secret, "salt")).getHash();
+
+                byte[] hash = new byte[encoder.getHashLength()];
+
+                assertEquals(64, encoder.encrypt(secret.toCharArray(), salt, hash, 0));
+                assertTrue(Arrays.equals(expected, hash));
+
+                byte[] utf8 = secret.getBytes(StandardCharsets.UTF_8);
+
+                Arrays.fill(hash, (byte) 0);
+
+                assertEquals(64, encoder.encrypt(utf8, salt, hash, 0));
+                assertTrue(Arrays.equals(expected, hash));
+
+                ByteBuffer direct = ByteBuffer.allocateDirect(64);
+
+                assertEquals(64, encoder.encrypt(ByteBuffer.wrap(utf8), ByteBuffer.wrap(salt), direct));
+
+                direct.flip();
+                direct.get(hash);
+
+                assertTrue(Arrays.equals(expected, hash));
+            }
+
+            assertEquals(-1, encoder.encrypt("password".toCharArray(), salt, new byte[63], 0));
+            assertEquals(-1, encoder.encrypt((char[]) null, salt, new byte[64], 0));
+
+            // Short buffers are rejected by the remaining bytes, not the backing array
+            ByteBuffer data = ByteBuffer.wrap("password".getBytes(StandardCharsets.UTF_8));
+            ByteBuffer heap = ByteBuffer.allocate(128);
+            heap.limit(63);
+
+            assertEquals(-1, encoder.encrypt(data, ByteBuffer.wrap(salt), heap));
+            assertEquals(0, heap.position());
+            assertEquals(-1, encoder.encrypt(data, ByteBuffer.wrap(salt), ByteBuffer.allocateDirect(63)));
+            assertTrue(data.hasRemaining());
+        }
+
+        // Failed derivations leave the input buffers where they were
+        AdvancedSecureEncoder[] failing = {
+            new AdvancedSecureEncoder(0),
+            new AdvancedSecureEncoder(0, Pbkdf2Engine.getInstance(Pbkdf2Engine.PBKDF2_SHA1))
+        };
+
+        for (AdvancedSecureEncoder encoder : failing) {
+            ByteBuffer data = ByteBuffer.wrap("password".getBytes(StandardCharsets.UTF_8));
+            ByteBuffer saltBuffer = ByteBuffer.wrap(salt);
+            ByteBuffer hash = ByteBuffer.allocate(64);
+
+            assertEquals(-1, encoder.encrypt(data, saltBuffer, hash));
+            assertEquals(0, data.position());
+            assertEquals(0, saltBuffer.position());
+            assertEquals(0, hash.position());
+        }
+
+        ByteBuffer data = ByteBuffer.wrap("password".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer saltBuffer = ByteBuffer.wrap(salt);
+
+        assertEquals(-1, new MessageDigestHasher("SHA-0").encrypt(data, saltBuffer, ByteBuffer.allocate(64)));
+        assertEquals(0, data.position());
+        assertEquals(0, saltBuffer.position());
+
+        // Successful calls advance all the buffers, salts sliced out of larger ones included
+        ByteBuffer sliced = ByteBuffer.allocate(salt.length + 4);
+        sliced.position(2);
+        sliced.put(salt);
+        sliced.position(2);
+        sliced.limit(2 + salt.length);
+
+        ByteBuffer hash = ByteBuffer.allocate(64);
+
+        assertEquals(64, encoders[1].encrypt(data, sliced, hash));
+        assertFalse(data.hasRemaining());
+        assertFalse(sliced.hasRemaining());
+        assertFalse(hash.hasRemaining());
+        assertTrue(Arrays.equals(CompactDigest.parse(encoders[1].encrypt("password", "salt")).getHash(), hash.array()));
+    }
+
+    @Test
+    public void testFileDigest() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 123];
+
+        new Random(7).nextBytes(content);
+
+        Path file = Files.createTempFile("psg-digest", ".bin");
+        Path empty = Files.createTempFile("psg-digest", ".bin");
+
+        try {
+            Files.write(file, content);
+
+            MessageDigestHasher hasher = new MessageDigestHasher("SHA-256");
+
+            String expected = hex(MessageDigest.getInstance("SHA-256").digest(content));
+
+            assertEquals(expected, hasher.digest(file));
+            assertEquals(expected, hasher.digest(new ByteArrayInputStream(content)));
+            assertEquals(hex(MessageDigest.getInstance("SHA-256").digest()), hasher.digest(empty));
+
+            // Root of the tree is the digest of the chunk digests in order
+            int chunkSize = 1024 * 1024;
+
+            MessageDigest root = MessageDigest.getInstance("SHA-256");
+
+            for (int position = 0; position < content.length; position += chunkSize) {
+                root.update(MessageDigest.getInstance("SHA-256").digest(Arrays.copyOfRange(content, position, Math.min(content.length, position + chunkSize))));
+            }
+
+            String tree = hasher.digestTree(file, chunkSize);
+
+            assertEquals(hex(root.digest()), tree);
+            assertEquals(tree, hasher.digestTree(file, chunkSize));
+            assertNotEquals(expected, tree);
+            assertNotEquals(tree, hasher.digestTree(file, chunkSize / 2));
+
+            // An empty file has no leaves, a sparse one too many for the chunk size
+            assertEquals(hex(MessageDigest.getInstance("SHA-256").digest()), hasher.digestTree(empty, chunkSize));
+
+            try (RandomAccessFile sparse = new RandomAccessFile(empty.toFile(), "rw")) {
+                sparse.setLength(Integer.MAX_VALUE);
+            }
+
+            assertNull(hasher.digestTree(empty, 1));
+
+            assertNull(hasher.digest(file.resolveSibling("psg-missing.bin")));
+            assertNull(new MessageDigestHasher("SHA-0").digest(file));
+        } finally {
+            Files.delete(file);
+            Files.delete(empty);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        return CompactDigest.of("SHA-256", 1, new byte[0], hash).format();
+    }
 }